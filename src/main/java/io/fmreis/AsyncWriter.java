@@ -0,0 +1,266 @@
+package io.fmreis;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A buffered writer whose buffers are written out by a thread of its own,
+ * so that the thread converting a sheet does not wait for slow storage
+ * (nor for the encoding of the chars) while it parses the next rows.
+ * <p>
+ * Chars are copied into the current buffer; a full buffer is handed to
+ * the writer thread and writing goes on in the next free one.  Only when
+ * all buffers are waiting for the writer thread does writing block, for
+ * as long as the storage takes to free one; that time is reported to
+ * {@link ConversionMetrics#getOutputWaitNanos()}.
+ * <p>
+ * {@link #flush()} waits until everything written so far is written and
+ * the destination flushed, and {@link #close()} until it is closed too;
+ * converters only flush at the end.  A failure of the destination is
+ * thrown by the next call after it.
+ */
+public class AsyncWriter extends Writer {
+
+    /**
+     * A buffer handed to the writer thread
+     */
+    private static final class Chunk {
+        final char[] chars;
+        final int length;
+        /**
+         * Counted down once the destination is flushed, or null not to flush it
+         */
+        final CountDownLatch flushed;
+
+        Chunk(char[] chars, int length, CountDownLatch flushed) {
+            this.chars = chars;
+            this.length = length;
+            this.flushed = flushed;
+        }
+    }
+
+    /**
+     * Marks the end of the chunks
+     */
+    private static final Chunk END = new Chunk(null, 0, null);
+
+    private final Writer out;
+    private final ConversionMetrics metrics;
+    private final BlockingQueue<char[]> free;
+    private final BlockingQueue<Chunk> filled;
+    private final Thread writer;
+    private volatile IOException failure;
+    private char[] buffer;
+    private int position;
+    private boolean closed;
+
+    /**
+     * @param out         The destination, written to and closed by the writer thread
+     * @param bufferChars The size of each buffer
+     * @param buffers     The number of buffers, at least 2
+     * @param metrics     The metrics to report the time spent waiting for a free buffer to, or null
+     */
+    public AsyncWriter(Writer out, int bufferChars, int buffers, ConversionMetrics metrics) {
+        if (buffers < 2) {
+            throw new IllegalArgumentException("An asynchronous writer needs at least 2 buffers: " + buffers);
+        }
+        this.out = out;
+        this.metrics = metrics;
+        this.free = new ArrayBlockingQueue<>(buffers);
+        // room for the flushes and the end as well
+        this.filled = new ArrayBlockingQueue<>(buffers + 2);
+        for (int i = 1; i < buffers; i++) {
+            free.add(new char[bufferChars]);
+        }
+        this.buffer = new char[bufferChars];
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "xlsx2csv-output");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        synchronized (lock) {
+            if (position == buffer.length) {
+                handOff(null);
+            }
+            buffer[position++] = (char) c;
+        }
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        synchronized (lock) {
+            while (length > 0) {
+                if (position == buffer.length) {
+                    handOff(null);
+                }
+                int n = Math.min(length, buffer.length - position);
+                System.arraycopy(chars, offset, buffer, position, n);
+                position += n;
+                offset += n;
+                length -= n;
+            }
+        }
+    }
+
+    @Override
+    public void write(String s, int offset, int length) throws IOException {
+        synchronized (lock) {
+            while (length > 0) {
+                if (position == buffer.length) {
+                    handOff(null);
+                }
+                int n = Math.min(length, buffer.length - position);
+                s.getChars(offset, offset + n, buffer, position);
+                position += n;
+                offset += n;
+                length -= n;
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        synchronized (lock) {
+            CountDownLatch flushed = new CountDownLatch(1);
+            handOff(flushed);
+            try {
+                flushed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while flushing the output");
+            }
+            checkFailure();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            try {
+                if (failure == null) {
+                    handOff(null);
+                }
+            } finally {
+                closed = true;
+                put(END);
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while closing the output");
+                }
+            }
+            checkFailure();
+        }
+    }
+
+    /**
+     * Hands the current buffer, if it holds anything, to the writer thread
+     * and takes a free one.
+     *
+     * @param flushed Counted down once the destination is flushed, or null not to flush it
+     */
+    private void handOff(CountDownLatch flushed) throws IOException {
+        checkOpen();
+        if (position == 0) {
+            if (flushed != null) {
+                put(new Chunk(null, 0, flushed));
+            }
+            return;
+        }
+        put(new Chunk(buffer, position, flushed));
+        position = 0;
+        char[] next = free.poll();
+        if (next == null) {
+            long start = System.nanoTime();
+            try {
+                next = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the output");
+            }
+            if (metrics != null) {
+                metrics.addOutputWait(System.nanoTime() - start);
+            }
+        }
+        buffer = next;
+    }
+
+    private void put(Chunk chunk) throws InterruptedIOException {
+        try {
+            filled.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the output");
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw new IOException("Failed to write the output: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Runs on the writer thread until {@link #END}.
+     */
+    private void drain() {
+        while (true) {
+            Chunk chunk;
+            try {
+                chunk = filled.take();
+            } catch (InterruptedException e) {
+                failure = new InterruptedIOException("Interrupted while writing the output");
+                return;
+            }
+            try {
+                if (chunk == END) {
+                    out.close();
+                    return;
+                }
+                if (failure == null) {
+                    if (chunk.chars != null) {
+                        out.write(chunk.chars, 0, chunk.length);
+                    }
+                    if (chunk.flushed != null) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            } finally {
+                // even after a failure, so that writing never waits forever
+                if (chunk.chars != null) {
+                    free.add(chunk.chars);
+                }
+                if (chunk.flushed != null) {
+                    chunk.flushed.countDown();
+                }
+            }
+        }
+    }
+}
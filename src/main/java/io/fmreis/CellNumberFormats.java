@@ -0,0 +1,149 @@
+package io.fmreis;
+
+import org.apache.poi.ooxml.util.SAXHelper;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.usermodel.BuiltinFormats;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only styles table holding only what the event converters need:
+ * the number format of each cell style.
+ * <p>
+ * POI's {@link org.apache.poi.xssf.model.StylesTable} parses the styles
+ * part with XMLBeans, and loading the XMLBeans schema types it needs takes
+ * longer than converting a typical small workbook.  This table reads the
+ * {@code numFmts} and {@code cellXfs} elements with SAX instead, and
+ * {@link XSSFSheetTest} looks the formats up directly.  Fonts, fills,
+ * borders and cell styles are not available, so it is not a
+ * {@link org.apache.poi.xssf.model.Styles}: the parsers take it in place of one.
+ */
+public class CellNumberFormats extends DefaultHandler {
+    private static final String NS_SPREADSHEETML = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+
+    /**
+     * Estimated heap of a custom number format: map entry, string, and the
+     * parsed format cached by the data formatter
+     */
+    private static final long FORMAT_BYTES = 1024;
+
+    private final Map<Short, String> numberFormats = new HashMap<>();
+    private short[] formatIndexes = new short[16];
+    private int styleCount;
+    private boolean inCellXfs;
+
+    /**
+     * Loads the number formats of the styles part of the package.
+     *
+     * @param pkg The XLSX package
+     */
+    public CellNumberFormats(OPCPackage pkg) throws IOException, SAXException {
+        List<PackagePart> parts = pkg.getPartsByContentType(XSSFRelation.STYLES.getContentType());
+        if (!parts.isEmpty()) {
+            try (InputStream stream = parts.get(0).getInputStream()) {
+                readFrom(stream);
+            }
+        }
+    }
+
+    private void readFrom(InputStream stream) throws IOException, SAXException {
+        try {
+            XMLReader reader = SAXHelper.newXMLReader();
+            reader.setContentHandler(this);
+            reader.parse(new InputSource(stream));
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException("SAX parser appears to be broken - " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+        if (uri != null && !uri.equals(NS_SPREADSHEETML)) {
+            return;
+        }
+        if ("numFmt".equals(localName)) {
+            String id = attributes.getValue("numFmtId");
+            String formatCode = attributes.getValue("formatCode");
+            if (id != null && formatCode != null) {
+                numberFormats.put((short) Long.parseLong(id), formatCode);
+            }
+        } else if ("cellXfs".equals(localName)) {
+            inCellXfs = true;
+        } else if (inCellXfs && "xf".equals(localName)) {
+            String id = attributes.getValue("numFmtId");
+            if (styleCount == formatIndexes.length) {
+                formatIndexes = Arrays.copyOf(formatIndexes, styleCount * 2);
+            }
+            // like XSSFCellStyle.getDataFormat()
+            formatIndexes[styleCount++] = id == null ? 0 : (short) Long.parseLong(id);
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        if ("cellXfs".equals(localName) && (uri == null || uri.equals(NS_SPREADSHEETML))) {
+            inCellXfs = false;
+        }
+    }
+
+    /**
+     * @param styleIndex The index of a cell style, below {@link #getNumCellStyles()}
+     * @return The number format index of the cell style
+     */
+    short getFormatIndex(int styleIndex) {
+        return formatIndexes[styleIndex];
+    }
+
+    /**
+     * @param styleIndex The index of a cell style, below {@link #getNumCellStyles()}
+     * @return The number format string of the cell style, custom or built in
+     */
+    String getFormatString(int styleIndex) {
+        short formatIndex = formatIndexes[styleIndex];
+        String format = numberFormats.get(formatIndex);
+        return format != null ? format : BuiltinFormats.getBuiltinFormat(formatIndex);
+    }
+
+    /**
+     * Estimates the heap taken by the table, and by the formats the data
+     * formatter builds and caches for its custom number formats.
+     */
+    long getHeapBytes() {
+        long bytes = 2L * formatIndexes.length;
+        for (String format : numberFormats.values()) {
+            bytes += FORMAT_BYTES + 2L * format.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The custom number format of the id, or null if it is built in or unknown
+     */
+    public String getNumberFormatAt(short fmtId) {
+        return numberFormats.get(fmtId);
+    }
+
+    public int getNumCellStyles() {
+        return styleCount;
+    }
+
+    /**
+     * @return The number of custom number formats
+     */
+    public int getNumDataFormats() {
+        return numberFormats.size();
+    }
+}
@@ -0,0 +1,370 @@
+package io.fmreis;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * On-disk cache of conversion results, keyed by the content of the
+ * workbook and the options of the conversion, so that a workbook that
+ * arrives again under another name is answered without opening it.
+ * <p>
+ * The key of a workbook is a 64-bit FNV-1a hash of the names, CRC-32s
+ * and sizes of its zip entries, read from the central directory only,
+ * of the options and of the {@link #FORMAT_VERSION version of the output}:
+ * the same sheets zipped again, with other timestamps or compression, get
+ * the same key, and the results of older converters are never answered.
+ * The results are files of the cache directory named after their key,
+ * evicted least recently used first once they take more than the maximum
+ * size.  The order of use survives restarts through the modification
+ * time of the files.
+ * <p>
+ * A result is stored with {@link #record(String, OutputStream)}, which
+ * copies the CSV as it is written to its destination, and read back with
+ * {@link #get(String)}.  Results are written to temporary files of the
+ * cache directory first, which may be shared by several processes; those
+ * left by a process that died are deleted once they are a day old.
+ */
+public class ConversionCache {
+    /**
+     * Version of the CSV written by the converter, part of every key.
+     * Increase it with every change of the output, such as one that
+     * rewrites the golden files of the tests.
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private static final String SUFFIX = ".csv";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * Age after which a temporary file can no longer belong to a running conversion
+     */
+    private static final long STALE_TEMPORARY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final File directory;
+    private final long maxBytes;
+
+    /**
+     * Sizes of the results by key, in order of use
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Opens a cache directory, with the results already in it.
+     *
+     * @param directory The directory of the results, created if missing
+     * @param maxBytes  The size the results may take together
+     */
+    public ConversionCache(File directory, long maxBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the cache directory " + directory);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        File[] files = directory.listFiles();
+        long staleBefore = System.currentTimeMillis() - STALE_TEMPORARY_MILLIS;
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(a.lastModified(), b.lastModified());
+                }
+            });
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SUFFIX)) {
+                    entries.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+                    bytes += file.length();
+                } else if (name.endsWith(TEMPORARY_SUFFIX) && file.lastModified() < staleBefore) {
+                    // left by a conversion that did not complete, and not one of another process still running
+                    file.delete();
+                }
+            }
+        }
+        synchronized (this) {
+            evict();
+        }
+    }
+
+    /**
+     * Computes the key of a workbook from its zip central directory, in
+     * far less time than opening it.
+     *
+     * @param workbook The workbook
+     * @param options  The options of the conversion that change its output
+     * @return The key of the result
+     * @throws IOException If the file is not a zip file
+     */
+    public static String key(File workbook, String options) throws IOException {
+        List<ZipEntry> zipEntries = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(workbook)) {
+            Enumeration<? extends ZipEntry> e = zip.entries();
+            while (e.hasMoreElements()) {
+                zipEntries.add(e.nextElement());
+            }
+        }
+        // the order of the entries does not change the workbook
+        Collections.sort(zipEntries, new Comparator<ZipEntry>() {
+            @Override
+            public int compare(ZipEntry a, ZipEntry b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        long hash = FNV_OFFSET_BASIS;
+        for (ZipEntry entry : zipEntries) {
+            hash = hash(hash, entry.getName().getBytes(StandardCharsets.UTF_8));
+            hash = hash(hash, entry.getCrc());
+            hash = hash(hash, entry.getSize());
+        }
+        hash = hash(hash, options.getBytes(StandardCharsets.UTF_8));
+        hash = hash(hash, FORMAT_VERSION);
+        return String.format("%016x", hash);
+    }
+
+    private static long hash(long hash, byte[] bytes) {
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        // separates the fields, so that "ab" "c" and "a" "bc" differ
+        return (hash ^ 0xff) * FNV_PRIME;
+    }
+
+    private static long hash(long hash, long value) {
+        for (int shift = 0; shift < 64; shift += 8) {
+            hash = (hash ^ ((value >>> shift) & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Looks a result up, and counts a hit or a miss.
+     *
+     * @param key The key of the result
+     * @return The stream of the result, to be closed by the caller, or
+     *         null if the cache does not have it
+     */
+    public synchronized InputStream get(String key) {
+        // moves the result to the most recently used
+        if (entries.get(key) == null) {
+            misses++;
+            return null;
+        }
+        File file = new File(directory, key + SUFFIX);
+        InputStream input;
+        try {
+            // an open file can still be read once evicted
+            input = new FileInputStream(file);
+        } catch (IOException e) {
+            remove(key);
+            misses++;
+            return null;
+        }
+        hits++;
+        file.setLastModified(System.currentTimeMillis());
+        return input;
+    }
+
+    /**
+     * Starts storing a result.
+     *
+     * @param key    The key of the result
+     * @param output The destination the result is written to as well
+     * @return The stream to write the result to, which stores it when
+     *         {@link Recording#commit() committed}
+     */
+    public Recording record(String key, OutputStream output) throws IOException {
+        File temporary = File.createTempFile(key, TEMPORARY_SUFFIX, directory);
+        return new Recording(key, output, temporary);
+    }
+
+    private synchronized void put(String key, File temporary) throws IOException {
+        long size = temporary.length();
+        if (size > maxBytes) {
+            temporary.delete();
+            return;
+        }
+        Files.move(temporary.toPath(), new File(directory, key + SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Long previous = entries.put(key, size);
+        bytes += size - (previous == null ? 0 : previous);
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            new File(directory, entry.getKey() + SUFFIX).delete();
+            bytes -= entry.getValue();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private void remove(String key) {
+        Long size = entries.remove(key);
+        if (size != null) {
+            bytes -= size;
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The share of the lookups that were hits, or 0 before any
+     */
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : hits / (double) lookups;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "cache " + directory + ": " + entries.size() + " results, " + bytes + " of " + maxBytes + " bytes, "
+                + hits + " hits, " + misses + " misses (" + Math.round(getHitRate() * 100) + "% hit rate), "
+                + evictions + " evictions";
+    }
+
+    /**
+     * A result being written to its destination and to the cache.  A
+     * failure of the cache (a full disk) only drops the result from it.
+     */
+    public class Recording extends FilterOutputStream {
+        private final String key;
+        private final File temporary;
+        private OutputStream copy;
+
+        Recording(String key, OutputStream output, File temporary) throws IOException {
+            super(output);
+            this.key = key;
+            this.temporary = temporary;
+            this.copy = new FileOutputStream(temporary);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                // the copy would miss what the destination did not get
+                discard();
+                throw e;
+            }
+            if (copy != null) {
+                try {
+                    copy.write(b);
+                } catch (IOException e) {
+                    discard();
+                }
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                discard();
+                throw e;
+            }
+            if (copy != null) {
+                try {
+                    copy.write(b, off, len);
+                } catch (IOException e) {
+                    discard();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                discard();
+                throw e;
+            }
+        }
+
+        /**
+         * Stores the result written so far, once it is complete.  Nothing
+         * is stored once a write to the destination has failed.
+         */
+        public void commit() throws IOException {
+            flush();
+            if (copy != null) {
+                try {
+                    copy.close();
+                    copy = null;
+                    put(key, temporary);
+                } catch (IOException e) {
+                    discard();
+                }
+            }
+        }
+
+        private void discard() {
+            if (copy != null) {
+                try {
+                    copy.close();
+                } catch (IOException ignored) {
+                    // deleted anyway
+                }
+                copy = null;
+            }
+            temporary.delete();
+        }
+
+        /**
+         * Closes the destination, and discards the result if it was not committed.
+         */
+        @Override
+        public void close() throws IOException {
+            if (copy != null) {
+                discard();
+            }
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package io.fmreis;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Java Flight Recorder events emitted by the converter, one per sheet,
+ * one per batch of {@link #ROW_BATCH_SIZE} rows, and one per shared
+ * strings table moved to disk.
+ * <p>
+ * They are only produced while a recording is running (e.g. started
+ * with {@code -XX:StartFlightRecording}), and can be switched off in
+ * the recording settings with {@code io.fmreis.RowBatch#enabled=false}.
+ * When recorded, a batch costs one allocation and a few clock reads on
+ * top of the per-cell format/write timing; without a recording the
+ * converter does not touch them at all.
+ */
+final class ConversionEvents {
+
+    /**
+     * Number of rows covered by one {@link RowBatchEvent}
+     */
+    static final int ROW_BATCH_SIZE = 1024;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final boolean ALLOCATION_COUNTING = THREADS instanceof com.sun.management.ThreadMXBean
+            && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported()
+            && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemoryEnabled();
+
+    private ConversionEvents() {
+    }
+
+    @Name("io.fmreis.Sheet")
+    @Label("Sheet Conversion")
+    @Category("XLSX2CSV")
+    @Description("Conversion of one sheet")
+    @StackTrace(false)
+    static class SheetEvent extends Event {
+        @Label("Sheet")
+        String sheetName;
+
+        @Label("Rows")
+        long rows;
+
+        @Label("Cells")
+        long cells;
+
+        @Label("Inflated")
+        @DataAmount
+        long bytesInflated;
+
+        @Label("Unzip Time")
+        @Timespan
+        long unzipNanos;
+
+        @Label("Format Time")
+        @Timespan
+        long formatNanos;
+
+        @Label("Write Time")
+        @Timespan
+        long writeNanos;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocatedBytes;
+    }
+
+    @Name("io.fmreis.RowBatch")
+    @Label("Row Batch")
+    @Category("XLSX2CSV")
+    @Description("Conversion of a batch of consecutive rows of a sheet")
+    @StackTrace(false)
+    static class RowBatchEvent extends Event {
+        @Label("Sheet")
+        String sheetName;
+
+        @Label("First Row")
+        int firstRow;
+
+        @Label("Rows")
+        int rows;
+
+        @Label("Cells")
+        int cells;
+
+        @Label("Format Time")
+        @Timespan
+        long formatNanos;
+
+        @Label("Write Time")
+        @Timespan
+        long writeNanos;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocatedBytes;
+    }
+
+    @Name("io.fmreis.SharedStringsSpill")
+    @Label("Shared Strings Spill")
+    @Category("XLSX2CSV")
+    @Description("Move of a shared strings table exceeding its budget to disk")
+    @StackTrace(false)
+    static class SharedStringsSpillEvent extends Event {
+        @Label("Budget")
+        @DataAmount
+        long budgetBytes;
+
+        @Label("Strings In Memory")
+        int stringsInMemory;
+
+        @Label("Strings")
+        int strings;
+
+        @Label("Spilled")
+        @DataAmount
+        long spilledBytes;
+    }
+
+    /**
+     * @return Whether any of the converter events are being recorded
+     */
+    static boolean isRecording() {
+        return FlightRecorder.isInitialized()
+                && (new SheetEvent().isEnabled() || new RowBatchEvent().isEnabled());
+    }
+
+    /**
+     * @return The bytes allocated so far by the current thread, or 0 if the JVM cannot tell
+     */
+    static long allocatedBytes() {
+        if (!ALLOCATION_COUNTING) {
+            return 0;
+        }
+        return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,225 @@
+package io.fmreis;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.openxml4j.opc.PackageRelationshipCollection;
+import org.apache.poi.openxml4j.opc.PackageRelationshipTypes;
+import org.apache.poi.openxml4j.opc.ZipPackagePart;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The record of an incremental conversion to an output directory: the
+ * zip entry (CRC-32 and size) each sheet was converted from, its output
+ * file, and whether it refers to shared strings, along with the entries
+ * of the workbook, shared strings and styles parts and the conversion
+ * options.
+ * <p>
+ * A sheet is unchanged, and its output file reused, when its own entry,
+ * the workbook, the styles and the options are the same as recorded, and
+ * the shared strings too if the sheet refers to any.  The workbook part
+ * holds settings of all sheets, such as the date system, so any change of
+ * it (sheets added, removed or renamed included) converts all of them.  The manifest is kept as a
+ * properties file in the output directory, replaced atomically.
+ */
+final class ConversionManifest {
+    static final String FILE_NAME = ".xlsx2csv-manifest";
+
+    static final String WORKBOOK = "workbook";
+    static final String SHARED_STRINGS = "sharedStrings";
+    static final String STYLES = "styles";
+    static final String NO_PART = "none";
+
+    private static final String OPTIONS = "options";
+    private static final String PART = "part.";
+    private static final String SHEET = "sheet.";
+    private static final String ENTRY = ".entry";
+    private static final String FILE = ".file";
+    private static final String USES_SHARED_STRINGS = ".sharedStrings";
+
+    private final Properties properties = new Properties();
+
+    /**
+     * @return The manifest of the directory, empty if it has none
+     */
+    static ConversionManifest load(File directory) throws IOException {
+        ConversionManifest manifest = new ConversionManifest();
+        File file = new File(directory, FILE_NAME);
+        if (file.isFile()) {
+            try (InputStream input = new FileInputStream(file)) {
+                manifest.properties.load(input);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Replaces the manifest of the directory with this one.
+     */
+    synchronized void save(File directory) throws IOException {
+        File temporary = new File(directory, FILE_NAME + ".tmp");
+        try (OutputStream output = new FileOutputStream(temporary)) {
+            properties.store(output, "xlsx2csv incremental conversion");
+        }
+        Files.move(temporary.toPath(), new File(directory, FILE_NAME).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return The CRC-32 and size of the zip entry of a part, or null if
+     *         unknown (the package was not read from a zip file, or the
+     *         entry was streamed without them)
+     */
+    static String entryOf(PackagePart part) {
+        if (!(part instanceof ZipPackagePart)) {
+            return null;
+        }
+        ZipArchiveEntry entry = ((ZipPackagePart) part).getZipArchive();
+        if (entry == null || entry.getCrc() < 0 || entry.getSize() < 0) {
+            return null;
+        }
+        return Long.toHexString(entry.getCrc()) + ":" + entry.getSize();
+    }
+
+    /**
+     * @return The entry of the first part of the package of that kind,
+     *         {@link #NO_PART} if it has none, or null if it is unknown
+     */
+    static String entryOf(OPCPackage pkg, XSSFRelation relation) {
+        List<PackagePart> parts = pkg.getPartsByContentType(relation.getContentType());
+        return parts.isEmpty() ? NO_PART : entryOf(parts.get(0));
+    }
+
+    /**
+     * @return The entry of the workbook part, the target of the office
+     *         document relationship of the package, or null if it is unknown
+     */
+    static String workbookEntryOf(OPCPackage pkg) {
+        PackageRelationshipCollection documents = pkg.getRelationshipsByType(PackageRelationshipTypes.CORE_DOCUMENT);
+        PackagePart part = documents.size() == 0 ? null : pkg.getPart(documents.getRelationship(0));
+        return part == null ? null : entryOf(part);
+    }
+
+    synchronized String getOptions() {
+        return properties.getProperty(OPTIONS);
+    }
+
+    synchronized void setOptions(String options) {
+        properties.setProperty(OPTIONS, options);
+    }
+
+    /**
+     * @param name {@link #WORKBOOK}, {@link #SHARED_STRINGS} or {@link #STYLES}
+     * @return The entry of the part, {@link #NO_PART} if the workbook has
+     *         none, or null if it is unknown
+     */
+    synchronized String getPart(String name) {
+        return properties.getProperty(PART + name);
+    }
+
+    synchronized void setPart(String name, String entry) {
+        if (entry == null) {
+            properties.remove(PART + name);
+        } else {
+            properties.setProperty(PART + name, entry);
+        }
+    }
+
+    /**
+     * @return The entry the sheet was converted from, or null if it was not
+     */
+    synchronized String getSheetEntry(String sheetName) {
+        return properties.getProperty(SHEET + sheetName + ENTRY);
+    }
+
+    /**
+     * @return The name of the output file of the sheet, or null if it was not converted
+     */
+    synchronized String getSheetFile(String sheetName) {
+        return properties.getProperty(SHEET + sheetName + FILE);
+    }
+
+    synchronized boolean usesSharedStrings(String sheetName) {
+        return !"false".equals(properties.getProperty(SHEET + sheetName + USES_SHARED_STRINGS));
+    }
+
+    /**
+     * Records a converted sheet.
+     *
+     * @param entry The entry the sheet was converted from, or null if unknown
+     */
+    synchronized void putSheet(String sheetName, String entry, String fileName, boolean usesSharedStrings) {
+        // without an entry the sheet can never be found unchanged
+        if (entry != null) {
+            properties.setProperty(SHEET + sheetName + ENTRY, entry);
+        } else {
+            properties.remove(SHEET + sheetName + ENTRY);
+        }
+        properties.setProperty(SHEET + sheetName + FILE, fileName);
+        properties.setProperty(SHEET + sheetName + USES_SHARED_STRINGS, Boolean.toString(usesSharedStrings));
+    }
+
+    /**
+     * Copies the record of a sheet from another manifest.
+     */
+    void copySheet(ConversionManifest from, String sheetName) {
+        String fileName = from.getSheetFile(sheetName);
+        if (fileName != null) {
+            putSheet(sheetName, from.getSheetEntry(sheetName), fileName, from.usesSharedStrings(sheetName));
+        }
+    }
+
+    synchronized void removeSheet(String sheetName) {
+        properties.remove(SHEET + sheetName + ENTRY);
+        properties.remove(SHEET + sheetName + FILE);
+        properties.remove(SHEET + sheetName + USES_SHARED_STRINGS);
+    }
+
+    /**
+     * @return The names of the sheets recorded
+     */
+    synchronized List<String> getSheetNames() {
+        List<String> names = new ArrayList<>();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(SHEET) && key.endsWith(FILE)) {
+                names.add(key.substring(SHEET.length(), key.length() - FILE.length()));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @param current  The manifest of this conversion, with its options and parts set
+     * @param entry    The current entry of the sheet
+     * @return Whether the sheet converts to the same output as recorded in
+     *         this manifest, and its output file is still there
+     */
+    boolean isUnchanged(ConversionManifest current, String sheetName, String entry, File directory) {
+        String fileName = getSheetFile(sheetName);
+        return entry != null
+                && entry.equals(getSheetEntry(sheetName))
+                && fileName != null && new File(directory, fileName).isFile()
+                && current.getOptions().equals(getOptions())
+                && isSame(current, WORKBOOK)
+                && isSame(current, STYLES)
+                && (!usesSharedStrings(sheetName) || isSame(current, SHARED_STRINGS));
+    }
+
+    private boolean isSame(ConversionManifest current, String part) {
+        String entry = current.getPart(part);
+        // a part that cannot be told unchanged is changed
+        return entry != null && entry.equals(getPart(part));
+    }
+}
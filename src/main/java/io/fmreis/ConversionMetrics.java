@@ -0,0 +1,582 @@
+package io.fmreis;
+
+import com.sun.management.GcInfo;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, stage timings and per-sheet throughput of XLSX conversions.
+ * <p>
+ * One instance may be shared by several conversions (even concurrent
+ * ones), in which case the values are aggregated.  The instance can be
+ * published through JMX with {@link #register(String)}, polled through
+ * its getters, or observed through a {@link ConversionProgressListener}
+ * which is called every few seconds while a sheet is being converted.
+ * <p>
+ * Stage timings are kept as {@link StageTimer} histograms.  The unzip
+ * stage is sampled per read on the inflating stream, the formatting and
+ * writing stages per cell and the SAX stage (parse time not spent in any
+ * of the other stages) per sheet.  Per-cell timing costs two calls to
+ * {@link System#nanoTime()} per stage, so it is off unless switched on
+ * with {@link #setTimingEnabled(boolean)}, also through JMX; only the
+ * counters are kept meanwhile.
+ */
+public class ConversionMetrics implements ConversionMetricsMBean {
+
+    /**
+     * The stages of a conversion which are timed separately
+     */
+    public enum Stage {
+        UNZIP,
+        SAX,
+        FORMAT,
+        WRITE
+    }
+
+    /**
+     * A log2 histogram of durations in nanoseconds: bucket {@code i}
+     * counts the samples in {@code [2^i, 2^(i+1))}.
+     */
+    public static class StageTimer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+        public void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            count.increment();
+            totalNanos.add(nanos);
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos | 1));
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        /**
+         * @param quantile A value between 0 and 1
+         * @return The upper bound of the bucket holding the quantile, in nanoseconds
+         */
+        public long getQuantileNanos(double quantile) {
+            long total = 0;
+            long[] snapshot = new long[buckets.length()];
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank && seen > 0) {
+                    return i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                }
+            }
+            return 0;
+        }
+
+        void reset() {
+            count.reset();
+            totalNanos.reset();
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + getCount()
+                    + " total=" + TimeUnit.NANOSECONDS.toMillis(getTotalNanos()) + "ms"
+                    + " p50<=" + getQuantileNanos(0.5) + "ns"
+                    + " p99<=" + getQuantileNanos(0.99) + "ns";
+        }
+    }
+
+    /**
+     * Row count and throughput of a single sheet
+     */
+    public static class SheetStats {
+        private final String sheetName;
+        private final long startNanos;
+        private volatile long endNanos;
+        private volatile long rows;
+
+        SheetStats(String sheetName) {
+            this.sheetName = sheetName;
+            this.startNanos = System.nanoTime();
+        }
+
+        public String getSheetName() {
+            return sheetName;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public boolean isFinished() {
+            return endNanos != 0;
+        }
+
+        public long getElapsedNanos() {
+            long end = endNanos;
+            return (end != 0 ? end : System.nanoTime()) - startNanos;
+        }
+
+        public double getRowsPerSecond() {
+            long elapsed = getElapsedNanos();
+            return elapsed <= 0 ? 0 : rows * 1e9 / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return sheetName + ": " + rows + " rows in "
+                    + TimeUnit.NANOSECONDS.toMillis(getElapsedNanos()) + "ms ("
+                    + Math.round(getRowsPerSecond()) + " rows/s)";
+        }
+    }
+
+    ///////////////////////////////////////
+
+    /**
+     * Number of finished sheets kept, so that long-lived metrics stay bounded
+     */
+    public static final int MAX_FINISHED_SHEETS = 1000;
+
+    /**
+     * Number of rows of a sheet between two samples of the heap
+     */
+    private static final int HEAP_SAMPLE_ROWS = 4096;
+
+    private static final Set<String> HEAP_POOL_NAMES = new HashSet<>();
+
+    static {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                HEAP_POOL_NAMES.add(pool.getName());
+            }
+        }
+    }
+
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder cells = new LongAdder();
+    private final LongAdder bytesInflated = new LongAdder();
+    private final LongAdder charsWritten = new LongAdder();
+    private final LongAdder stringLookups = new LongAdder();
+    private final LongAdder stringsDeduplicated = new LongAdder();
+    private final LongAdder outputWaitNanos = new LongAdder();
+    private volatile long sharedStringsCount;
+    private volatile long sharedStringsUniqueCount;
+    private volatile long sharedStringsHeapBytes;
+    private volatile long sharedStringsSpilledBytes;
+    private volatile long heapUsedBytes;
+    private final AtomicLong peakHeapUsedBytes = new AtomicLong();
+    private final AtomicLong peakHeapLiveBytes = new AtomicLong();
+
+    private final StageTimer[] timers = new StageTimer[Stage.values().length];
+    private volatile boolean timingEnabled;
+
+    private final Queue<SheetStats> finishedSheets = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger finishedSheetCount = new AtomicInteger();
+    private volatile SheetStats currentSheet;
+
+    private volatile ConversionProgressListener progressListener;
+    private volatile long progressIntervalNanos;
+    private final AtomicLong lastProgressNanos = new AtomicLong();
+
+    public ConversionMetrics() {
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new StageTimer();
+        }
+    }
+
+    /**
+     * Sets the listener to be called while sheets are converted.
+     *
+     * @param listener       The listener, or null to remove it
+     * @param intervalMillis The minimum time between two calls
+     */
+    public void setProgressListener(ConversionProgressListener listener, long intervalMillis) {
+        this.progressIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.lastProgressNanos.set(System.nanoTime());
+        this.progressListener = listener;
+    }
+
+    @Override
+    public boolean isTimingEnabled() {
+        return timingEnabled;
+    }
+
+    /**
+     * Sets whether the stages are timed, from the next sheet on.  Off by default.
+     */
+    @Override
+    public void setTimingEnabled(boolean timingEnabled) {
+        this.timingEnabled = timingEnabled;
+    }
+
+    /**
+     * Publishes this instance on the platform MBean server.
+     *
+     * @param name The {@code name} key of the object name, e.g. the worker id
+     * @return The object name under which the bean was registered
+     */
+    public ObjectName register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("io.fmreis:type=ConversionMetrics,name=" + ObjectName.quote(name));
+        try {
+            server.registerMBean(this, objectName);
+        } catch (InstanceAlreadyExistsException e) {
+            server.unregisterMBean(objectName);
+            server.registerMBean(this, objectName);
+        }
+        return objectName;
+    }
+
+    ///////////////////////////////////////
+
+    SheetStats startSheet(String sheetName) {
+        SheetStats sheet = new SheetStats(sheetName);
+        currentSheet = sheet;
+        return sheet;
+    }
+
+    void endSheet(SheetStats sheet) {
+        sheet.endNanos = System.nanoTime();
+        finishedSheets.add(sheet);
+        if (finishedSheetCount.incrementAndGet() > MAX_FINISHED_SHEETS && finishedSheets.poll() != null) {
+            finishedSheetCount.decrementAndGet();
+        }
+        if (currentSheet == sheet) {
+            currentSheet = null;
+        }
+        sampleHeap();
+        fireProgress(sheet, sheet.endNanos);
+    }
+
+    void rowCompleted(SheetStats sheet) {
+        rows.increment();
+        if (++sheet.rows % HEAP_SAMPLE_ROWS == 0) {
+            sampleHeap();
+        }
+        if (progressListener != null) {
+            long now = System.nanoTime();
+            long last = lastProgressNanos.get();
+            // conversions sharing these metrics race for the call, one of them wins it
+            if (now - last >= progressIntervalNanos && lastProgressNanos.compareAndSet(last, now)) {
+                sampleHeap();
+                fireProgress(sheet, now);
+            }
+        }
+    }
+
+    void cellCompleted() {
+        cells.increment();
+    }
+
+    void addBytesInflated(long bytes) {
+        bytesInflated.add(bytes);
+    }
+
+    void addCharsWritten(long chars) {
+        charsWritten.add(chars);
+    }
+
+    /**
+     * Adds the lookups made in a deduplicator since it was last recorded.
+     */
+    void addDeduplication(long lookups, long hits) {
+        stringLookups.add(lookups);
+        stringsDeduplicated.add(hits);
+    }
+
+    /**
+     * Adds the time a conversion waited for its output to free a buffer.
+     */
+    void addOutputWait(long nanos) {
+        outputWaitNanos.add(nanos);
+    }
+
+    void recordSharedStrings(SpillableSharedStringsTable strings) {
+        this.sharedStringsCount = strings.getCount();
+        this.sharedStringsUniqueCount = strings.getUniqueCount();
+        this.sharedStringsHeapBytes = strings.getHeapBytes();
+        this.sharedStringsSpilledBytes = strings.getSpilledBytes();
+        sampleHeap();
+    }
+
+    void record(Stage stage, long nanos) {
+        timers[stage.ordinal()].record(nanos);
+    }
+
+    private void sampleHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        heapUsedBytes = used;
+        raise(peakHeapUsedBytes, used);
+        raise(peakHeapLiveBytes, heapAfterLastGc());
+    }
+
+    /**
+     * @return The heap in use right after the most recent garbage collection,
+     *         0 if there was none or the JVM does not tell
+     */
+    private static long heapAfterLastGc() {
+        GcInfo last = null;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof com.sun.management.GarbageCollectorMXBean) {
+                GcInfo info = ((com.sun.management.GarbageCollectorMXBean) collector).getLastGcInfo();
+                if (info != null && (last == null || info.getEndTime() > last.getEndTime())) {
+                    last = info;
+                }
+            }
+        }
+        long bytes = 0;
+        if (last != null) {
+            for (Map.Entry<String, MemoryUsage> pool : last.getMemoryUsageAfterGc().entrySet()) {
+                if (HEAP_POOL_NAMES.contains(pool.getKey())) {
+                    bytes += pool.getValue().getUsed();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static void raise(AtomicLong peak, long value) {
+        long current;
+        while (value > (current = peak.get()) && !peak.compareAndSet(current, value)) {
+            // another thread raised it, compare again
+        }
+    }
+
+    private void fireProgress(SheetStats sheet, long now) {
+        ConversionProgressListener listener = progressListener;
+        if (listener != null) {
+            lastProgressNanos.set(now);
+            listener.onProgress(this, sheet);
+        }
+    }
+
+    ///////////////////////////////////////
+
+    public StageTimer getTimer(Stage stage) {
+        return timers[stage.ordinal()];
+    }
+
+    /**
+     * @return The last {@value #MAX_FINISHED_SHEETS} sheets converted, in completion order
+     */
+    public List<SheetStats> getFinishedSheets() {
+        return new ArrayList<>(finishedSheets);
+    }
+
+    @Override
+    public long getRows() {
+        return rows.sum();
+    }
+
+    @Override
+    public long getCells() {
+        return cells.sum();
+    }
+
+    @Override
+    public long getBytesInflated() {
+        return bytesInflated.sum();
+    }
+
+    @Override
+    public long getCharsWritten() {
+        return charsWritten.sum();
+    }
+
+    @Override
+    public long getStringLookups() {
+        return stringLookups.sum();
+    }
+
+    @Override
+    public long getStringsDeduplicated() {
+        return stringsDeduplicated.sum();
+    }
+
+    /**
+     * @return The share of inline string values which reused an existing instance
+     */
+    @Override
+    public double getDeduplicationRatio() {
+        long lookups = stringLookups.sum();
+        return lookups == 0 ? 0 : (double) stringsDeduplicated.sum() / lookups;
+    }
+
+    @Override
+    public long getSharedStringsCount() {
+        return sharedStringsCount;
+    }
+
+    @Override
+    public long getSharedStringsUniqueCount() {
+        return sharedStringsUniqueCount;
+    }
+
+    @Override
+    public long getSharedStringsHeapBytes() {
+        return sharedStringsHeapBytes;
+    }
+
+    /**
+     * @return The bytes of the shared strings moved to disk for exceeding
+     *         their budget, or 0 if they were all kept in memory
+     */
+    @Override
+    public long getSharedStringsSpilledBytes() {
+        return sharedStringsSpilledBytes;
+    }
+
+    @Override
+    public long getHeapUsedBytes() {
+        return heapUsedBytes;
+    }
+
+    /**
+     * @return The most heap in use at the samples taken (at the end of each
+     *         sheet and every few thousand rows), garbage included
+     */
+    @Override
+    public long getPeakHeapUsedBytes() {
+        return peakHeapUsedBytes.get();
+    }
+
+    /**
+     * @return The most heap in use right after a garbage collection, as
+     *         seen at the samples taken, which is what a memory budget must hold
+     * @see MemoryBudget
+     */
+    @Override
+    public long getPeakHeapLiveBytes() {
+        return peakHeapLiveBytes.get();
+    }
+
+    @Override
+    public long getUnzipNanos() {
+        return getTimer(Stage.UNZIP).getTotalNanos();
+    }
+
+    @Override
+    public long getSaxNanos() {
+        return getTimer(Stage.SAX).getTotalNanos();
+    }
+
+    @Override
+    public long getFormatNanos() {
+        return getTimer(Stage.FORMAT).getTotalNanos();
+    }
+
+    @Override
+    public long getWriteNanos() {
+        return getTimer(Stage.WRITE).getTotalNanos();
+    }
+
+    /**
+     * @return The time spent waiting for an {@link AsyncWriter} to free a
+     *         buffer, when the storage is slower than the conversion
+     */
+    @Override
+    public long getOutputWaitNanos() {
+        return outputWaitNanos.sum();
+    }
+
+    /**
+     * @return The throughput of the sheet being converted, or of the last finished one
+     */
+    @Override
+    public double getRowsPerSecond() {
+        SheetStats sheet = currentSheet;
+        if (sheet == null) {
+            for (SheetStats finished : finishedSheets) {
+                sheet = finished;
+            }
+        }
+        return sheet == null ? 0 : sheet.getRowsPerSecond();
+    }
+
+    @Override
+    public String getCurrentSheet() {
+        SheetStats sheet = currentSheet;
+        return sheet == null ? null : sheet.getSheetName();
+    }
+
+    @Override
+    public void reset() {
+        rows.reset();
+        cells.reset();
+        bytesInflated.reset();
+        charsWritten.reset();
+        stringLookups.reset();
+        stringsDeduplicated.reset();
+        outputWaitNanos.reset();
+        sharedStringsCount = 0;
+        sharedStringsUniqueCount = 0;
+        sharedStringsHeapBytes = 0;
+        sharedStringsSpilledBytes = 0;
+        heapUsedBytes = 0;
+        peakHeapUsedBytes.set(0);
+        peakHeapLiveBytes.set(0);
+        for (StageTimer timer : timers) {
+            timer.reset();
+        }
+        finishedSheets.clear();
+        finishedSheetCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("rows=").append(getRows())
+                .append(" cells=").append(getCells())
+                .append(" bytesInflated=").append(getBytesInflated())
+                .append(" charsWritten=").append(getCharsWritten())
+                .append(" deduplicated=").append(getStringsDeduplicated()).append('/').append(getStringLookups())
+                .append(" sst=").append(getSharedStringsUniqueCount()).append('/').append(getSharedStringsCount())
+                .append(" sstHeapBytes=").append(getSharedStringsHeapBytes())
+                .append(" sstSpilledBytes=").append(getSharedStringsSpilledBytes())
+                .append(" heapUsedBytes=").append(getHeapUsedBytes())
+                .append(" peakHeapUsedBytes=").append(getPeakHeapUsedBytes())
+                .append(" peakHeapLiveBytes=").append(getPeakHeapLiveBytes())
+                .append(" outputWaitNanos=").append(getOutputWaitNanos());
+        for (Stage stage : Stage.values()) {
+            sb.append('\n').append(stage).append(": ").append(getTimer(stage));
+        }
+        for (SheetStats sheet : finishedSheets) {
+            sb.append('\n').append(sheet);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,58 @@
+package io.fmreis;
+
+/**
+ * JMX view of a {@link ConversionMetrics} instance.
+ * <p>
+ * All values are cumulative since the metrics object was
+ * created (or last {@link #reset() reset}).
+ */
+public interface ConversionMetricsMBean {
+
+    long getRows();
+
+    long getCells();
+
+    long getBytesInflated();
+
+    long getCharsWritten();
+
+    long getStringLookups();
+
+    long getStringsDeduplicated();
+
+    double getDeduplicationRatio();
+
+    long getSharedStringsCount();
+
+    long getSharedStringsUniqueCount();
+
+    long getSharedStringsHeapBytes();
+
+    long getSharedStringsSpilledBytes();
+
+    long getHeapUsedBytes();
+
+    long getPeakHeapUsedBytes();
+
+    long getPeakHeapLiveBytes();
+
+    long getUnzipNanos();
+
+    long getSaxNanos();
+
+    long getFormatNanos();
+
+    long getWriteNanos();
+
+    long getOutputWaitNanos();
+
+    double getRowsPerSecond();
+
+    boolean isTimingEnabled();
+
+    void setTimingEnabled(boolean timingEnabled);
+
+    String getCurrentSheet();
+
+    void reset();
+}
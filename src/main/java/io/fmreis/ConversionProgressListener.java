@@ -0,0 +1,18 @@
+package io.fmreis;
+
+/**
+ * Callback invoked periodically while a workbook is being converted.
+ * <p>
+ * Listeners are called on the converting thread, so they should
+ * return quickly; anything expensive should be handed off.
+ *
+ * @see ConversionMetrics#setProgressListener(ConversionProgressListener, long)
+ */
+public interface ConversionProgressListener {
+
+    /**
+     * @param metrics The metrics of the running conversion
+     * @param sheet   The statistics of the sheet being converted
+     */
+    void onProgress(ConversionMetrics metrics, ConversionMetrics.SheetStats sheet);
+}
@@ -0,0 +1,652 @@
+package io.fmreis;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.util.POILogFactory;
+import org.apache.poi.util.POILogger;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resident conversion service, so that conversions run in a warm JVM
+ * instead of paying class loading, JIT warm-up and POI initialisation
+ * once per file.
+ * <p>
+ * The server listens on a local HTTP port:
+ * <ul>
+ * <li>{@code POST /convert} with the workbook as the request body answers
+ * with the CSV of all its sheets, streamed as it is written.  The query
+ * may set {@code separator}, {@code lang}, {@code headerRows},
+ * {@code schema=true}, {@code sparse=true} and {@code formulas=true}
+ * (see the setters of {@link XLSX2CSVImproved}).</li>
+ * <li>{@code GET /convert?path=...} converts a file of the server's file
+ * system instead, if {@link #setLocalFilesAllowed(boolean) allowed}.</li>
+ * <li>{@code POST /preview} (or {@code GET /preview?path=...}) answers with
+ * the first {@code rows} rows (default {@value WorkbookPreview#DEFAULT_ROWS},
+ * at most {@value #MAX_PREVIEW_ROWS}) of every sheet, each row starting
+ * with the name of its sheet (see {@link WorkbookPreview}).  A preview
+ * is neither profiled nor cached, and only reserves the base heap.</li>
+ * <li>{@code GET /metrics} answers with the metrics of all conversions so far.</li>
+ * </ul>
+ * With a {@link #setCache(ConversionCache) cache}, a workbook converted
+ * before with the same query is answered from it, before any admission
+ * and without opening the workbook.
+ * Requests are received on threads of their own, and at most
+ * {@link #setMaxPendingJobs(int) a number of} conversions and previews at
+ * once, each of at most {@link #setMaxRequestBytes(long) a size}, so that
+ * the workbooks spooled to disk are bounded too.  Jobs run on a fixed pool
+ * of worker threads, each of which keeps its SAX reader, data formatter
+ * and sheet handler (see {@link SheetParserPool}) across jobs.  Before a
+ * job is started, its heap is estimated from
+ * {@link XLSXAnalyser#profile(File)} and reserved from the admission
+ * budget; a job that does not fit waits for running jobs to finish, and
+ * is answered with 503 if it waited longer than the queue timeout.
+ * Waiting jobs do not hold up {@code /metrics} nor answers from the cache.
+ * Shared strings tables larger than a quarter of the budget are moved to
+ * disk, so a single large workbook cannot hold the whole budget.
+ * <p>
+ * A request with invalid parameters, or whose body is not a workbook, is
+ * answered with 400.  A conversion that fails before the CSV starts is
+ * answered with 500; one that fails later is logged and its response is
+ * cut short.
+ */
+public class ConversionServer implements Closeable {
+    private static final POILogger LOG = POILogFactory.getLogger(ConversionServer.class);
+
+    /**
+     * Granularity of the admission budget, so that it fits the permits of a semaphore
+     */
+    private static final int PERMIT_BYTES = 1024;
+
+    /**
+     * Largest number of rows per sheet of a preview
+     */
+    static final int MAX_PREVIEW_ROWS = 1000;
+
+    private final HttpServer server;
+    private final ExecutorService requests;
+    private final ExecutorService workers;
+    // visible to the tests, which hold its permits to keep jobs waiting
+    final Semaphore admission;
+    private final long admissionBudgetBytes;
+    private final ConversionMetrics metrics = new ConversionMetrics();
+    private final AtomicLong jobsCompleted = new AtomicLong();
+    private final AtomicLong jobsRejected = new AtomicLong();
+    private final AtomicLong jobsFailed = new AtomicLong();
+    private final AtomicInteger pendingJobs = new AtomicInteger();
+    private long queueTimeoutMillis = 30_000;
+    private int maxPendingJobs;
+    private long maxRequestBytes = 1L << 30;
+    private boolean localFilesAllowed;
+    private ConversionCache cache;
+
+    /**
+     * Creates a server on a port of the loopback interface.
+     *
+     * @param port                 The port to listen on, or 0 for any free port
+     * @param threads              The number of conversions that may run at once
+     * @param admissionBudgetBytes The estimated heap all running conversions may take together
+     */
+    public ConversionServer(int port, int threads, long admissionBudgetBytes) throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), threads, admissionBudgetBytes);
+    }
+
+    /**
+     * @param address              The address to listen on
+     * @param threads              The number of conversions that may run at once
+     * @param admissionBudgetBytes The estimated heap all running conversions may take together
+     */
+    public ConversionServer(InetSocketAddress address, int threads, long admissionBudgetBytes) throws IOException {
+        this.admissionBudgetBytes = admissionBudgetBytes;
+        this.admission = new Semaphore(permits(admissionBudgetBytes), true);
+        this.maxPendingJobs = 4 * threads;
+        this.requests = Executors.newCachedThreadPool(threadFactory("xlsx2csv-request-"));
+        this.workers = Executors.newFixedThreadPool(threads, threadFactory("xlsx2csv-worker-"));
+        this.server = HttpServer.create(address, 0);
+        // the requests that wait for admission do not hold up the others, such as /metrics and cache hits
+        server.setExecutor(requests);
+        server.createContext("/convert", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    convert(exchange, false);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext("/preview", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    convert(exchange, true);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange, 200, metrics + "\njobs completed " + jobsCompleted + ", rejected " + jobsRejected
+                            + ", failed " + jobsFailed + ", pending " + pendingJobs + ", admission free " + (long) admission.availablePermits() * PERMIT_BYTES
+                            + " of " + admissionBudgetBytes + " bytes\n" + (cache == null ? "" : cache + "\n"));
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests and waits up to a second for running ones.
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        requests.shutdown();
+        workers.shutdown();
+    }
+
+    private static ThreadFactory threadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * @return The address the server listens on
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    public ConversionMetrics getMetrics() {
+        return metrics;
+    }
+
+    public long getJobsCompleted() {
+        return jobsCompleted.get();
+    }
+
+    public long getJobsRejected() {
+        return jobsRejected.get();
+    }
+
+    public long getJobsFailed() {
+        return jobsFailed.get();
+    }
+
+    /**
+     * Sets how long a job may wait for admission before it is rejected.  Defaults to 30 seconds.
+     */
+    public void setQueueTimeoutMillis(long queueTimeoutMillis) {
+        this.queueTimeoutMillis = queueTimeoutMillis;
+    }
+
+    /**
+     * Sets how many conversions and previews may be received, waiting for
+     * admission or running at once; more are answered with 503 before their
+     * workbook is read.  Defaults to four per worker thread.
+     */
+    public void setMaxPendingJobs(int maxPendingJobs) {
+        this.maxPendingJobs = maxPendingJobs;
+    }
+
+    /**
+     * Sets the size of the largest workbook that may be posted; larger ones
+     * are answered with 413.  Defaults to 1 GB.
+     */
+    public void setMaxRequestBytes(long maxRequestBytes) {
+        this.maxRequestBytes = maxRequestBytes;
+    }
+
+    /**
+     * Sets whether {@code GET /convert?path=...} may read files of the
+     * server's file system.  Off by default.
+     */
+    public void setLocalFilesAllowed(boolean localFilesAllowed) {
+        this.localFilesAllowed = localFilesAllowed;
+    }
+
+    /**
+     * Sets the cache the results of conversions are answered from and stored to.
+     *
+     * @param cache The cache, or null not to cache results
+     */
+    public void setCache(ConversionCache cache) {
+        this.cache = cache;
+    }
+
+    private void convert(HttpExchange exchange, boolean preview) throws IOException {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String method = exchange.getRequestMethod();
+        boolean post = "POST".equals(method);
+        if (!post && !("GET".equals(method) && query.containsKey("path"))) {
+            respond(exchange, 405, "POST a workbook, or GET with a path\n");
+            return;
+        }
+        int rows = intParameter(query, "rows", WorkbookPreview.DEFAULT_ROWS);
+        if (preview && (rows < 1 || rows > MAX_PREVIEW_ROWS)) {
+            jobsRejected.incrementAndGet();
+            respond(exchange, 400, "rows must be between 1 and " + MAX_PREVIEW_ROWS + "\n");
+            return;
+        }
+        if (!preview && intParameter(query, "headerRows", 0) < 0) {
+            jobsRejected.incrementAndGet();
+            respond(exchange, 400, "headerRows must be a number of rows\n");
+            return;
+        }
+        if (!post && !localFilesAllowed) {
+            respond(exchange, 403, "Local files are not allowed\n");
+            return;
+        }
+        // bounds the spooled workbooks, and the requests waiting for admission
+        if (pendingJobs.incrementAndGet() > maxPendingJobs) {
+            pendingJobs.decrementAndGet();
+            jobsRejected.incrementAndGet();
+            respond(exchange, 503, "Too many requests, try again later\n");
+            return;
+        }
+        File file = null;
+        boolean temporary = false;
+        try {
+            if (post) {
+                file = Files.createTempFile("xlsx2csv", ".xlsx").toFile();
+                temporary = true;
+                if (!spool(exchange, file)) {
+                    jobsRejected.incrementAndGet();
+                    respond(exchange, 413, "The workbook is larger than " + maxRequestBytes + " bytes\n");
+                    return;
+                }
+            } else {
+                file = new File(query.get("path"));
+                if (!file.isFile()) {
+                    respond(exchange, 404, "No such file: " + file + "\n");
+                    return;
+                }
+            }
+            if (preview) {
+                preview(exchange, file, rows, query);
+            } else {
+                convert(exchange, file, query);
+            }
+        } finally {
+            pendingJobs.decrementAndGet();
+            if (temporary && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Copies the body of the request to a file, up to the largest request size.
+     *
+     * @return Whether the whole body fitted
+     */
+    private boolean spool(HttpExchange exchange, File file) throws IOException {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        try {
+            if (length != null && Long.parseLong(length) > maxRequestBytes) {
+                return false;
+            }
+        } catch (NumberFormatException e) {
+            // counted while copying instead
+        }
+        try (InputStream body = exchange.getRequestBody();
+             OutputStream spooled = Files.newOutputStream(file.toPath())) {
+            byte[] buffer = new byte[1 << 16];
+            long total = 0;
+            int n;
+            while ((n = body.read(buffer)) >= 0) {
+                total += n;
+                if (total > maxRequestBytes) {
+                    return false;
+                }
+                spooled.write(buffer, 0, n);
+            }
+        }
+        return true;
+    }
+
+    private void convert(final HttpExchange exchange, final File file, final Map<String, String> query) throws IOException {
+        String cacheKey = null;
+        try {
+            if (cache != null) {
+                cacheKey = ConversionCache.key(file, cacheOptions(query));
+            }
+        } catch (IOException e) {
+            jobsRejected.incrementAndGet();
+            respond(exchange, 400, "Not a workbook: " + e.getMessage() + "\n");
+            return;
+        }
+        if (cacheKey != null && respondFromCache(exchange, cacheKey)) {
+            jobsCompleted.incrementAndGet();
+            return;
+        }
+        WorkbookProfile profile;
+        try {
+            profile = XLSXAnalyser.profile(file);
+        } catch (IOException e) {
+            jobsRejected.incrementAndGet();
+            respond(exchange, 400, "Not a workbook: " + e.getMessage() + "\n");
+            return;
+        }
+        final long sharedStringsBudget = admissionBudgetBytes / 4;
+        long estimate = WorkbookProfile.BASE_HEAP_BYTES + Math.min(profile.getEstimatedSharedStringsHeapBytes(), sharedStringsBudget);
+        final String key = cacheKey;
+        runAdmitted(exchange, Math.min(permits(estimate), permits(admissionBudgetBytes)), new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                convertAdmitted(exchange, file, query, key, sharedStringsBudget);
+                return null;
+            }
+        });
+    }
+
+    private void convertAdmitted(HttpExchange exchange, File file, Map<String, String> query,
+                                 String cacheKey, long sharedStringsBudget) throws IOException {
+        boolean started = false;
+        ConversionCache.Recording recording = null;
+        try (OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ);
+             // within the strings budget reserved above, and loaded once for the analyser and the converter
+             SpillableSharedStringsTable strings = new SpillableSharedStringsTable(pkg, sharedStringsBudget)) {
+            XLSXAnalyser analyser = new XLSXAnalyser(pkg, new ConversionMetrics(), strings);
+            OutputStream body = exchange.getResponseBody();
+            if (cacheKey != null) {
+                body = recording = cache.record(cacheKey, body);
+            }
+            PrintWriter output = new PrintWriter(new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8), 1 << 16));
+            XLSX2CSVImproved xlsx2csv = newConverter(pkg, output, analyser, query);
+            xlsx2csv.setSharedStrings(strings);
+            exchange.getResponseHeaders().set("Content-Type", "text/csv; charset=UTF-8");
+            exchange.sendResponseHeaders(200, 0);
+            started = true;
+            xlsx2csv.process();
+            output.flush();
+            // PrintWriter keeps the failures of the response to itself, e.g. a client gone
+            if (output.checkError()) {
+                throw new IOException("Failed to write the response");
+            }
+            if (recording != null) {
+                recording.commit();
+            }
+            jobsCompleted.incrementAndGet();
+        } catch (Exception e) {
+            jobsFailed.incrementAndGet();
+            LOG.log(POILogger.WARN, "Conversion of " + file + " failed", e);
+            // once the CSV has started the status cannot change any more, and the response is just cut short
+            if (!started) {
+                respond(exchange, 500, "Conversion failed: " + e + "\n");
+            }
+        } finally {
+            if (recording != null) {
+                // discards an incomplete result
+                recording.close();
+            }
+        }
+    }
+
+    private void preview(final HttpExchange exchange, final File file, final int rows, final Map<String, String> query) throws IOException {
+        // only as far into the shared strings as the rows need
+        runAdmitted(exchange, Math.min(permits(WorkbookProfile.BASE_HEAP_BYTES), permits(admissionBudgetBytes)), new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                previewAdmitted(exchange, file, rows, query);
+                return null;
+            }
+        });
+    }
+
+    private void previewAdmitted(HttpExchange exchange, File file, int rows, Map<String, String> query) throws IOException {
+        try (OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ)) {
+            String separator = query.get("separator");
+            WorkbookPreview preview = new WorkbookPreview(pkg, rows);
+            preview.setSeparator(separator == null || separator.isEmpty() ? ';' : separator.charAt(0));
+            if (query.containsKey("lang")) {
+                preview.setLang(query.get("lang"));
+            }
+            preview.setSheetNameColumn(true);
+            preview.setSheetThreads(Math.min(4, Runtime.getRuntime().availableProcessors()));
+            preview.setSharedStringsBudget(admissionBudgetBytes / 4);
+            preview.setMetrics(metrics);
+            preview.process();
+            StringBuilder csv = new StringBuilder();
+            for (String sheet : preview.getSheets().values()) {
+                csv.append(sheet);
+            }
+            byte[] bytes = csv.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/csv; charset=UTF-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(bytes);
+            }
+            jobsCompleted.incrementAndGet();
+        } catch (Exception e) {
+            jobsFailed.incrementAndGet();
+            LOG.log(POILogger.WARN, "Preview of " + file + " failed", e);
+            respond(exchange, 500, "Preview failed: " + e + "\n");
+        }
+    }
+
+    /**
+     * Waits on the request thread for the permits of a job, then runs the
+     * job on a worker thread, which releases them once the job is done.
+     * The job answers its own failures.
+     */
+    private void runAdmitted(HttpExchange exchange, final int permits, final Callable<Void> job) throws IOException {
+        try {
+            if (!admission.tryAcquire(permits, queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                jobsRejected.incrementAndGet();
+                respond(exchange, 503, "Too busy, try again later\n");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "Interrupted\n");
+            return;
+        }
+        Future<Void> done;
+        try {
+            done = workers.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        return job.call();
+                    } finally {
+                        admission.release(permits);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            admission.release(permits);
+            respond(exchange, 503, "Shutting down\n");
+            return;
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    done.get();
+                    return;
+                } catch (InterruptedException e) {
+                    // the job owns the exchange until it is done
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return The options of the query that change the CSV
+     */
+    private static String cacheOptions(Map<String, String> query) {
+        Map<String, String> options = new TreeMap<>(query);
+        options.remove("path");
+        return options.toString();
+    }
+
+    /**
+     * Answers with the cached result, if any.
+     *
+     * @return Whether the cache had the result
+     */
+    private boolean respondFromCache(HttpExchange exchange, String cacheKey) throws IOException {
+        InputStream cached = cache.get(cacheKey);
+        if (cached == null) {
+            return false;
+        }
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "text/csv; charset=UTF-8");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream body = exchange.getResponseBody();
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while ((n = cached.read(buffer)) >= 0) {
+                body.write(buffer, 0, n);
+            }
+            body.flush();
+        } finally {
+            cached.close();
+        }
+        return true;
+    }
+
+    /**
+     * Creates a converter configured from the query of the request.
+     */
+    private XLSX2CSVImproved newConverter(OPCPackage pkg, PrintWriter output, XLSXAnalyser analyser, Map<String, String> query) {
+        String separator = query.get("separator");
+        String lang = query.get("lang");
+        XLSX2CSVImproved xlsx2csv = new XLSX2CSVImproved(pkg, output, analyser.getMinimumCols(),
+                separator == null || separator.isEmpty() ? ';' : separator.charAt(0), lang == null ? "EN" : lang);
+        xlsx2csv.setMetrics(metrics);
+        if (query.containsKey("headerRows")) {
+            xlsx2csv.setHeaderRows(Integer.parseInt(query.get("headerRows")));
+        }
+        if ("true".equals(query.get("schema"))) {
+            xlsx2csv.setSchemas(analyser.getSchemas());
+        }
+        xlsx2csv.setSparseOutput("true".equals(query.get("sparse")));
+        xlsx2csv.setFormulasNotResults("true".equals(query.get("formulas")));
+        return xlsx2csv;
+    }
+
+    /**
+     * @return The value of a parameter of the query, the default if it is
+     *         not set, or -1 if it is not a non-negative number
+     */
+    private static int intParameter(Map<String, String> query, String name, int defaultValue) {
+        String value = query.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(Integer.parseInt(value), -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int permits(long bytes) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, (bytes + PERMIT_BYTES - 1) / PERMIT_BYTES));
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            query.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return query;
+    }
+
+    /**
+     * Starts a server on the loopback interface.
+     * Arguments: port (default 8080), worker threads (default the number of
+     * processors), admission budget in MB (default three quarters of the
+     * maximum heap), and cache directory and size in MB (default no cache,
+     * and 1024 MB).  They may be preceded by {@code --timing} to time the
+     * stages of the conversions, which can also be switched on through JMX.
+     */
+    public static void main(String[] args) throws Exception {
+        boolean timing = args.length > 0 && "--timing".equals(args[0]);
+        if (timing) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        long budget = args.length > 2 ? Long.parseLong(args[2]) << 20 : Runtime.getRuntime().maxMemory() / 4 * 3;
+        ConversionServer server = new ConversionServer(port, threads, budget);
+        if (args.length > 3) {
+            server.setCache(new ConversionCache(new File(args[3]), (args.length > 4 ? Long.parseLong(args[4]) : 1024) << 20));
+        }
+        server.getMetrics().setTimingEnabled(timing);
+        server.getMetrics().register("server");
+        server.start();
+        System.out.println("Listening on " + server.getAddress() + " with " + threads + " workers and " + (budget >> 20) + " MB");
+    }
+}
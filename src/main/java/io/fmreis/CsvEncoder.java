@@ -0,0 +1,107 @@
+package io.fmreis;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+
+/**
+ * Writes field values as RFC 4180 CSV.
+ * <p>
+ * A value containing the separator, a double quote, a carriage return or
+ * a line feed is enclosed in double quotes, with its own double quotes
+ * doubled; any other value is written as it is.  Almost all values need
+ * no quoting, so each one is first scanned with a single table lookup per
+ * char (a char above the highest special char is rejected by one compare)
+ * and then copied in bulk; only values that need quoting are written char
+ * by char.
+ */
+final class CsvEncoder {
+    private static final char QUOTE = '"';
+
+    /**
+     * Whether a char needs quoting, indexed by char up to the highest special one
+     */
+    private final boolean[] special;
+
+    /**
+     * @param separator The field separator
+     */
+    CsvEncoder(char separator) {
+        char highest = (char) Math.max(separator, QUOTE);
+        this.special = new boolean[highest + 1];
+        special[separator] = true;
+        special[QUOTE] = true;
+        special['\n'] = true;
+        special['\r'] = true;
+    }
+
+    /**
+     * @return Whether the value must be enclosed in quotes
+     */
+    boolean needsQuoting(String value) {
+        boolean[] special = this.special;
+        int limit = special.length;
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            if (c < limit && special[c]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes one value, quoted if needed.
+     *
+     * @return The number of chars written
+     */
+    int write(Appendable output, String value) {
+        try {
+            if (!needsQuoting(value)) {
+                output.append(value);
+                return value.length();
+            }
+            return writeQuoted(output, value);
+        } catch (IOException e) {
+            // PrintWriter and PrintStream do not throw
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes one value from the start of a buffer, quoted if needed.
+     *
+     * @return The number of chars written
+     */
+    int write(PrintWriter output, char[] value, int length) {
+        boolean[] special = this.special;
+        int limit = special.length;
+        for (int i = 0; i < length; i++) {
+            char c = value[i];
+            if (c < limit && special[c]) {
+                return write(output, new String(value, 0, length));
+            }
+        }
+        output.write(value, 0, length);
+        return length;
+    }
+
+    private static int writeQuoted(Appendable output, String value) throws IOException {
+        int written = 2;
+        output.append(QUOTE);
+        int start = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) == QUOTE) {
+                // copy up to and including the quote, then double it
+                output.append(value, start, i + 1);
+                output.append(QUOTE);
+                written++;
+                start = i + 1;
+            }
+        }
+        output.append(value, start, length);
+        output.append(QUOTE);
+        return written + length;
+    }
+}
@@ -0,0 +1,80 @@
+package io.fmreis;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Writes the padding of sparse sheets in bulk.
+ * <p>
+ * Missing cells and rows are written from precomputed runs of
+ * separators and blocks of empty rows, so a gap of a million rows or of
+ * thousands of columns costs a few array writes instead of one
+ * {@code append} per separator.
+ */
+final class GapWriter {
+    private static final int SEPARATOR_RUN = 1024;
+    private static final int EMPTY_ROWS_BLOCK_CHARS = 8192;
+
+    private final char[] separators;
+    private final char[] emptyRows;
+    private final int emptyRowLength;
+    private final int emptyRowsPerBlock;
+
+    /**
+     * @param separator  The field separator
+     * @param minColumns The number of columns of an empty row
+     */
+    GapWriter(char separator, int minColumns) {
+        this.separators = new char[SEPARATOR_RUN];
+        Arrays.fill(this.separators, separator);
+        // an empty row is minColumns-1 separators and a newline
+        this.emptyRowLength = Math.max(minColumns, 1);
+        this.emptyRowsPerBlock = Math.max(1, EMPTY_ROWS_BLOCK_CHARS / emptyRowLength);
+        this.emptyRows = new char[emptyRowsPerBlock * emptyRowLength];
+        Arrays.fill(this.emptyRows, separator);
+        for (int i = emptyRowLength - 1; i < emptyRows.length; i += emptyRowLength) {
+            emptyRows[i] = '\n';
+        }
+    }
+
+    /**
+     * @return The number of chars written
+     */
+    long writeSeparators(PrintWriter output, long count) {
+        long remaining = count;
+        while (remaining > 0) {
+            int n = (int) Math.min(remaining, SEPARATOR_RUN);
+            output.write(separators, 0, n);
+            remaining -= n;
+        }
+        return Math.max(0, count);
+    }
+
+    /**
+     * @param prefix Written at the start of each row, or null
+     * @return The number of chars written
+     */
+    long writeEmptyRows(PrintWriter output, long count, String prefix) {
+        if (prefix == null) {
+            return writeEmptyRows(output, count);
+        }
+        for (long i = 0; i < count; i++) {
+            output.write(prefix);
+            output.write(emptyRows, 0, emptyRowLength);
+        }
+        return Math.max(0, count) * (prefix.length() + emptyRowLength);
+    }
+
+    /**
+     * @return The number of chars written
+     */
+    long writeEmptyRows(PrintWriter output, long count) {
+        long remaining = count;
+        while (remaining > 0) {
+            int n = (int) Math.min(remaining, emptyRowsPerBlock);
+            output.write(emptyRows, 0, n * emptyRowLength);
+            remaining -= n;
+        }
+        return Math.max(0, count) * emptyRowLength;
+    }
+}
@@ -0,0 +1,643 @@
+package io.fmreis;
+
+import org.apache.poi.ss.util.CellReference;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Loads the data rows of each sheet into a database table through JDBC,
+ * without writing and parsing a CSV in between.
+ * <p>
+ * Each sheet goes to the table named after it (see
+ * {@link #setTableNames(Map)}), whose columns take the cells of the sheet
+ * from its first column on, left to right.  A missing table is created
+ * from the schema of the sheet (see
+ * {@link XLSX2CSVImproved#setSchemaInference(boolean)}): integer columns as
+ * {@code BIGINT}, decimal ones as {@code DOUBLE PRECISION}, the others,
+ * dates included, as {@link #setTextType(String)}, named after their header.
+ * Table and column names are quoted, in the case the database stores
+ * unquoted ones in, so that headers such as {@code Order} or {@code User}
+ * name columns like any other.
+ * Tables are looked up in the current catalog and schema of the connection.
+ * Numbers are bound as numbers to numeric columns and as their shortest
+ * text to the others; missing cells are null.
+ * <p>
+ * Rows are gathered in batches of {@link #setBatchSize(int)} rows, which
+ * a single loader thread inserts and commits (when the connection is not
+ * in auto-commit mode) while the next batches are converted.  At most
+ * {@link #setQueueBatches(int)} batches wait for the loader, after which
+ * the conversion waits for it.  With the PostgreSQL driver, batches are
+ * streamed with {@code COPY ... FROM STDIN} instead of inserts.
+ * <p>
+ * Once the sink is used, the connection belongs to its loader thread
+ * until it is closed.  A failure of the loader is thrown by the next call
+ * to the sink, which drops the rows not loaded yet.
+ */
+public class JdbcRowSink implements RowSink, Closeable {
+
+    /**
+     * The longest {@code VARCHAR} of Derby, which H2, PostgreSQL and Oracle (extended) accept as well
+     */
+    public static final String DEFAULT_TEXT_TYPE = "VARCHAR(32672)";
+
+    /**
+     * Estimated heap of a value of a row: a boxed Double, or a short String
+     */
+    private static final int VALUE_BYTES = 48;
+
+    /**
+     * Marks the end of the loads
+     */
+    private static final Batch END = new Batch(null, null, 0, null);
+
+    private final Connection connection;
+    private int batchSize = 1000;
+    private int queueBatches = 4;
+    private Map<String, String> tableNames = Collections.emptyMap();
+    private boolean copyEnabled = true;
+    private String textType = DEFAULT_TEXT_TYPE;
+
+    private BlockingQueue<Batch> queue;
+    private Thread loader;
+    private volatile Exception failure;
+
+    private Table table;
+    private Object[][] rows;
+    private int rowCount;
+    private Object[] row;
+    private long rowsLoaded;
+    private long batchesLoaded;
+
+    /**
+     * @param connection The connection to load the rows through
+     */
+    public JdbcRowSink(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Sets the number of rows inserted and committed at once.  Defaults to 1000.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Sets the number of batches that may wait for the loader thread.  Defaults to 4.
+     */
+    public void setQueueBatches(int queueBatches) {
+        this.queueBatches = Math.max(1, queueBatches);
+    }
+
+    /**
+     * Sets the tables of the sheets, by sheet name.  Other sheets go to the
+     * table named after the sheet, with the characters that are not
+     * letters, digits or underscores replaced by underscores.
+     */
+    public void setTableNames(Map<String, String> tableNames) {
+        this.tableNames = tableNames == null ? Collections.<String, String>emptyMap() : tableNames;
+    }
+
+    /**
+     * Sets whether batches are streamed with {@code COPY} where the driver
+     * supports it (PostgreSQL), rather than inserted.  Defaults to true.
+     */
+    public void setCopyEnabled(boolean copyEnabled) {
+        this.copyEnabled = copyEnabled;
+    }
+
+    /**
+     * Sets the SQL type of the text columns of the tables created, e.g.
+     * {@code TEXT} for MySQL, whose rows cannot hold a
+     * {@code VARCHAR(32672)} in utf8mb4.  Defaults to {@value #DEFAULT_TEXT_TYPE}.
+     */
+    public void setTextType(String textType) {
+        this.textType = textType;
+    }
+
+    /**
+     * Counts the batches waiting for the loader, the one it loads and the
+     * one being filled.
+     */
+    @Override
+    public long getHeapBytes(int columns) {
+        long rowBytes = 16 + (long) Math.max(1, columns) * (4 + VALUE_BYTES);
+        return (queueBatches + 2L) * batchSize * rowBytes;
+    }
+
+    /**
+     * @return The number of rows loaded and committed so far
+     */
+    public synchronized long getRowsLoaded() {
+        return rowsLoaded;
+    }
+
+    /**
+     * @return The number of batches loaded and committed so far
+     */
+    public synchronized long getBatchesLoaded() {
+        return batchesLoaded;
+    }
+
+    @Override
+    public void startSheet(String sheetName, SheetSchema schema) throws IOException {
+        checkFailure();
+        if (loader == null) {
+            queue = new ArrayBlockingQueue<>(queueBatches);
+            loader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    load();
+                }
+            }, "xlsx2csv-jdbc-loader");
+            loader.setDaemon(true);
+            loader.start();
+        }
+        // the loader is idle after endSheet, so the connection may be used here
+        try {
+            table = openTable(sheetName, schema);
+        } catch (SQLException e) {
+            throw new IOException("Failed to prepare the table of sheet " + sheetName, e);
+        }
+        rows = new Object[batchSize][];
+        rowCount = 0;
+    }
+
+    @Override
+    public void startRow(int rowNum) {
+        row = null;
+    }
+
+    @Override
+    public void number(int column, double value) {
+        set(column, value);
+    }
+
+    @Override
+    public void text(int column, String value) {
+        set(column, value);
+    }
+
+    private void set(int column, Object value) {
+        int index = column - table.firstColumn;
+        if (index < 0 || index >= table.types.length) {
+            // no column to load it to
+            return;
+        }
+        if (row == null) {
+            row = new Object[table.types.length];
+        }
+        row[index] = value;
+    }
+
+    @Override
+    public void endRow(int rowNum) throws IOException {
+        if (row == null) {
+            return;
+        }
+        rows[rowCount++] = row;
+        row = null;
+        if (rowCount == batchSize) {
+            enqueue(new Batch(table, rows, rowCount, null));
+            rows = new Object[batchSize][];
+            rowCount = 0;
+        }
+    }
+
+    /**
+     * Loads the rest of the sheet, and waits until all of it is loaded.
+     */
+    @Override
+    public void endSheet() throws IOException {
+        boolean loaded = false;
+        try {
+            if (rowCount > 0) {
+                enqueue(new Batch(table, rows, rowCount, null));
+            }
+            rows = null;
+            rowCount = 0;
+            CountDownLatch done = new CountDownLatch(1);
+            enqueue(new Batch(null, null, 0, done));
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while loading sheet " + table.name);
+            }
+            loaded = true;
+        } finally {
+            // after a failure the loader skips the batches left, and no longer uses the table
+            Table closed = table;
+            table = null;
+            try {
+                closed.close();
+            } catch (SQLException e) {
+                if (loaded) {
+                    throw new IOException("Failed to close the statement of table " + closed.name, e);
+                }
+                // the failure of the loads is thrown instead
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Stops the loader thread, once it has loaded the rows received.  The
+     * connection is left open.
+     */
+    @Override
+    public void close() throws IOException {
+        if (loader == null) {
+            return;
+        }
+        try {
+            // even after a failure, which the loader only skips batches for
+            queue.put(END);
+            loader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing the loader");
+        }
+        loader = null;
+        checkFailure();
+    }
+
+    private void enqueue(Batch batch) throws IOException {
+        checkFailure();
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the loader");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Exception e = failure;
+        if (e != null) {
+            throw new IOException("Failed to load rows: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Runs on the loader thread until {@link #END}.
+     */
+    private void load() {
+        while (true) {
+            Batch batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                failure = e;
+                return;
+            }
+            if (batch == END) {
+                return;
+            }
+            if (batch.loaded != null) {
+                batch.loaded.countDown();
+            } else if (failure == null) {
+                try {
+                    batch.table.load(batch.rows, batch.size);
+                    if (!connection.getAutoCommit()) {
+                        connection.commit();
+                    }
+                    synchronized (this) {
+                        rowsLoaded += batch.size;
+                        batchesLoaded++;
+                    }
+                } catch (Exception e) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    private Table openTable(String sheetName, SheetSchema schema) throws SQLException {
+        String name = tableNames.get(sheetName);
+        if (name == null) {
+            name = toIdentifier(sheetName);
+        }
+        DatabaseMetaData metaData = connection.getMetaData();
+        String stored = toStoredCase(metaData, name);
+        List<Integer> types = getColumnTypes(connection, metaData, stored);
+        if (types.isEmpty()) {
+            if (schema == null) {
+                throw new SQLException("Table " + name + " of sheet " + sheetName
+                        + " does not exist, and the sheet has no schema to create it from");
+            }
+            createTable(metaData, stored, schema);
+            types = getColumnTypes(connection, metaData, stored);
+        }
+        int[] columnTypes = new int[types.size()];
+        for (int i = 0; i < columnTypes.length; i++) {
+            columnTypes[i] = types.get(i);
+        }
+        Table table = new Table(name, quote(metaData, stored), schema != null ? schema.getFirstColumn() : 0, columnTypes);
+        Object copyManager = copyEnabled ? getCopyManager() : null;
+        if (copyManager != null) {
+            table.copy(copyManager);
+        } else {
+            table.prepare(connection);
+        }
+        return table;
+    }
+
+    /**
+     * @return The name in the case the database stores unquoted identifiers in
+     */
+    private static String toStoredCase(DatabaseMetaData metaData, String name) throws SQLException {
+        return metaData.storesUpperCaseIdentifiers() ? name.toUpperCase(Locale.ROOT)
+                : metaData.storesLowerCaseIdentifiers() ? name.toLowerCase(Locale.ROOT) : name;
+    }
+
+    /**
+     * @return The identifier quoted, so that it may be a reserved word, or
+     *         as it is if the database does not quote identifiers
+     */
+    private static String quote(DatabaseMetaData metaData, String identifier) throws SQLException {
+        String quote = metaData.getIdentifierQuoteString();
+        if (quote == null || quote.trim().isEmpty()) {
+            return identifier;
+        }
+        quote = quote.trim();
+        return quote + identifier.replace(quote, quote + quote) + quote;
+    }
+
+    /**
+     * @param stored The name of the table, in the case of the database
+     * @return The SQL types of the columns of the table of the current
+     *         catalog and schema, in order, or none if it does not exist
+     */
+    private static List<Integer> getColumnTypes(Connection connection, DatabaseMetaData metaData, String stored) throws SQLException {
+        // a table of the same name in another schema must not add its columns
+        String schema = connection.getSchema();
+        List<Integer> types = new ArrayList<>();
+        try (ResultSet columns = metaData.getColumns(connection.getCatalog(),
+                schema == null ? null : toPattern(metaData, schema), toPattern(metaData, stored), null)) {
+            while (columns.next()) {
+                types.add(columns.getInt("DATA_TYPE"));
+            }
+        }
+        return types;
+    }
+
+    private void createTable(DatabaseMetaData metaData, String stored, SheetSchema schema) throws SQLException {
+        StringBuilder sql = new StringBuilder("CREATE TABLE ").append(quote(metaData, stored)).append(" (");
+        Set<String> columnNames = new HashSet<>();
+        for (int column = schema.getFirstColumn(); column < schema.getColumnCount(); column++) {
+            String header = schema.getHeader(column);
+            String columnName = header == null || header.trim().isEmpty()
+                    ? CellReference.convertNumToColString(column) : toIdentifier(header.trim());
+            String unique = columnName;
+            for (int n = 2; !columnNames.add(unique.toUpperCase(Locale.ROOT)); n++) {
+                unique = columnName + "_" + n;
+            }
+            if (column > schema.getFirstColumn()) {
+                sql.append(", ");
+            }
+            sql.append(quote(metaData, toStoredCase(metaData, unique))).append(' ').append(toSqlType(schema.getType(column)));
+        }
+        sql.append(')');
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sql.toString());
+        }
+        if (!connection.getAutoCommit()) {
+            connection.commit();
+        }
+    }
+
+    /**
+     * @return The name as a metadata search pattern, in which underscores would match any char
+     */
+    private static String toPattern(DatabaseMetaData metaData, String name) throws SQLException {
+        String escape = metaData.getSearchStringEscape();
+        return escape == null || escape.isEmpty() ? name
+                : name.replace(escape, escape + escape).replace("_", escape + "_").replace("%", escape + "%");
+    }
+
+    private String toSqlType(SheetSchema.ColumnType type) {
+        switch (type) {
+            case INTEGER:
+                return "BIGINT";
+            case DECIMAL:
+                return "DOUBLE PRECISION";
+            default:
+                return textType;
+        }
+    }
+
+    /**
+     * @return The name with the characters that are not letters, digits or
+     *         underscores replaced, starting with a letter
+     */
+    static String toIdentifier(String name) {
+        StringBuilder sb = new StringBuilder(name.length() + 1);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            sb.append(c < 128 && (Character.isLetterOrDigit(c) || c == '_') ? c : '_');
+        }
+        if (sb.length() == 0 || !Character.isLetter(sb.charAt(0))) {
+            sb.insert(0, 'T');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return The {@code CopyManager} of a PostgreSQL connection, or null for other drivers
+     */
+    private Object getCopyManager() throws SQLException {
+        Class<?> pgConnection;
+        try {
+            pgConnection = Class.forName("org.postgresql.PGConnection");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+        if (!connection.isWrapperFor(pgConnection)) {
+            return null;
+        }
+        try {
+            return pgConnection.getMethod("getCopyAPI").invoke(connection.unwrap(pgConnection));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Rows of a table to load, or a mark the loader counts down once it
+     * reaches it
+     */
+    private static final class Batch {
+        final Table table;
+        final Object[][] rows;
+        final int size;
+        final CountDownLatch loaded;
+
+        Batch(Table table, Object[][] rows, int size, CountDownLatch loaded) {
+            this.table = table;
+            this.rows = rows;
+            this.size = size;
+            this.loaded = loaded;
+        }
+    }
+
+    /**
+     * A table rows are loaded to, by insert or by copy
+     */
+    static final class Table {
+        final String name;
+        final String sqlName;
+        final int firstColumn;
+        final int[] types;
+        private final ShortestNumberRenderer numberRenderer = new ShortestNumberRenderer('.');
+        private final char[] numberBuffer = new char[NumberRenderer.MAX_LENGTH];
+        private final CsvEncoder csvEncoder = new CsvEncoder(',');
+        private PreparedStatement insert;
+        private Object copyManager;
+        private Method copyIn;
+
+        /**
+         * @param name        The name of the table, for messages
+         * @param sqlName     The name of the table as written in SQL, quoted
+         * @param firstColumn The column of the sheet of the first column of the table
+         * @param types       The SQL types of the columns of the table
+         */
+        Table(String name, String sqlName, int firstColumn, int[] types) {
+            this.name = name;
+            this.sqlName = sqlName;
+            this.firstColumn = firstColumn;
+            this.types = types;
+        }
+
+        void prepare(Connection connection) throws SQLException {
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(sqlName).append(" VALUES (");
+            for (int i = 0; i < types.length; i++) {
+                sql.append(i == 0 ? "?" : ", ?");
+            }
+            insert = connection.prepareStatement(sql.append(')').toString());
+        }
+
+        void copy(Object copyManager) throws SQLException {
+            try {
+                this.copyIn = copyManager.getClass().getMethod("copyIn", String.class, Reader.class);
+            } catch (NoSuchMethodException e) {
+                throw new SQLException("Unsupported CopyManager " + copyManager.getClass(), e);
+            }
+            this.copyManager = copyManager;
+        }
+
+        void load(Object[][] rows, int size) throws SQLException {
+            if (copyManager != null) {
+                copy(rows, size);
+                return;
+            }
+            for (int r = 0; r < size; r++) {
+                Object[] row = rows[r];
+                for (int i = 0; i < types.length; i++) {
+                    bind(i + 1, types[i], row[i]);
+                }
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+
+        private void bind(int parameter, int type, Object value) throws SQLException {
+            if (value == null) {
+                insert.setNull(parameter, type);
+            } else if (value instanceof Double) {
+                double number = (Double) value;
+                if (isIntegerType(type) && number == Math.rint(number) && Math.abs(number) < 0x1p63) {
+                    insert.setLong(parameter, (long) number);
+                } else if (isNumericType(type)) {
+                    insert.setDouble(parameter, number);
+                } else {
+                    insert.setString(parameter, render(number));
+                }
+            } else {
+                insert.setString(parameter, (String) value);
+            }
+        }
+
+        private void copy(Object[][] rows, int size) throws SQLException {
+            String csv = toCopyCsv(rows, size);
+            try {
+                copyIn.invoke(copyManager, "COPY " + sqlName + " FROM STDIN WITH (FORMAT csv)", new StringReader(csv));
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof SQLException ? (SQLException) cause : new SQLException("COPY to " + name + " failed", cause);
+            } catch (IllegalAccessException e) {
+                throw new SQLException("COPY to " + name + " failed", e);
+            }
+        }
+
+        /**
+         * @return The rows as the CSV streamed to {@code COPY}, where an unquoted empty field is null
+         */
+        String toCopyCsv(Object[][] rows, int size) {
+            StringBuilder csv = new StringBuilder(size * types.length * 8);
+            for (int r = 0; r < size; r++) {
+                Object[] row = rows[r];
+                for (int i = 0; i < types.length; i++) {
+                    if (i > 0) {
+                        csv.append(',');
+                    }
+                    Object value = row[i];
+                    if (value instanceof Double) {
+                        csv.append(render((Double) value));
+                    } else if (value != null) {
+                        String text = (String) value;
+                        if (text.isEmpty()) {
+                            csv.append("\"\"");
+                        } else {
+                            csvEncoder.write(csv, text);
+                        }
+                    }
+                }
+                csv.append('\n');
+            }
+            return csv.toString();
+        }
+
+        private String render(double number) {
+            return new String(numberBuffer, 0, numberRenderer.render(number, numberBuffer));
+        }
+
+        void close() throws SQLException {
+            if (insert != null) {
+                insert.close();
+            }
+        }
+
+        private static boolean isIntegerType(int type) {
+            return type == Types.BIGINT || type == Types.INTEGER || type == Types.SMALLINT || type == Types.TINYINT;
+        }
+
+        private static boolean isNumericType(int type) {
+            return isIntegerType(type) || type == Types.DOUBLE || type == Types.FLOAT || type == Types.REAL
+                    || type == Types.DECIMAL || type == Types.NUMERIC;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package io.fmreis;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Sizes the large structures of a conversion from a single heap budget,
+ * so that the same workbook converts within the same heap every time.
+ * <p>
+ * The budget is split, in this order, into:
+ * <ul>
+ * <li>the fixed heap of the converter ({@link WorkbookProfile#BASE_HEAP_BYTES}),</li>
+ * <li>the number formats of the workbook, known once the styles are loaded,</li>
+ * <li>the state of each sheet converted at once: parser, handler, schema
+ * sample and output buffer ({@link #getOutputBufferChars()}), which also
+ * limits the number of sheets converted at once,</li>
+ * <li>the rows held apart from the output, by the {@link RowBatch} of a
+ * batch consumer or by a {@link RowSink} ({@link RowSink#getHeapBytes(int)}),
+ * with which sheets are converted one at a time,</li>
+ * <li>the rest for the shared strings table, which moves to disk beyond it.</li>
+ * </ul>
+ * {@link XLSX2CSVImproved#process()} checks the workbook against the
+ * budget after loading the styles, before any sheet is parsed, and fails
+ * with an {@link ExceededException} naming the parts if it does not fit.
+ * The heap actually used is reported by
+ * {@link ConversionMetrics#getPeakHeapLiveBytes()}.
+ * <p>
+ * The budget should not exceed the maximum heap of the JVM, which is
+ * checked as well: in a container, start the JVM with {@code -Xmx} at
+ * least the budget.
+ */
+public class MemoryBudget {
+
+    /**
+     * Heap of the parser and handler of one sheet, besides the output buffer
+     */
+    public static final long SHEET_BYTES = 256L << 10;
+
+    /**
+     * Least heap left to the shared strings table, enough for its disk cache
+     */
+    public static final long MIN_SHARED_STRINGS_BYTES = 1L << 20;
+
+    private static final int MIN_OUTPUT_BUFFER_CHARS = 8 << 10;
+    private static final int MAX_OUTPUT_BUFFER_CHARS = 1 << 20;
+
+    /**
+     * Thrown when a conversion does not fit its memory budget
+     */
+    public static class ExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ExceededException(String message) {
+            super(message);
+        }
+    }
+
+    private final long totalBytes;
+
+    /**
+     * @param totalBytes The heap the conversion may take, in bytes
+     */
+    public MemoryBudget(long totalBytes) {
+        if (totalBytes <= 0) {
+            throw new IllegalArgumentException("The memory budget must be positive: " + totalBytes);
+        }
+        this.totalBytes = totalBytes;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return The size of the output buffer of each sheet, 1/512 of the
+     *         budget between 8K and 1M chars
+     */
+    public int getOutputBufferChars() {
+        return (int) Math.max(MIN_OUTPUT_BUFFER_CHARS, Math.min(MAX_OUTPUT_BUFFER_CHARS, totalBytes / 512));
+    }
+
+    /**
+     * @return The heap of one sheet converted at once, its output buffer included
+     */
+    public long getSheetBytes() {
+        // the chars of the buffer, and the bytes they are encoded to
+        return SHEET_BYTES + 3L * getOutputBufferChars();
+    }
+
+    /**
+     * @param requested The number of sheets to convert at once
+     * @param styles    The number formats of the workbook
+     * @return The number of sheets that may be converted at once within
+     *         the budget, at least 1
+     */
+    public int getSheetThreads(int requested, CellNumberFormats styles) {
+        long available = totalBytes - WorkbookProfile.BASE_HEAP_BYTES - styles.getHeapBytes() - MIN_SHARED_STRINGS_BYTES;
+        return (int) Math.max(1, Math.min(requested, available / getSheetBytes()));
+    }
+
+    /**
+     * @param sheetThreads The number of sheets converted at once
+     * @param styles       The number formats of the workbook
+     * @return The heap the shared strings table may take before it is moved to disk
+     */
+    public long getSharedStringsBytes(int sheetThreads, CellNumberFormats styles) {
+        return getSharedStringsBytes(sheetThreads, styles, 0);
+    }
+
+    /**
+     * @param rowBytes The heap of the rows held apart from the output, 0 if none
+     * @see #getSharedStringsBytes(int, CellNumberFormats)
+     */
+    public long getSharedStringsBytes(int sheetThreads, CellNumberFormats styles, long rowBytes) {
+        return totalBytes - getFixedBytes(sheetThreads, styles, rowBytes);
+    }
+
+    private long getFixedBytes(int sheetThreads, CellNumberFormats styles, long rowBytes) {
+        return WorkbookProfile.BASE_HEAP_BYTES + styles.getHeapBytes() + sheetThreads * getSheetBytes() + rowBytes;
+    }
+
+    /**
+     * Checks that a workbook can be converted within the budget.
+     *
+     * @param sheetThreads The number of sheets converted at once
+     * @param styles       The number formats of the workbook
+     * @throws ExceededException If it cannot, with the parts of the budget it needs
+     */
+    public void check(int sheetThreads, CellNumberFormats styles) throws ExceededException {
+        check(sheetThreads, styles, 0);
+    }
+
+    /**
+     * @param rowBytes The heap of the rows held apart from the output, 0 if none
+     * @see #check(int, CellNumberFormats)
+     */
+    public void check(int sheetThreads, CellNumberFormats styles, long rowBytes) throws ExceededException {
+        long maxHeap = Runtime.getRuntime().maxMemory();
+        if (maxHeap != Long.MAX_VALUE && totalBytes > maxHeap) {
+            throw new ExceededException("The memory budget of " + megabytes(totalBytes)
+                    + " exceeds the usable heap of " + megabytes(maxHeap) + ", start the JVM with a larger -Xmx");
+        }
+        long needed = getFixedBytes(sheetThreads, styles, rowBytes) + MIN_SHARED_STRINGS_BYTES;
+        if (needed > totalBytes) {
+            throw new ExceededException("The memory budget of " + megabytes(totalBytes) + " is too small, the conversion needs at least "
+                    + megabytes(needed) + ": " + megabytes(WorkbookProfile.BASE_HEAP_BYTES) + " fixed, "
+                    + megabytes(styles.getHeapBytes()) + " for " + styles.getNumDataFormats() + " number formats and "
+                    + styles.getNumCellStyles() + " cell styles, " + sheetThreads + " sheet(s) at " + megabytes(getSheetBytes())
+                    + (rowBytes > 0 ? ", " + megabytes(rowBytes) + " for the rows held for a batch consumer or row sink" : "")
+                    + " and " + megabytes(MIN_SHARED_STRINGS_BYTES) + " for shared strings");
+        }
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format(Locale.ROOT, "%.1f MB", bytes / (double) (1 << 20));
+    }
+
+    @Override
+    public String toString() {
+        return "budget=" + totalBytes + " outputBufferChars=" + getOutputBufferChars() + " sheetBytes=" + getSheetBytes();
+    }
+}
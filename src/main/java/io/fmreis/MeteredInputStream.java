@@ -0,0 +1,62 @@
+package io.fmreis;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from a (zip entry) stream and the time spent
+ * reading them, which for a package part is the inflating time.
+ */
+class MeteredInputStream extends FilterInputStream {
+    private final ConversionMetrics metrics;
+    private long nanos;
+    private long bytes;
+
+    MeteredInputStream(InputStream in, ConversionMetrics metrics) {
+        super(in);
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return The bytes read so far
+     */
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return The time spent in reads so far, in nanoseconds
+     */
+    long getNanos() {
+        return nanos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+        int b = super.read();
+        record(start, b < 0 ? 0 : 1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        int n = super.read(b, off, len);
+        record(start, n);
+        return n;
+    }
+
+    private void record(long start, int n) {
+        long elapsed = System.nanoTime() - start;
+        nanos += elapsed;
+        if (n > 0) {
+            bytes += n;
+            metrics.addBytesInflated(n);
+        }
+        if (metrics.isTimingEnabled()) {
+            metrics.record(ConversionMetrics.Stage.UNZIP, elapsed);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package io.fmreis;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+
+/**
+ * Writes numbers with the {@link NumberFormat} of a locale, as the
+ * converters did before {@link ShortestNumberRenderer}: with grouping
+ * separators and at most three fraction digits.  Much slower, and the
+ * grouping separators of some locales must be quoted.
+ */
+public class NumberFormatRenderer implements NumberRenderer {
+    private final Locale locale;
+
+    // NumberFormat is not thread-safe
+    private final ThreadLocal<NumberFormat> numberFormat = new ThreadLocal<NumberFormat>() {
+        @Override
+        protected NumberFormat initialValue() {
+            return NumberFormat.getInstance(locale);
+        }
+    };
+
+    public NumberFormatRenderer(Locale locale) {
+        this.locale = locale;
+    }
+
+    @Override
+    public int render(double value, char[] buffer) {
+        String text = numberFormat.get().format(value);
+        text.getChars(0, text.length(), buffer, 0);
+        return text.length();
+    }
+
+    @Override
+    public String toString() {
+        return "NumberFormat(" + locale + ")";
+    }
+}
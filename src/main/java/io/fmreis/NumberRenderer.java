@@ -0,0 +1,26 @@
+package io.fmreis;
+
+/**
+ * Writes the numeric cell values of the CSV.
+ * <p>
+ * Renderers write into a buffer of the caller, so that numbers can be
+ * copied to the output without an intermediate String.  They may be used
+ * by several threads at once.
+ *
+ * @see XLSX2CSVImproved#setNumberRenderer(NumberRenderer)
+ */
+public interface NumberRenderer {
+
+    /**
+     * Length of the buffers given to {@link #render(double, char[])},
+     * enough for any double written in full with grouping separators
+     */
+    int MAX_LENGTH = 512;
+
+    /**
+     * @param value  The number
+     * @param buffer The buffer to write to, of {@link #MAX_LENGTH} chars
+     * @return The number of chars written at the start of the buffer
+     */
+    int render(double value, char[] buffer);
+}
@@ -0,0 +1,63 @@
+package io.fmreis;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the rate at which the number renderers write numbers.
+ * <p>
+ * Renders a mix of the values of typical sheets (integers, amounts with
+ * two decimals, measurements with more digits) with
+ * {@link ShortestNumberRenderer} and with {@link NumberFormatRenderer},
+ * after a warm-up of the same length.  Arguments: the number of values
+ * (default 1000000) and of rounds (default 5).
+ */
+public class NumberRendererBenchmark {
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        Random random = new Random(42);
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            switch (i % 3) {
+                case 0:
+                    values[i] = random.nextInt(1000000);
+                    break;
+                case 1:
+                    values[i] = random.nextInt(10000000) / 100.0;
+                    break;
+                default:
+                    values[i] = random.nextDouble() * 1000;
+                    break;
+            }
+        }
+
+        NumberRenderer[] renderers = {new ShortestNumberRenderer('.'), new NumberFormatRenderer(Locale.US)};
+        char[] buffer = new char[NumberRenderer.MAX_LENGTH];
+        for (NumberRenderer renderer : renderers) {
+            render(renderer, values, buffer);
+        }
+        for (int round = 1; round <= rounds; round++) {
+            StringBuilder line = new StringBuilder("round " + round + ":");
+            for (NumberRenderer renderer : renderers) {
+                long start = System.nanoTime();
+                long chars = render(renderer, values, buffer);
+                long nanos = System.nanoTime() - start;
+                line.append(' ').append(renderer.getClass().getSimpleName())
+                        .append(' ').append(count * 1000L / Math.max(1, nanos / 1000)).append(" numbers/ms")
+                        .append(" (").append(chars).append(" chars)");
+            }
+            System.out.println(line);
+        }
+    }
+
+    private static long render(NumberRenderer renderer, double[] values, char[] buffer) {
+        long chars = 0;
+        for (double value : values) {
+            chars += renderer.render(value, buffer);
+        }
+        return chars;
+    }
+}
@@ -0,0 +1,519 @@
+package io.fmreis;
+
+import org.apache.poi.xssf.model.SharedStrings;
+
+import java.util.Arrays;
+
+/**
+ * A reusable batch of rows of a sheet, held in primitive column arrays,
+ * for consumers that process the values rather than their CSV text.
+ * <p>
+ * Cells hold the raw values of the workbook, unformatted: numbers as
+ * {@code long} when they are whole, otherwise as {@code double}
+ * (dates are serial numbers), booleans, indexes into the shared strings
+ * table, and the text of inline strings, string formula results and
+ * errors, copied into a char array shared by the batch.  Filling a batch
+ * allocates nothing for numbers, booleans nor shared strings.
+ * <p>
+ * A batch only holds rows of a single sheet that have at least one cell.
+ * Its arrays are reused for the next rows once {@link RowBatchConsumer#accept}
+ * returns, so consumers must copy what they want to keep.
+ *
+ * @see XLSX2CSVImproved#setRowBatchConsumer(RowBatchConsumer, int)
+ */
+public final class RowBatch {
+
+    public static final byte NULL = 0;
+    public static final byte LONG = 1;
+    public static final byte DOUBLE = 2;
+    public static final byte BOOLEAN = 3;
+    public static final byte SHARED_STRING = 4;
+    public static final byte TEXT = 5;
+    public static final byte ERROR = 6;
+
+    private static final long NEGATIVE_ZERO = Double.doubleToRawLongBits(-0.0);
+
+    /**
+     * Heap of a cell of a column: type, null bit, long, double, boolean,
+     * shared string index, text offset and length
+     */
+    private static final int CELL_BYTES = 31;
+
+    /**
+     * Estimated chars of text per cell, copied into the chars of the batch
+     */
+    private static final int TEXT_CHARS_PER_CELL = 16;
+
+    /**
+     * Powers of ten that doubles hold exactly
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * The cells of a column of the batch, indexed by the position of the
+     * row in the batch.
+     */
+    public static final class Column {
+        private final byte[] types;
+        private final long[] nulls;
+        private final long[] longs;
+        private final double[] doubles;
+        private final boolean[] booleans;
+        private final int[] sharedStrings;
+        private final int[] textOffsets;
+        private final int[] textLengths;
+        private boolean used;
+
+        Column(int capacity) {
+            types = new byte[capacity];
+            nulls = new long[(capacity + 63) >>> 6];
+            Arrays.fill(nulls, -1L);
+            longs = new long[capacity];
+            doubles = new double[capacity];
+            booleans = new boolean[capacity];
+            sharedStrings = new int[capacity];
+            textOffsets = new int[capacity];
+            textLengths = new int[capacity];
+        }
+
+        private void set(int row, byte type) {
+            types[row] = type;
+            nulls[row >>> 6] &= ~(1L << row);
+            used = true;
+        }
+
+        private void clear(int size) {
+            Arrays.fill(types, 0, size, NULL);
+            Arrays.fill(nulls, -1L);
+            used = false;
+        }
+
+        /**
+         * @return The type of the cell, {@link #NULL} if the row has none in the column
+         */
+        public byte getType(int row) {
+            return types[row];
+        }
+
+        public boolean isNull(int row) {
+            return (nulls[row >>> 6] & (1L << row)) != 0;
+        }
+
+        /**
+         * @return The value of a {@link #LONG} cell
+         */
+        public long getLong(int row) {
+            return longs[row];
+        }
+
+        /**
+         * @return The value of a {@link #DOUBLE} or {@link #LONG} cell
+         */
+        public double getDouble(int row) {
+            return doubles[row];
+        }
+
+        /**
+         * @return The value of a {@link #BOOLEAN} cell
+         */
+        public boolean getBoolean(int row) {
+            return booleans[row];
+        }
+
+        /**
+         * @return The index of a {@link #SHARED_STRING} cell
+         * @see RowBatch#getSharedString(int)
+         */
+        public int getSharedStringIndex(int row) {
+            return sharedStrings[row];
+        }
+
+        /**
+         * @return The offset in {@link RowBatch#getChars()} of the text of a {@link #TEXT} or {@link #ERROR} cell
+         */
+        public int getTextOffset(int row) {
+            return textOffsets[row];
+        }
+
+        /**
+         * @return The length of the text of a {@link #TEXT} or {@link #ERROR} cell
+         */
+        public int getTextLength(int row) {
+            return textLengths[row];
+        }
+
+        /**
+         * @return The types of the cells, by row
+         */
+        public byte[] getTypes() {
+            return types;
+        }
+
+        /**
+         * @return The null bitmap: bit {@code row % 64} of word {@code row / 64} is set if the row has no cell
+         */
+        public long[] getNulls() {
+            return nulls;
+        }
+
+        /**
+         * @return The values of the {@link #LONG} cells, by row
+         */
+        public long[] getLongs() {
+            return longs;
+        }
+
+        /**
+         * @return The values of the {@link #DOUBLE} and {@link #LONG} cells, by row
+         */
+        public double[] getDoubles() {
+            return doubles;
+        }
+
+        /**
+         * @return The values of the {@link #BOOLEAN} cells, by row
+         */
+        public boolean[] getBooleans() {
+            return booleans;
+        }
+
+        /**
+         * @return The indexes of the {@link #SHARED_STRING} cells, by row
+         */
+        public int[] getSharedStringIndexes() {
+            return sharedStrings;
+        }
+    }
+
+    private final int capacity;
+    private final int[] rowNumbers;
+    private Column[] columns = new Column[16];
+    private int columnCount;
+    private char[] chars = new char[1024];
+    private int charsLength;
+    private int size;
+    private String sheetName;
+    private SheetSchema schema;
+    private SharedStrings strings;
+
+    /**
+     * @param capacity The number of rows of the batch
+     */
+    public RowBatch(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("A row batch needs room for at least 1 row: " + capacity);
+        }
+        this.capacity = capacity;
+        this.rowNumbers = new int[capacity];
+    }
+
+    /**
+     * Empties the batch for the rows of a sheet.
+     *
+     * @param schema  The schema of the sheet, or null
+     * @param strings The shared strings the cells refer to
+     */
+    void startSheet(String sheetName, SheetSchema schema, SharedStrings strings) {
+        clear();
+        this.sheetName = sheetName;
+        this.schema = schema;
+        this.strings = strings;
+    }
+
+    /**
+     * Empties the batch, keeping its arrays.
+     */
+    void clear() {
+        for (int i = 0; i < columnCount; i++) {
+            if (columns[i] != null) {
+                columns[i].clear(size);
+            }
+        }
+        size = 0;
+        columnCount = 0;
+        charsLength = 0;
+    }
+
+    /**
+     * Adds a row, whose cells are set next.
+     */
+    void addRow(int rowNum) {
+        rowNumbers[size++] = rowNum;
+    }
+
+    boolean isFull() {
+        return size == capacity;
+    }
+
+    private Column column(int column) {
+        if (column >= columns.length) {
+            columns = Arrays.copyOf(columns, Math.max(column + 1, columns.length * 2));
+        }
+        Column c = columns[column];
+        if (c == null) {
+            c = new Column(capacity);
+            columns[column] = c;
+        }
+        if (column >= columnCount) {
+            columnCount = column + 1;
+        }
+        return c;
+    }
+
+    void setNumber(int column, CharSequence value) {
+        int row = size - 1;
+        Column c = column(column);
+        long l = parseLong(value);
+        if (l != Long.MIN_VALUE) {
+            c.longs[row] = l;
+            c.doubles[row] = l;
+            c.set(row, LONG);
+            return;
+        }
+        double d;
+        try {
+            d = parseDouble(value);
+        } catch (NumberFormatException e) {
+            setText(column, value, TEXT);
+            return;
+        }
+        c.doubles[row] = d;
+        // whole numbers are often written as 1.0
+        if (d == (long) d && Math.abs(d) < 1L << 53 && Double.doubleToRawLongBits(d) != NEGATIVE_ZERO) {
+            c.longs[row] = (long) d;
+            c.set(row, LONG);
+        } else {
+            c.set(row, DOUBLE);
+        }
+    }
+
+    void setBoolean(int column, boolean value) {
+        int row = size - 1;
+        Column c = column(column);
+        c.booleans[row] = value;
+        c.set(row, BOOLEAN);
+    }
+
+    void setSharedString(int column, int index) {
+        int row = size - 1;
+        Column c = column(column);
+        c.sharedStrings[row] = index;
+        c.set(row, SHARED_STRING);
+    }
+
+    void setText(int column, CharSequence value, byte type) {
+        int row = size - 1;
+        Column c = column(column);
+        int length = value.length();
+        if (charsLength + length > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(charsLength + length, chars.length * 2));
+        }
+        for (int i = 0; i < length; i++) {
+            chars[charsLength + i] = value.charAt(i);
+        }
+        c.textOffsets[row] = charsLength;
+        c.textLengths[row] = length;
+        charsLength += length;
+        c.set(row, type);
+    }
+
+    /**
+     * @return The whole number written in the chars, or {@link Long#MIN_VALUE} if they are not one
+     */
+    static long parseLong(CharSequence chars) {
+        int length = chars.length();
+        int i = length > 0 && chars.charAt(0) == '-' ? 1 : 0;
+        // 18 digits never overflow
+        if (length == i || length - i > 18 || (i == 1 && length == 2 && chars.charAt(1) == '0')) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (; i < length; i++) {
+            char c = chars.charAt(i);
+            if (c < '0' || c > '9') {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return chars.charAt(0) == '-' ? -value : value;
+    }
+
+    /**
+     * Parses a number without building a String when it has at most 15
+     * digits and a small exponent, which a single exact multiplication or
+     * division then rounds correctly; other numbers go through
+     * {@link Double#parseDouble(String)}.
+     *
+     * @throws NumberFormatException If the chars are not a number
+     */
+    static double parseDouble(CharSequence chars) {
+        int length = chars.length();
+        int i = 0;
+        boolean negative = length > 0 && chars.charAt(0) == '-';
+        if (negative) {
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean dot = false;
+        for (; i < length; i++) {
+            char c = chars.charAt(i);
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                if (++digits > 15) {
+                    return Double.parseDouble(chars.toString());
+                }
+                if (dot) {
+                    scale++;
+                }
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else {
+                break;
+            }
+        }
+        int exponent = 0;
+        if (i < length && (chars.charAt(i) == 'E' || chars.charAt(i) == 'e')) {
+            int j = i + 1;
+            boolean negativeExponent = j < length && chars.charAt(j) == '-';
+            if (j < length && (chars.charAt(j) == '-' || chars.charAt(j) == '+')) {
+                j++;
+            }
+            if (j == length || length - j > 3) {
+                return Double.parseDouble(chars.toString());
+            }
+            for (; j < length; j++) {
+                char c = chars.charAt(j);
+                if (c < '0' || c > '9') {
+                    return Double.parseDouble(chars.toString());
+                }
+                exponent = exponent * 10 + (c - '0');
+            }
+            exponent = negativeExponent ? -exponent : exponent;
+            i = length;
+        }
+        if (i < length || digits == 0) {
+            return Double.parseDouble(chars.toString());
+        }
+        int power = exponent - scale;
+        if (power < -22 || power > 22) {
+            return Double.parseDouble(chars.toString());
+        }
+        double value = power < 0 ? mantissa / POWERS_OF_TEN[-power] : mantissa * POWERS_OF_TEN[power];
+        return negative ? -value : value;
+    }
+
+    public String getSheetName() {
+        return sheetName;
+    }
+
+    /**
+     * @return The schema of the sheet, or null if it has none
+     */
+    public SheetSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * @return The number of rows in the batch
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param columns The number of columns of the sheets
+     * @return The estimated heap of the batch once it holds rows of that many columns
+     */
+    public long getHeapBytes(int columns) {
+        return 4L * capacity + (long) capacity * Math.max(1, columns) * (CELL_BYTES + 2 * TEXT_CHARS_PER_CELL);
+    }
+
+    /**
+     * @return The 0-based index in the sheet of the row at a position of the batch
+     */
+    public int getRowNumber(int row) {
+        return rowNumbers[row];
+    }
+
+    /**
+     * @return The 0-based indexes in the sheet of the rows, by position in the batch
+     */
+    public int[] getRowNumbers() {
+        return rowNumbers;
+    }
+
+    /**
+     * @return One more than the index of the rightmost column with a cell in the batch
+     */
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    /**
+     * @param column The 0-based column index
+     * @return The column, or null if no row of the batch has a cell in it
+     */
+    public Column getColumn(int column) {
+        Column c = column < columnCount ? columns[column] : null;
+        return c != null && c.used ? c : null;
+    }
+
+    /**
+     * @return The chars of the {@link #TEXT} and {@link #ERROR} cells
+     */
+    public char[] getChars() {
+        return chars;
+    }
+
+    /**
+     * @param index The index of a {@link #SHARED_STRING} cell
+     * @return The shared string
+     */
+    public String getSharedString(int index) {
+        if (strings instanceof SpillableSharedStringsTable) {
+            return XSSFSheetTest.decode(((SpillableSharedStringsTable) strings).getEntryAt(index));
+        }
+        return strings.getItemAt(index).getString();
+    }
+
+    /**
+     * Builds the String of a cell of any type, which the typed getters avoid.
+     *
+     * @return The value of the cell as text, or null if the row has none in the column
+     */
+    public String getString(int column, int row) {
+        Column c = getColumn(column);
+        if (c == null) {
+            return null;
+        }
+        switch (c.types[row]) {
+            case LONG:
+                return Long.toString(c.longs[row]);
+            case DOUBLE:
+                return Double.toString(c.doubles[row]);
+            case BOOLEAN:
+                return c.booleans[row] ? "TRUE" : "FALSE";
+            case SHARED_STRING:
+                return getSharedString(c.sharedStrings[row]);
+            case TEXT:
+            case ERROR:
+                return new String(chars, c.textOffsets[row], c.textLengths[row]);
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return sheetName + ": " + size + " rows, " + columnCount + " columns";
+    }
+}
@@ -0,0 +1,25 @@
+package io.fmreis;
+
+import java.io.IOException;
+
+/**
+ * Receives the data rows of the sheets in {@link RowBatch batches} of
+ * primitive columns, instead of their CSV text.
+ * <p>
+ * Batches are received one after the other, on the thread converting the
+ * workbook, each holding rows of a single sheet; the last batch of a
+ * sheet may hold fewer rows than the others.  The same batch is filled
+ * again once {@link #accept} returns.
+ *
+ * @see XLSX2CSVImproved#setRowBatchConsumer(RowBatchConsumer, int)
+ */
+public interface RowBatchConsumer {
+
+    void accept(RowBatch batch) throws IOException;
+
+    /**
+     * Called after the last batch of a sheet, or for a sheet without any data row.
+     */
+    default void endSheet(String sheetName) throws IOException {
+    }
+}
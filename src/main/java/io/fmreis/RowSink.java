@@ -0,0 +1,59 @@
+package io.fmreis;
+
+import java.io.IOException;
+
+/**
+ * Receives the typed values of the data rows of the sheets, instead of
+ * their CSV text, for destinations such as {@link JdbcRowSink} that would
+ * otherwise parse the CSV again.
+ * <p>
+ * Sheets are received one after the other, on the thread converting the
+ * workbook: {@link #startSheet}, then for each data row {@link #startRow},
+ * its non-empty cells left to right, and {@link #endRow}, then
+ * {@link #endSheet}.  Rows without any cell are not received.
+ *
+ * @see XLSX2CSVImproved#setRowSink(RowSink)
+ */
+public interface RowSink {
+
+    /**
+     * @param sheetName The name of the sheet
+     * @param schema    The schema of the sheet, or null if it has none
+     */
+    void startSheet(String sheetName, SheetSchema schema) throws IOException;
+
+    /**
+     * @param rowNum The 0-based row index
+     */
+    void startRow(int rowNum) throws IOException;
+
+    /**
+     * Receives a numeric cell.
+     *
+     * @param column The 0-based column index
+     */
+    void number(int column, double value) throws IOException;
+
+    /**
+     * Receives a cell that is not numeric.
+     *
+     * @param column The 0-based column index
+     */
+    void text(int column, String value) throws IOException;
+
+    /**
+     * @param rowNum The 0-based row index
+     */
+    void endRow(int rowNum) throws IOException;
+
+    void endSheet() throws IOException;
+
+    /**
+     * @param columns The number of columns of the sheets
+     * @return The estimated heap of the rows the sink may hold at once,
+     *         counted by {@link MemoryBudget}; 0 if it holds none
+     */
+    default long getHeapBytes(int columns) {
+        return 0;
+    }
+}
@@ -0,0 +1,313 @@
+package io.fmreis;
+
+import org.apache.poi.xssf.model.SharedStrings;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Infers the {@link SheetSchema} of a sheet from its first rows.
+ * <p>
+ * The sheet is parsed until the sample is complete and then abandoned,
+ * so the cost does not depend on the size of the sheet.  The header row
+ * is the first sampled row whose values are all text and that stands
+ * above at least one column holding numbers or dates; titles above it
+ * and tables made of text only therefore have no header.  The types of
+ * the columns are those of the rows below the header.
+ */
+final class SchemaInferencer implements XSSFSheetTest.SheetContentsHandler {
+
+    /**
+     * Number of rows sampled when no other number is given
+     */
+    static final int DEFAULT_SAMPLE_ROWS = 100;
+
+    /**
+     * Number of leading rows that may be tried as the header row
+     */
+    private static final int MAX_HEADER_CANDIDATES = 10;
+
+    private static final Pattern DATE = Pattern.compile(
+            "\\d{1,4}[-/.]\\d{1,2}[-/.]\\d{1,4}(?:[ T]\\d{1,2}:\\d{2}(?::\\d{2}(?:\\.\\d+)?)?(?: ?[AaPp][Mm])?)?"
+                    + "|\\d{1,2}:\\d{2}(?::\\d{2}(?:\\.\\d+)?)?(?: ?[AaPp][Mm])?"
+                    + "|\\d{1,2}-[A-Za-z]{3,9}(?:-\\d{2,4})?|[A-Za-z]{3,9}-\\d{2,4}");
+
+    /**
+     * The non-empty values of one sampled row
+     */
+    private static final class SampledRow {
+        final int rowNum;
+        final List<Integer> columns = new ArrayList<>();
+        final List<String> values = new ArrayList<>();
+
+        SampledRow(int rowNum) {
+            this.rowNum = rowNum;
+        }
+    }
+
+    private final String sheetName;
+    private final int sampleRows;
+    private final ConversionMetrics metrics;
+    private final ConversionMetrics.SheetStats sheetStats;
+    private final List<SampledRow> rows = new ArrayList<>();
+    private SampledRow currentRow;
+    private int currentCol;
+    private int currentRowCells;
+    private int firstRowCells = -1;
+
+    /**
+     * @param sheetName  The name of the sheet
+     * @param sampleRows The number of rows to sample
+     * @param metrics    The metrics to count the sampled rows and cells in, or null
+     * @param sheetStats The statistics of the sheet, if metrics are given
+     */
+    SchemaInferencer(String sheetName, int sampleRows, ConversionMetrics metrics, ConversionMetrics.SheetStats sheetStats) {
+        this.sheetName = sheetName;
+        this.sampleRows = sampleRows;
+        this.metrics = metrics;
+        this.sheetStats = sheetStats;
+    }
+
+    /**
+     * Parses the first rows of a sheet.
+     *
+     * @param styles           The table of styles that may be referenced by cells in the sheet
+     * @param strings          The table of strings that may be referenced by cells in the sheet
+     * @param sheetInputStream The stream to read the sheet-data from, left partially read
+     */
+    void sample(CellNumberFormats styles, SharedStrings strings, InputStream sheetInputStream) throws IOException, SAXException {
+        // the rest of the sheet is not needed
+        SheetScanner.scan(styles, strings, this, SheetScanner.firstRows(sampleRows), sheetInputStream, metrics);
+    }
+
+    @Override
+    public void startRow(int rowNum) {
+        currentRow = new SampledRow(rowNum);
+        currentCol = -1;
+        currentRowCells = 0;
+    }
+
+    @Override
+    public void endRow(int rowNum) {
+        if (firstRowCells < 0) {
+            firstRowCells = currentRowCells;
+        }
+        if (metrics != null) {
+            metrics.rowCompleted(sheetStats);
+        }
+        rows.add(currentRow);
+    }
+
+    @Override
+    public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+        if (metrics != null) {
+            metrics.cellCompleted();
+        }
+        currentRowCells++;
+        long packedRef = cellReference == null ? -1 : XSSFSheetTest.packCellRef(cellReference);
+        currentCol = packedRef >= 0 ? (int) packedRef : currentCol + 1;
+        if (formattedValue != null && !formattedValue.trim().isEmpty()) {
+            currentRow.columns.add(currentCol);
+            currentRow.values.add(formattedValue);
+        }
+    }
+
+    /**
+     * @return The number of cells of the first row, or 0 if the sheet has no rows
+     */
+    int getFirstRowCells() {
+        return Math.max(firstRowCells, 0);
+    }
+
+    /**
+     * @return The schema of the sampled rows
+     */
+    SheetSchema getSchema() {
+        int headerIndex = -1;
+        SheetSchema.ColumnType[] types = null;
+        int candidates = Math.min(rows.size() - 1, MAX_HEADER_CANDIDATES);
+        for (int i = 0; i < candidates && headerIndex < 0; i++) {
+            SampledRow row = rows.get(i);
+            if (row.columns.isEmpty() || !allText(row)) {
+                continue;
+            }
+            SheetSchema.ColumnType[] below = columnTypes(i + 1);
+            for (int col : row.columns) {
+                SheetSchema.ColumnType type = col < below.length ? below[col] : SheetSchema.ColumnType.EMPTY;
+                if (type != SheetSchema.ColumnType.EMPTY && type != SheetSchema.ColumnType.STRING) {
+                    headerIndex = i;
+                    types = below;
+                    break;
+                }
+            }
+        }
+        if (headerIndex < 0) {
+            types = columnTypes(0);
+        }
+
+        String[] headers = new String[types.length];
+        int headerRow = -1;
+        int firstDataRow = 0;
+        if (headerIndex >= 0) {
+            SampledRow header = rows.get(headerIndex);
+            headerRow = header.rowNum;
+            firstDataRow = headerRow + 1;
+            for (int j = 0; j < header.columns.size(); j++) {
+                int col = header.columns.get(j);
+                if (col >= headers.length) {
+                    headers = Arrays.copyOf(headers, col + 1);
+                    types = Arrays.copyOf(types, col + 1);
+                    types[col] = SheetSchema.ColumnType.EMPTY;
+                }
+                headers[col] = header.values.get(j);
+            }
+        } else {
+            for (SampledRow row : rows) {
+                if (!row.columns.isEmpty()) {
+                    firstDataRow = row.rowNum;
+                    break;
+                }
+            }
+        }
+
+        int firstColumn = types.length;
+        for (int i = Math.max(headerIndex, 0); i < rows.size(); i++) {
+            for (int col : rows.get(i).columns) {
+                firstColumn = Math.min(firstColumn, col);
+            }
+        }
+        for (int col = 0; col < types.length; col++) {
+            if (types[col] == null) {
+                types[col] = SheetSchema.ColumnType.EMPTY;
+            }
+        }
+        return new SheetSchema(sheetName, headerRow, firstDataRow, types.length == 0 ? 0 : firstColumn,
+                types, headers, rows.size());
+    }
+
+    private static boolean allText(SampledRow row) {
+        for (String value : row.values) {
+            if (classify(value) != SheetSchema.ColumnType.STRING) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The types of the columns of the sampled rows from the given one on
+     */
+    private SheetSchema.ColumnType[] columnTypes(int fromRow) {
+        int width = 0;
+        for (int i = fromRow; i < rows.size(); i++) {
+            for (int col : rows.get(i).columns) {
+                width = Math.max(width, col + 1);
+            }
+        }
+        SheetSchema.ColumnType[] types = new SheetSchema.ColumnType[width];
+        Arrays.fill(types, SheetSchema.ColumnType.EMPTY);
+        for (int i = fromRow; i < rows.size(); i++) {
+            SampledRow row = rows.get(i);
+            for (int j = 0; j < row.columns.size(); j++) {
+                int col = row.columns.get(j);
+                types[col] = types[col].widen(classify(row.values.get(j)));
+            }
+        }
+        return types;
+    }
+
+    /**
+     * @return The type of a formatted value
+     */
+    static SheetSchema.ColumnType classify(String value) {
+        String trimmed = value.trim();
+        if (trimmed.isEmpty()) {
+            return SheetSchema.ColumnType.EMPTY;
+        }
+        SheetSchema.ColumnType number = numberType(trimmed);
+        if (number != null) {
+            return number;
+        }
+        return DATE.matcher(trimmed).matches() ? SheetSchema.ColumnType.DATE : SheetSchema.ColumnType.STRING;
+    }
+
+    /**
+     * Recognises the plain numbers {@link org.apache.poi.ss.usermodel.DataFormatter}
+     * writes in the US locale: an optional minus sign, digits with optional
+     * grouping commas, an optional fraction and an optional exponent.
+     *
+     * @return {@link SheetSchema.ColumnType#INTEGER}, {@link SheetSchema.ColumnType#DECIMAL},
+     *         or null if the value is not such a number
+     */
+    static SheetSchema.ColumnType numberType(String value) {
+        int length = value.length();
+        int i = 0;
+        if (i < length && value.charAt(i) == '-') {
+            i++;
+        }
+        int digits = 0;
+        while (i < length) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+            } else if (c != ',' || digits == 0 || i + 1 == length) {
+                break;
+            }
+            i++;
+        }
+        boolean decimal = false;
+        if (i < length && value.charAt(i) == '.') {
+            decimal = true;
+            i++;
+            while (i < length && value.charAt(i) >= '0' && value.charAt(i) <= '9') {
+                digits++;
+                i++;
+            }
+        }
+        if (digits == 0) {
+            return null;
+        }
+        if (i < length && (value.charAt(i) == 'E' || value.charAt(i) == 'e')) {
+            decimal = true;
+            i++;
+            if (i < length && (value.charAt(i) == '+' || value.charAt(i) == '-')) {
+                i++;
+            }
+            int exponentDigits = 0;
+            while (i < length && value.charAt(i) >= '0' && value.charAt(i) <= '9') {
+                exponentDigits++;
+                i++;
+            }
+            if (exponentDigits == 0) {
+                return null;
+            }
+        }
+        if (i != length) {
+            return null;
+        }
+        return decimal ? SheetSchema.ColumnType.DECIMAL : SheetSchema.ColumnType.INTEGER;
+    }
+
+    /**
+     * Parses a value {@link #numberType(String)} recognised as a number.
+     */
+    static double parseNumber(String value) {
+        if (value.indexOf(',') < 0) {
+            return Double.parseDouble(value);
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != ',') {
+                sb.append(c);
+            }
+        }
+        return Double.parseDouble(sb.toString());
+    }
+}
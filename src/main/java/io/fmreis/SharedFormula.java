@@ -0,0 +1,249 @@
+package io.fmreis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The formula of the master cell of a shared formula group, tokenized
+ * once into literal text and cell references so that the formula of any
+ * cell of the group can be rendered by shifting the relative references.
+ * <p>
+ * The tokenizer only needs to tell cell, column and row references apart
+ * from everything else: string literals, function names (followed by
+ * {@code (}), sheet names, defined names (which may not look like cell
+ * references) and bracketed structured or external references are kept
+ * as literal text.  References shifted off the sheet render as
+ * {@code #REF!}, like Excel does.
+ */
+class SharedFormula {
+    private static final int MAX_ROW = 1048575;
+    private static final int MAX_COL = 16383;
+
+    /**
+     * Part of a reference: a column, a row, or both
+     */
+    private static final class Ref {
+        final int col;
+        final boolean colAbsolute;
+        final int row;
+        final boolean rowAbsolute;
+
+        Ref(int col, boolean colAbsolute, int row, boolean rowAbsolute) {
+            this.col = col;
+            this.colAbsolute = colAbsolute;
+            this.row = row;
+            this.rowAbsolute = rowAbsolute;
+        }
+    }
+
+    private final int masterRow;
+    private final int masterCol;
+    /**
+     * Literal Strings and Refs, in formula order
+     */
+    private final List<Object> tokens;
+
+    private SharedFormula(int masterRow, int masterCol, List<Object> tokens) {
+        this.masterRow = masterRow;
+        this.masterCol = masterCol;
+        this.tokens = tokens;
+    }
+
+    /**
+     * @param formula   The formula text of the master cell, without the leading {@code =}
+     * @param masterRow The 0-based row of the master cell
+     * @param masterCol The 0-based column of the master cell
+     */
+    static SharedFormula parse(String formula, int masterRow, int masterCol) {
+        List<Object> tokens = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int length = formula.length();
+        int i = 0;
+        while (i < length) {
+            char c = formula.charAt(i);
+            if (c == '"' || c == '\'' || c == '[') {
+                i = skipQuoted(formula, i, literal);
+                continue;
+            }
+            if (isNameChar(c) && (i == 0 || !isNameChar(formula.charAt(i - 1)))) {
+                int end = i;
+                while (end < length && isNameChar(formula.charAt(end))) {
+                    end++;
+                }
+                String word = formula.substring(i, end);
+                boolean function = end < length && formula.charAt(end) == '(';
+                boolean sheet = end < length && formula.charAt(end) == '!';
+                Ref ref = function || sheet ? null : parseRef(word, rangePartner(formula, i, end));
+                if (ref != null) {
+                    if (literal.length() > 0) {
+                        tokens.add(literal.toString());
+                        literal.setLength(0);
+                    }
+                    tokens.add(ref);
+                } else {
+                    literal.append(word);
+                }
+                i = end;
+                continue;
+            }
+            literal.append(c);
+            i++;
+        }
+        if (literal.length() > 0) {
+            tokens.add(literal.toString());
+        }
+        return new SharedFormula(masterRow, masterCol, tokens);
+    }
+
+    /**
+     * Renders the formula of a cell of the group.
+     *
+     * @param row The 0-based row of the cell
+     * @param col The 0-based column of the cell
+     */
+    String render(int row, int col) {
+        int rowOffset = row - masterRow;
+        int colOffset = col - masterCol;
+        StringBuilder sb = new StringBuilder(32);
+        for (Object token : tokens) {
+            if (token instanceof String) {
+                sb.append((String) token);
+                continue;
+            }
+            Ref ref = (Ref) token;
+            int refCol = ref.col < 0 || ref.colAbsolute ? ref.col : ref.col + colOffset;
+            int refRow = ref.row < 0 || ref.rowAbsolute ? ref.row : ref.row + rowOffset;
+            if ((ref.col >= 0 && (refCol < 0 || refCol > MAX_COL)) || (ref.row >= 0 && (refRow < 0 || refRow > MAX_ROW))) {
+                sb.append("#REF!");
+                continue;
+            }
+            if (ref.col >= 0) {
+                if (ref.colAbsolute) {
+                    sb.append('$');
+                }
+                appendColumn(sb, refCol);
+            }
+            if (ref.row >= 0) {
+                if (ref.rowAbsolute) {
+                    sb.append('$');
+                }
+                sb.append(refRow + 1);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                || c == '$' || c == '_' || c == '.' || c == '\\';
+    }
+
+    /**
+     * Copies a quoted string, quoted sheet name or bracketed part to the literal.
+     *
+     * @return The index after the closing character
+     */
+    private static int skipQuoted(String formula, int start, StringBuilder literal) {
+        char open = formula.charAt(start);
+        char close = open == '[' ? ']' : open;
+        int depth = 0;
+        int i = start;
+        while (i < formula.length()) {
+            char c = formula.charAt(i++);
+            literal.append(c);
+            if (open == '[' && c == '[') {
+                depth++;
+            } else if (c == close && i - 1 > start) {
+                if (open == '[') {
+                    if (--depth == 0) {
+                        break;
+                    }
+                } else if (i < formula.length() && formula.charAt(i) == close) {
+                    // doubled quote
+                    literal.append(formula.charAt(i++));
+                } else {
+                    break;
+                }
+            }
+        }
+        return i;
+    }
+
+    /**
+     * @return 1 if the word is followed by {@code :} and -1 if preceded by one,
+     *         so that whole column and row ranges can be recognised; 0 otherwise
+     */
+    private static int rangePartner(String formula, int start, int end) {
+        if (end < formula.length() && formula.charAt(end) == ':') {
+            return 1;
+        }
+        if (start > 0 && formula.charAt(start - 1) == ':') {
+            return -1;
+        }
+        return 0;
+    }
+
+    /**
+     * @return The reference the word stands for, or null if it is not one
+     */
+    private static Ref parseRef(String word, int rangePartner) {
+        int i = 0;
+        int length = word.length();
+        boolean colAbsolute = false;
+        if (i < length && word.charAt(i) == '$') {
+            colAbsolute = true;
+            i++;
+        }
+        int col = 0;
+        int letters = 0;
+        while (i < length && Character.isLetter(word.charAt(i)) && word.charAt(i) < 128) {
+            col = col * 26 + (Character.toUpperCase(word.charAt(i)) - 'A' + 1);
+            letters++;
+            i++;
+        }
+        boolean rowAbsolute = false;
+        if (letters == 0 && colAbsolute) {
+            // a row reference such as $1
+            colAbsolute = false;
+            rowAbsolute = true;
+        } else if (i < length && word.charAt(i) == '$') {
+            rowAbsolute = true;
+            i++;
+        }
+        int row = 0;
+        int digits = 0;
+        while (i < length && word.charAt(i) >= '0' && word.charAt(i) <= '9' && digits < 8) {
+            row = row * 10 + (word.charAt(i) - '0');
+            digits++;
+            i++;
+        }
+        if (i != length || letters > 3 || col - 1 > MAX_COL) {
+            return null;
+        }
+        if (letters > 0 && digits > 0) {
+            return row >= 1 && row - 1 <= MAX_ROW ? new Ref(col - 1, colAbsolute, row - 1, rowAbsolute) : null;
+        }
+        if (rangePartner == 0) {
+            return null;
+        }
+        if (letters > 0 && !rowAbsolute) {
+            // whole column, e.g. A:C
+            return new Ref(col - 1, colAbsolute, -1, false);
+        }
+        if (digits > 0 && !colAbsolute && row >= 1) {
+            // whole row, e.g. 1:3
+            return new Ref(-1, false, row - 1, rowAbsolute);
+        }
+        return null;
+    }
+
+    private static void appendColumn(StringBuilder sb, int col) {
+        int start = sb.length();
+        int n = col + 1;
+        while (n > 0) {
+            int rem = (n - 1) % 26;
+            sb.insert(start, (char) ('A' + rem));
+            n = (n - 1) / 26;
+        }
+    }
+}
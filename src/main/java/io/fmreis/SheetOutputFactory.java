@@ -0,0 +1,21 @@
+package io.fmreis;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Opens a separate destination for the CSV of each sheet.
+ *
+ * @see XLSX2CSVImproved#setSheetOutputs(SheetOutputFactory)
+ */
+public interface SheetOutputFactory {
+
+    /**
+     * Opens the destination of a sheet.  The converter closes it once the
+     * sheet is written.  Sheets may be opened from several threads at once.
+     *
+     * @param sheetName  The name of the sheet
+     * @param sheetIndex The 0-based position of the sheet in the workbook
+     */
+    Writer open(String sheetName, int sheetIndex) throws IOException;
+}
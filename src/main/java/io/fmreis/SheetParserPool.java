@@ -0,0 +1,128 @@
+package io.fmreis;
+
+import org.apache.poi.ooxml.util.SAXHelper;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.xssf.model.Comments;
+import org.apache.poi.xssf.model.SharedStrings;
+import org.apache.poi.xssf.model.Styles;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Thread-confined sheet parsers.
+ * <p>
+ * Creating a SAX reader goes through the JAXP factory lookup and parser
+ * configuration, and a {@link DataFormatter} compiles and caches number
+ * formats as they are met, which is a large part of the cost of a small
+ * sheet.  Each thread therefore keeps one configured reader, one
+ * formatter and one {@link XSSFSheetTest} handler, reset between sheets
+ * and reused across files.
+ * <p>
+ * A reader whose parse failed is discarded rather than reused, so that
+ * no state of an aborted document can leak into the next one; a parse
+ * stopped on purpose by a {@link SheetScanner} is not a failure.  Nested
+ * parses on the same thread (from within a sheet handler) get a pool of
+ * their own.
+ */
+final class SheetParserPool {
+
+    private static final ThreadLocal<SheetParserPool> POOL = new ThreadLocal<SheetParserPool>() {
+        @Override
+        protected SheetParserPool initialValue() {
+            return new SheetParserPool();
+        }
+    };
+
+    private final DataFormatter formatter = new DataFormatter();
+    private final XSSFSheetTest handler = new XSSFSheetTest(null, null, null, formatter, false);
+    private XMLReader reader;
+    private boolean inUse;
+    private long recordedLookups;
+    private long recordedHits;
+
+    private SheetParserPool() {
+    }
+
+    /**
+     * @return The parsers of the current thread
+     */
+    static SheetParserPool get() {
+        SheetParserPool pool = POOL.get();
+        return pool.inUse ? new SheetParserPool() : pool;
+    }
+
+    /**
+     * Parses one sheet with the pooled reader and handler of the current thread.
+     *
+     * @param styles             The table of styles that may be referenced by cells in the sheet
+     * @param comments           The comments of the sheet, or null
+     * @param strings            The table of strings that may be referenced by cells in the sheet
+     * @param sheetHandler       The handler receiving the rows and cells
+     * @param formulasNotResults Whether to output the formulas rather than their cached results
+     * @param sheetInputStream   The stream to read the sheet-data from
+     * @param metrics            The metrics to report string deduplication to, or null
+     * @return The number of cells of the sheet that refer to a shared string
+     */
+    long parse(Styles styles, Comments comments, SharedStrings strings,
+               XSSFSheetTest.SheetContentsHandler sheetHandler, boolean formulasNotResults,
+               InputStream sheetInputStream, ConversionMetrics metrics) throws IOException, SAXException {
+        return parse(styles, null, comments, strings, sheetHandler, formulasNotResults, sheetInputStream, metrics);
+    }
+
+    /**
+     * @param numberFormats The number formats of the cell styles that may be referenced by cells in the sheet
+     * @see #parse(Styles, Comments, SharedStrings, XSSFSheetTest.SheetContentsHandler, boolean, InputStream, ConversionMetrics)
+     */
+    long parse(CellNumberFormats numberFormats, Comments comments, SharedStrings strings,
+               XSSFSheetTest.SheetContentsHandler sheetHandler, boolean formulasNotResults,
+               InputStream sheetInputStream, ConversionMetrics metrics) throws IOException, SAXException {
+        return parse(null, numberFormats, comments, strings, sheetHandler, formulasNotResults, sheetInputStream, metrics);
+    }
+
+    long parse(Styles styles, CellNumberFormats numberFormats, Comments comments, SharedStrings strings,
+               XSSFSheetTest.SheetContentsHandler sheetHandler, boolean formulasNotResults,
+               InputStream sheetInputStream, ConversionMetrics metrics) throws IOException, SAXException {
+        XMLReader sheetParser = reader;
+        reader = null;
+        if (sheetParser == null) {
+            try {
+                sheetParser = SAXHelper.newXMLReader();
+            } catch (ParserConfigurationException e) {
+                throw new RuntimeException("SAX parser appears to be broken - " + e.getMessage());
+            }
+            sheetParser.setContentHandler(handler);
+        }
+        handler.reset(styles, numberFormats, comments, strings, sheetHandler, formulasNotResults);
+        inUse = true;
+        try {
+            sheetParser.parse(new InputSource(sheetInputStream));
+            reader = sheetParser;
+            return handler.getSharedStringCells();
+        } catch (SheetScanner.Stopped e) {
+            // stopped on purpose by the handler: the parser starts afresh on the next sheet
+            reader = sheetParser;
+            throw e;
+        } finally {
+            inUse = false;
+            // drop the references to the workbook, which may be large
+            handler.reset(null, null, null, null, null, false);
+            if (metrics != null) {
+                recordDeduplication(metrics);
+            }
+        }
+    }
+
+    private void recordDeduplication(ConversionMetrics metrics) {
+        StringDeduplicator deduplicator = handler.getDeduplicator();
+        if (deduplicator != null) {
+            metrics.addDeduplication(deduplicator.getLookups() - recordedLookups, deduplicator.getHits() - recordedHits);
+            recordedLookups = deduplicator.getLookups();
+            recordedHits = deduplicator.getHits();
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package io.fmreis;
+
+import org.apache.poi.xssf.model.Comments;
+import org.apache.poi.xssf.model.SharedStrings;
+import org.apache.poi.xssf.model.Styles;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Parses a sheet only until a condition is met, such as the first rows,
+ * a given row or a given value, then abandons the parse, so that the
+ * cost depends on where the condition is met rather than on the size of
+ * the sheet.
+ * <p>
+ * The parse is stopped by a single preallocated exception without a
+ * stack trace, thrown from the handler through the parser; the parser
+ * itself goes back to the {@link SheetParserPool} for the next sheet.
+ * Rows are always delivered whole: a condition met on a cell stops the
+ * parse at the end of its row.  The stream is left partially read;
+ * closing it ends the inflater without inflating the rest.
+ */
+public final class SheetScanner {
+
+    /**
+     * Decides when a scan stops.  Methods that are not overridden never stop it.
+     */
+    public interface Condition {
+
+        /**
+         * Called before a row is delivered.
+         *
+         * @param rowNum The 0-based row index
+         * @return Whether to stop before the row
+         */
+        default boolean startRow(int rowNum) {
+            return false;
+        }
+
+        /**
+         * Called after a cell is delivered.
+         *
+         * @param rowNum The 0-based row index
+         * @param column The 0-based column index
+         * @param value  The formatted value of the cell
+         * @return Whether to stop at the end of the row
+         */
+        default boolean cell(int rowNum, int column, String value) {
+            return false;
+        }
+
+        /**
+         * Called after a row is delivered.
+         *
+         * @param rowNum The 0-based row index
+         * @param rows   The number of rows delivered so far, this one included
+         * @return Whether to stop after the row
+         */
+        default boolean endRow(int rowNum, long rows) {
+            return false;
+        }
+    }
+
+    /**
+     * Thrown through the parser to stop it
+     */
+    static final class Stopped extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private Stopped() {
+            super("Scan stopped", null, false, false);
+        }
+    }
+
+    /**
+     * Immutable without a stack trace, so a single instance serves all threads
+     */
+    static final Stopped STOPPED = new Stopped();
+
+    private SheetScanner() {
+    }
+
+    /**
+     * Parses a sheet until the condition is met, delivering its rows to the handler.
+     *
+     * @param styles           The table of styles that may be referenced by cells in the sheet
+     * @param strings          The table of strings that may be referenced by cells in the sheet
+     * @param handler          The handler receiving the rows and cells
+     * @param condition        The condition ending the scan
+     * @param sheetInputStream The stream to read the sheet-data from, left partially read if stopped
+     * @param metrics          The metrics to report string deduplication to, or null
+     * @return Whether the scan stopped before the end of the sheet
+     */
+    public static boolean scan(Styles styles, SharedStrings strings, XSSFSheetTest.SheetContentsHandler handler,
+                               Condition condition, InputStream sheetInputStream,
+                               ConversionMetrics metrics) throws IOException, SAXException {
+        return scan(styles, null, strings, handler, condition, false, sheetInputStream, metrics);
+    }
+
+    /**
+     * @param comments           The comments of the sheet, or null
+     * @param formulasNotResults Whether to deliver the formulas rather than their cached results
+     * @see #scan(Styles, SharedStrings, XSSFSheetTest.SheetContentsHandler, Condition, InputStream, ConversionMetrics)
+     */
+    public static boolean scan(Styles styles, Comments comments, SharedStrings strings,
+                               XSSFSheetTest.SheetContentsHandler handler, Condition condition,
+                               boolean formulasNotResults, InputStream sheetInputStream,
+                               ConversionMetrics metrics) throws IOException, SAXException {
+        return scan(styles, null, comments, strings, handler, condition, formulasNotResults, sheetInputStream, metrics);
+    }
+
+    /**
+     * @param numberFormats The number formats of the cell styles that may be referenced by cells in the sheet
+     * @see #scan(Styles, SharedStrings, XSSFSheetTest.SheetContentsHandler, Condition, InputStream, ConversionMetrics)
+     */
+    public static boolean scan(CellNumberFormats numberFormats, SharedStrings strings, XSSFSheetTest.SheetContentsHandler handler,
+                               Condition condition, InputStream sheetInputStream,
+                               ConversionMetrics metrics) throws IOException, SAXException {
+        return scan(null, numberFormats, null, strings, handler, condition, false, sheetInputStream, metrics);
+    }
+
+    /**
+     * @param numberFormats The number formats of the cell styles that may be referenced by cells in the sheet
+     * @see #scan(Styles, Comments, SharedStrings, XSSFSheetTest.SheetContentsHandler, Condition, boolean, InputStream, ConversionMetrics)
+     */
+    public static boolean scan(CellNumberFormats numberFormats, Comments comments, SharedStrings strings,
+                               XSSFSheetTest.SheetContentsHandler handler, Condition condition,
+                               boolean formulasNotResults, InputStream sheetInputStream,
+                               ConversionMetrics metrics) throws IOException, SAXException {
+        return scan(null, numberFormats, comments, strings, handler, condition, formulasNotResults, sheetInputStream, metrics);
+    }
+
+    private static boolean scan(Styles styles, CellNumberFormats numberFormats, Comments comments, SharedStrings strings,
+                                XSSFSheetTest.SheetContentsHandler handler, Condition condition,
+                                boolean formulasNotResults, InputStream sheetInputStream,
+                                ConversionMetrics metrics) throws IOException, SAXException {
+        try {
+            SheetParserPool.get().parse(styles, numberFormats, comments, strings, new ScanningHandler(handler, condition),
+                    formulasNotResults, sheetInputStream, metrics);
+            return false;
+        } catch (Stopped e) {
+            return true;
+        }
+    }
+
+    /**
+     * @return A condition stopping after the first rows of the sheet
+     */
+    public static Condition firstRows(final long rows) {
+        return new Condition() {
+            @Override
+            public boolean startRow(int rowNum) {
+                return rows <= 0;
+            }
+
+            @Override
+            public boolean endRow(int rowNum, long delivered) {
+                return delivered >= rows;
+            }
+        };
+    }
+
+    /**
+     * @param lastRow The 0-based index of the last row to deliver
+     * @return A condition stopping after a row, or before the next one if the sheet does not have it
+     */
+    public static Condition throughRow(final int lastRow) {
+        return new Condition() {
+            @Override
+            public boolean startRow(int rowNum) {
+                return rowNum > lastRow;
+            }
+
+            @Override
+            public boolean endRow(int rowNum, long rows) {
+                return rowNum >= lastRow;
+            }
+        };
+    }
+
+    /**
+     * @param column The 0-based column index
+     * @param value  The formatted value to look for
+     * @return A condition stopping after the first row holding the value in the column
+     */
+    public static Condition untilValue(final int column, final String value) {
+        return new Condition() {
+            @Override
+            public boolean cell(int rowNum, int cellColumn, String cellValue) {
+                return cellColumn == column && value.equals(cellValue);
+            }
+        };
+    }
+
+    /**
+     * @return A condition stopping as soon as any of the conditions does
+     */
+    public static Condition anyOf(final Condition... conditions) {
+        return new Condition() {
+            @Override
+            public boolean startRow(int rowNum) {
+                for (Condition condition : conditions) {
+                    if (condition.startRow(rowNum)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public boolean cell(int rowNum, int column, String value) {
+                for (Condition condition : conditions) {
+                    if (condition.cell(rowNum, column, value)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public boolean endRow(int rowNum, long rows) {
+                for (Condition condition : conditions) {
+                    if (condition.endRow(rowNum, rows)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Forwards to the handler and stops the parse once the condition is met.
+     */
+    private static final class ScanningHandler implements XSSFSheetTest.SheetContentsHandler {
+        private final XSSFSheetTest.SheetContentsHandler handler;
+        private final Condition condition;
+        private int currentRow;
+        private int currentCol;
+        private long rows;
+        private boolean stopAtEndOfRow;
+
+        ScanningHandler(XSSFSheetTest.SheetContentsHandler handler, Condition condition) {
+            this.handler = handler;
+            this.condition = condition;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+            if (condition.startRow(rowNum)) {
+                throw STOPPED;
+            }
+            currentRow = rowNum;
+            currentCol = -1;
+            handler.startRow(rowNum);
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            handler.endRow(rowNum);
+            if (condition.endRow(rowNum, ++rows) || stopAtEndOfRow) {
+                throw STOPPED;
+            }
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            handler.cell(cellReference, formattedValue, comment);
+            checkCell(cellReference, formattedValue);
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, String formula, XSSFComment comment) {
+            handler.cell(cellReference, formattedValue, formula, comment);
+            checkCell(cellReference, formattedValue);
+        }
+
+        @Override
+        public boolean wantsFormulas() {
+            return handler.wantsFormulas();
+        }
+
+        private void checkCell(String cellReference, String formattedValue) {
+            long packedRef = cellReference == null ? -1 : XSSFSheetTest.packCellRef(cellReference);
+            currentCol = packedRef >= 0 ? (int) packedRef : currentCol + 1;
+            if (condition.cell(currentRow, currentCol, formattedValue)) {
+                stopAtEndOfRow = true;
+            }
+        }
+
+        @Override
+        public void headerFooter(String text, boolean isHeader, String tagName) {
+            handler.headerFooter(text, isHeader, tagName);
+        }
+
+        @Override
+        public void endSheet() {
+            handler.endSheet();
+        }
+    }
+}
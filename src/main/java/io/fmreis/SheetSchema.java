@@ -0,0 +1,138 @@
+package io.fmreis;
+
+import java.util.Arrays;
+
+/**
+ * Layout and column types of a sheet, inferred from its first rows by
+ * {@link XLSXAnalyser} or by {@link XLSX2CSVImproved#setSchemaInference(boolean)}.
+ * <p>
+ * Rows before {@link #getFirstDataRow()} (titles, blank rows and the
+ * header row) are not data.  Column types describe the formatted values
+ * of the sampled data rows, so later rows may still hold values that do
+ * not fit; converters must fall back to their generic formatting for
+ * those.
+ */
+public class SheetSchema {
+
+    /**
+     * Type of the formatted values of a column, from the narrowest to the widest
+     */
+    public enum ColumnType {
+        /**
+         * No value was sampled
+         */
+        EMPTY,
+        /**
+         * Whole numbers, possibly with grouping separators
+         */
+        INTEGER,
+        /**
+         * Numbers with a fraction or an exponent, or a mix of those and whole numbers
+         */
+        DECIMAL,
+        /**
+         * Dates and times
+         */
+        DATE,
+        /**
+         * Anything else, or a mix of types
+         */
+        STRING;
+
+        /**
+         * @return The narrowest type that holds values of both types
+         */
+        ColumnType widen(ColumnType other) {
+            if (this == other || other == EMPTY) {
+                return this;
+            }
+            if (this == EMPTY) {
+                return other;
+            }
+            if ((this == INTEGER && other == DECIMAL) || (this == DECIMAL && other == INTEGER)) {
+                return DECIMAL;
+            }
+            return STRING;
+        }
+    }
+
+    private final String sheetName;
+    private final int headerRow;
+    private final int firstDataRow;
+    private final int firstColumn;
+    private final ColumnType[] types;
+    private final String[] headers;
+    private final int sampledRows;
+
+    SheetSchema(String sheetName, int headerRow, int firstDataRow, int firstColumn,
+                ColumnType[] types, String[] headers, int sampledRows) {
+        this.sheetName = sheetName;
+        this.headerRow = headerRow;
+        this.firstDataRow = firstDataRow;
+        this.firstColumn = firstColumn;
+        this.types = types;
+        this.headers = headers;
+        this.sampledRows = sampledRows;
+    }
+
+    public String getSheetName() {
+        return sheetName;
+    }
+
+    /**
+     * @return The 0-based index of the header row, or -1 if none was detected
+     */
+    public int getHeaderRow() {
+        return headerRow;
+    }
+
+    /**
+     * @return The 0-based index of the first row that holds data
+     */
+    public int getFirstDataRow() {
+        return firstDataRow;
+    }
+
+    /**
+     * @return The 0-based index of the leftmost column with a value
+     */
+    public int getFirstColumn() {
+        return firstColumn;
+    }
+
+    /**
+     * @return The number of columns, counted from column A to the rightmost column with a value
+     */
+    public int getColumnCount() {
+        return types.length;
+    }
+
+    /**
+     * @param column The 0-based column index
+     * @return The type of the column, {@link ColumnType#EMPTY} for columns without sampled values
+     */
+    public ColumnType getType(int column) {
+        return column >= 0 && column < types.length ? types[column] : ColumnType.EMPTY;
+    }
+
+    /**
+     * @param column The 0-based column index
+     * @return The header of the column, or null
+     */
+    public String getHeader(int column) {
+        return column >= 0 && column < headers.length ? headers[column] : null;
+    }
+
+    /**
+     * @return The number of rows the schema was inferred from
+     */
+    public int getSampledRows() {
+        return sampledRows;
+    }
+
+    @Override
+    public String toString() {
+        return sheetName + ": header row " + headerRow + ", data from row " + firstDataRow
+                + ", columns " + firstColumn + ".." + (types.length - 1) + " " + Arrays.toString(types);
+    }
+}
@@ -0,0 +1,405 @@
+package io.fmreis;
+
+import java.math.BigInteger;
+
+/**
+ * Writes numbers with the fewest digits that still read back as the same
+ * double, with a configurable decimal separator and no grouping.
+ * <p>
+ * The digits are found with the Ryu algorithm (Ulf Adams, "Ryu: fast
+ * float-to-string conversion", PLDI 2018), using the 128-bit tables of
+ * the reference Java implementation, computed when the class is loaded.
+ * Numbers from 1E-7 up to 1E21 are written in plain notation (for
+ * instance {@code 0.0001} and {@code 123456789012345680000}), others in
+ * scientific notation ({@code 1.5E-8}).
+ */
+public class ShortestNumberRenderer implements NumberRenderer {
+    private static final int MANTISSA_BITS = 52;
+    private static final long MANTISSA_MASK = (1L << MANTISSA_BITS) - 1;
+    private static final int EXPONENT_MASK = (1 << 11) - 1;
+    private static final int EXPONENT_BIAS = 1023;
+
+    /**
+     * Exponents of the leading digit written in plain notation
+     */
+    private static final int MIN_PLAIN_EXPONENT = -7;
+    private static final int MAX_PLAIN_EXPONENT = 20;
+
+    /**
+     * Scales tried for numbers with a few decimals, and the bound of their digits
+     */
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6};
+    private static final double MAX_SHORT_DECIMAL = 1e15;
+
+    private static final int POS_TABLE_SIZE = 326;
+    private static final int NEG_TABLE_SIZE = 291;
+    private static final int POW5_BITCOUNT = 121;
+    private static final int POW5_INV_BITCOUNT = 122;
+    private static final int QUARTER_BITCOUNT = 31;
+
+    /**
+     * The top bits of 5^i, in four 31-bit parts
+     */
+    private static final int[][] POW5_SPLIT = new int[POS_TABLE_SIZE][4];
+
+    /**
+     * The top bits of 1 / 5^i, in four 31-bit parts
+     */
+    private static final int[][] POW5_INV_SPLIT = new int[NEG_TABLE_SIZE][4];
+
+    static {
+        BigInteger mask = BigInteger.ONE.shiftLeft(QUARTER_BITCOUNT).subtract(BigInteger.ONE);
+        for (int i = 0; i < Math.max(POS_TABLE_SIZE, NEG_TABLE_SIZE); i++) {
+            BigInteger pow = BigInteger.valueOf(5).pow(i);
+            int pow5len = pow.bitLength();
+            if (i < POS_TABLE_SIZE) {
+                for (int j = 0; j < 4; j++) {
+                    POW5_SPLIT[i][j] = pow.shiftRight(pow5len - POW5_BITCOUNT + (3 - j) * QUARTER_BITCOUNT).and(mask).intValue();
+                }
+            }
+            if (i < NEG_TABLE_SIZE) {
+                // floor(log2(5^i)) is pow5len - 1
+                BigInteger inv = BigInteger.ONE.shiftLeft(pow5len - 1 + POW5_INV_BITCOUNT).divide(pow).add(BigInteger.ONE);
+                for (int k = 0; k < 4; k++) {
+                    BigInteger part = inv.shiftRight((3 - k) * QUARTER_BITCOUNT);
+                    POW5_INV_SPLIT[i][k] = (k == 0 ? part : part.and(mask)).intValue();
+                }
+            }
+        }
+    }
+
+    private final char decimalSeparator;
+
+    /**
+     * @param decimalSeparator The char between the integer and the fraction digits
+     */
+    public ShortestNumberRenderer(char decimalSeparator) {
+        this.decimalSeparator = decimalSeparator;
+    }
+
+    public char getDecimalSeparator() {
+        return decimalSeparator;
+    }
+
+    @Override
+    public String toString() {
+        return "Shortest(" + decimalSeparator + ")";
+    }
+
+    @Override
+    public int render(double value, char[] buffer) {
+        if (Double.isNaN(value)) {
+            return copy("NaN", buffer, 0);
+        }
+        if (Double.isInfinite(value)) {
+            return copy(value > 0 ? "Infinity" : "-Infinity", buffer, 0);
+        }
+        long bits = Double.doubleToRawLongBits(value);
+        int pos = 0;
+        if (bits < 0) {
+            bits &= Long.MAX_VALUE;
+            if (bits != 0) {
+                buffer[pos++] = '-';
+            }
+        }
+        if (bits == 0) {
+            buffer[pos++] = '0';
+            return pos;
+        }
+
+        // Step 1: decode, unifying normal and subnormal numbers
+        int ieeeExponent = (int) ((bits >>> MANTISSA_BITS) & EXPONENT_MASK);
+        long ieeeMantissa = bits & MANTISSA_MASK;
+        if (ieeeExponent >= EXPONENT_BIAS && ieeeExponent <= EXPONENT_BIAS + MANTISSA_BITS) {
+            // integers below 2^53 are exact, their own digits are the shortest
+            int fractionBits = EXPONENT_BIAS + MANTISSA_BITS - ieeeExponent;
+            long m2 = ieeeMantissa | (1L << MANTISSA_BITS);
+            if ((m2 & ((1L << fractionBits) - 1)) == 0) {
+                long integer = m2 >>> fractionBits;
+                int length = decimalLength(integer);
+                writeDigits(integer, length, buffer, pos);
+                return pos + length;
+            }
+        }
+        int shortDecimal = writeShortDecimal(Double.longBitsToDouble(bits), buffer, pos);
+        if (shortDecimal >= 0) {
+            return shortDecimal;
+        }
+        int e2;
+        long m2;
+        if (ieeeExponent == 0) {
+            e2 = 1 - EXPONENT_BIAS - MANTISSA_BITS;
+            m2 = ieeeMantissa;
+        } else {
+            e2 = ieeeExponent - EXPONENT_BIAS - MANTISSA_BITS;
+            m2 = ieeeMantissa | (1L << MANTISSA_BITS);
+        }
+
+        // Step 2: the interval of decimals that read back as this double
+        boolean even = (m2 & 1) == 0;
+        long mv = 4 * m2;
+        long mp = 4 * m2 + 2;
+        int mmShift = m2 != (1L << MANTISSA_BITS) || ieeeExponent <= 1 ? 1 : 0;
+        long mm = 4 * m2 - 1 - mmShift;
+        e2 -= 2;
+
+        // Step 3: convert the interval to a decimal power base
+        long dv;
+        long dp;
+        long dm;
+        int e10;
+        boolean dmIsTrailingZeros = false;
+        boolean dvIsTrailingZeros = false;
+        if (e2 >= 0) {
+            int q = Math.max(0, ((e2 * 78913) >>> 18) - 1);
+            int k = POW5_INV_BITCOUNT + pow5bits(q) - 1;
+            int i = -e2 + q + k;
+            dv = mulPow5InvDivPow2(mv, q, i);
+            dp = mulPow5InvDivPow2(mp, q, i);
+            dm = mulPow5InvDivPow2(mm, q, i);
+            e10 = q;
+            if (q <= 21) {
+                if (mv % 5 == 0) {
+                    dvIsTrailingZeros = multipleOfPowerOf5(mv, q);
+                } else if (even) {
+                    dmIsTrailingZeros = multipleOfPowerOf5(mm, q);
+                } else if (multipleOfPowerOf5(mp, q)) {
+                    dp--;
+                }
+            }
+        } else {
+            int q = Math.max(0, ((-e2 * 732923) >>> 20) - 1);
+            int i = -e2 - q;
+            int k = pow5bits(i) - POW5_BITCOUNT;
+            int j = q - k;
+            dv = mulPow5DivPow2(mv, i, j);
+            dp = mulPow5DivPow2(mp, i, j);
+            dm = mulPow5DivPow2(mm, i, j);
+            e10 = q + e2;
+            if (q <= 1) {
+                dvIsTrailingZeros = true;
+                if (even) {
+                    dmIsTrailingZeros = mmShift == 1;
+                } else {
+                    dp--;
+                }
+            } else if (q < 63) {
+                dvIsTrailingZeros = (mv & ((1L << (q - 1)) - 1)) == 0;
+            }
+        }
+
+        // Step 4: the shortest decimal in the interval, correctly rounded
+        int removed = 0;
+        int lastRemovedDigit = 0;
+        long output;
+        if (dmIsTrailingZeros || dvIsTrailingZeros) {
+            while (dp / 10 > dm / 10) {
+                dmIsTrailingZeros &= dm % 10 == 0;
+                dvIsTrailingZeros &= lastRemovedDigit == 0;
+                lastRemovedDigit = (int) (dv % 10);
+                dp /= 10;
+                dv /= 10;
+                dm /= 10;
+                removed++;
+            }
+            if (dmIsTrailingZeros && even) {
+                while (dm % 10 == 0) {
+                    dvIsTrailingZeros &= lastRemovedDigit == 0;
+                    lastRemovedDigit = (int) (dv % 10);
+                    dp /= 10;
+                    dv /= 10;
+                    dm /= 10;
+                    removed++;
+                }
+            }
+            if (dvIsTrailingZeros && lastRemovedDigit == 5 && dv % 2 == 0) {
+                // exactly halfway: round to even
+                lastRemovedDigit = 4;
+            }
+            output = dv + ((dv == dm && !(dmIsTrailingZeros && even)) || lastRemovedDigit >= 5 ? 1 : 0);
+        } else {
+            // most numbers lose at least two digits: remove them at once
+            long dpDiv100 = dp / 100;
+            long dmDiv100 = dm / 100;
+            if (dpDiv100 > dmDiv100) {
+                long dvDiv100 = dv / 100;
+                lastRemovedDigit = (int) (dv - 100 * dvDiv100) / 10;
+                dp = dpDiv100;
+                dv = dvDiv100;
+                dm = dmDiv100;
+                removed += 2;
+            }
+            while (dp / 10 > dm / 10) {
+                lastRemovedDigit = (int) (dv % 10);
+                dp /= 10;
+                dv /= 10;
+                dm /= 10;
+                removed++;
+            }
+            output = dv + (dv == dm || lastRemovedDigit >= 5 ? 1 : 0);
+        }
+        int length = decimalLength(output);
+        int exponent = e10 + removed + length - 1;
+
+        // Step 5: print
+        if (exponent >= MIN_PLAIN_EXPONENT && exponent <= MAX_PLAIN_EXPONENT) {
+            return writePlain(output, length, exponent, buffer, pos);
+        }
+        return writeScientific(output, length, exponent, buffer, pos);
+    }
+
+    /**
+     * Writes numbers with a few decimals, most amounts and rates, without
+     * the full algorithm.  If the value times 10^k is an integer of at most
+     * 15 digits that divides back to the value, it is the only decimal with
+     * k fraction digits that reads back as the value (15 digits are finer
+     * than a double), so the shortest once its trailing zeros are removed.
+     *
+     * @param magnitude A positive value
+     * @return The position after the number, or -1 if it has more decimals
+     */
+    private int writeShortDecimal(double magnitude, char[] buffer, int pos) {
+        for (int k = 1; k < POWERS_OF_TEN.length; k++) {
+            double scaled = magnitude * POWERS_OF_TEN[k];
+            if (scaled >= MAX_SHORT_DECIMAL) {
+                return -1;
+            }
+            long digits = (long) scaled;
+            if (digits == scaled && digits / POWERS_OF_TEN[k] == magnitude) {
+                while (digits % 10 == 0) {
+                    digits /= 10;
+                    k--;
+                }
+                int length = decimalLength(digits);
+                return writePlain(digits, length, length - 1 - k, buffer, pos);
+            }
+        }
+        return -1;
+    }
+
+    private int writePlain(long digits, int length, int exponent, char[] buffer, int pos) {
+        if (exponent < 0) {
+            buffer[pos++] = '0';
+            buffer[pos++] = decimalSeparator;
+            for (int i = -1; i > exponent; i--) {
+                buffer[pos++] = '0';
+            }
+            writeDigits(digits, length, buffer, pos);
+            return pos + length;
+        }
+        if (length <= exponent + 1) {
+            writeDigits(digits, length, buffer, pos);
+            pos += length;
+            for (int i = length; i <= exponent; i++) {
+                buffer[pos++] = '0';
+            }
+            return pos;
+        }
+        // digits before and after the separator
+        int integerLength = exponent + 1;
+        writeDigits(digits, length, buffer, pos + 1);
+        System.arraycopy(buffer, pos + 1, buffer, pos, integerLength);
+        buffer[pos + integerLength] = decimalSeparator;
+        return pos + length + 1;
+    }
+
+    private int writeScientific(long digits, int length, int exponent, char[] buffer, int pos) {
+        writeDigits(digits, length, buffer, pos + 1);
+        buffer[pos] = buffer[pos + 1];
+        if (length > 1) {
+            buffer[pos + 1] = decimalSeparator;
+            pos += length + 1;
+        } else {
+            pos++;
+        }
+        buffer[pos++] = 'E';
+        if (exponent < 0) {
+            buffer[pos++] = '-';
+            exponent = -exponent;
+        }
+        if (exponent >= 100) {
+            buffer[pos++] = (char) ('0' + exponent / 100);
+            exponent %= 100;
+            buffer[pos++] = (char) ('0' + exponent / 10);
+        } else if (exponent >= 10) {
+            buffer[pos++] = (char) ('0' + exponent / 10);
+        }
+        buffer[pos++] = (char) ('0' + exponent % 10);
+        return pos;
+    }
+
+    private static void writeDigits(long digits, int length, char[] buffer, int pos) {
+        for (int i = pos + length - 1; i >= pos; i--) {
+            buffer[i] = (char) ('0' + digits % 10);
+            digits /= 10;
+        }
+    }
+
+    private static int copy(String text, char[] buffer, int pos) {
+        text.getChars(0, text.length(), buffer, pos);
+        return pos + text.length();
+    }
+
+    private static int pow5bits(int e) {
+        return ((e * 1217359) >>> 19) + 1;
+    }
+
+    private static int decimalLength(long v) {
+        int length = 1;
+        long limit = 10;
+        while (length < 19 && v >= limit) {
+            length++;
+            limit *= 10;
+        }
+        return length;
+    }
+
+    private static boolean multipleOfPowerOf5(long value, int q) {
+        return pow5Factor(value) >= q;
+    }
+
+    private static int pow5Factor(long value) {
+        int count = 0;
+        while (value > 0 && value % 5 == 0) {
+            value /= 5;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return The high digits of m * 5^i / 2^j
+     */
+    private static long mulPow5DivPow2(long m, int i, int j) {
+        return mulShift(m, POW5_SPLIT[i], j);
+    }
+
+    /**
+     * @return The high digits of m / 5^i / 2^j
+     */
+    private static long mulPow5InvDivPow2(long m, int i, int j) {
+        return mulShift(m, POW5_INV_SPLIT[i], j);
+    }
+
+    /**
+     * Multiplies m (at most 55 bits) by a 124-bit factor split in four
+     * 31-bit parts and shifts the product right by j bits.
+     */
+    private static long mulShift(long m, int[] factor, int j) {
+        long mHigh = m >>> 31;
+        long mLow = m & 0x7fffffff;
+        long bits13 = mHigh * factor[0];
+        long bits03 = mLow * factor[0];
+        long bits12 = mHigh * factor[1];
+        long bits02 = mLow * factor[1];
+        long bits11 = mHigh * factor[2];
+        long bits01 = mLow * factor[2];
+        long bits10 = mHigh * factor[3];
+        long bits00 = mLow * factor[3];
+        int actualShift = j - 3 * 31 - 21;
+        return ((((((((bits00 >>> 31) + bits01 + bits10) >>> 31)
+                + bits02 + bits11) >>> 31)
+                + bits03 + bits12) >>> 21)
+                + (bits13 << 10)) >>> actualShift;
+    }
+}
@@ -0,0 +1,542 @@
+package io.fmreis;
+
+import org.apache.poi.ooxml.util.SAXHelper;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.usermodel.RichTextString;
+import org.apache.poi.util.POILogFactory;
+import org.apache.poi.util.POILogger;
+import org.apache.poi.xssf.model.SharedStrings;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A read-only shared strings table with a heap budget.
+ * <p>
+ * Parses the shared strings part like POI's
+ * {@link org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable},
+ * keeping the strings on the heap while their estimated size stays
+ * within the budget.  Once the budget is exceeded, the strings read so
+ * far and all the following ones are moved to a pair of temporary files
+ * (UTF-8 data plus a memory-mapped offset index) and looked up from
+ * there, which is slower but keeps the heap flat however large the
+ * table is.  The temporary files are deleted by {@link #close()}.
+ * <p>
+ * The table may be loaded in the background, so that sheets start
+ * converting right away: a lookup then waits only until its own index is
+ * loaded, which for tables written in order of first use (as Excel does)
+ * is rarely at all.  Once the table moves to disk, lookups wait for the
+ * end of the spill.  The strings kept in memory are held in blocks of
+ * {@value #BLOCK_SIZE}, allocated up front from the unique count of the
+ * table, which never move once published.
+ * <p>
+ * A move to disk is reported by {@link #getSpilledBytes()}, through
+ * {@link ConversionMetrics#getSharedStringsSpilledBytes()}, and as a
+ * {@code io.fmreis.SharedStringsSpill} Flight Recorder event.
+ */
+public class SpillableSharedStringsTable extends DefaultHandler implements SharedStrings, Closeable {
+    private static final POILogger logger = POILogFactory.getLogger(SpillableSharedStringsTable.class);
+
+    /**
+     * Number of recently looked up strings cached once the table is on disk
+     */
+    private static final int DISK_CACHE_SIZE = 4096;
+
+    /**
+     * Number of strings of a block of the in-memory table
+     */
+    static final int BLOCK_SIZE = 4096;
+    private static final int BLOCK_SHIFT = 12;
+
+    private final long budgetBytes;
+    private volatile int count;
+    private volatile int uniqueCount;
+    private long heapBytes;
+
+    /**
+     * The strings kept in memory, or null from the start of the move to disk
+     */
+    private volatile String[][] blocks = new String[1][];
+    /**
+     * Whether the strings are on disk, published once their index is
+     * readable: between the start and the end of the move, neither the
+     * blocks nor the disk have them
+     */
+    private volatile boolean onDisk;
+    /**
+     * Number of strings loaded, published after each string
+     */
+    private volatile int loaded;
+    /**
+     * Whether the load has ended, with the table in memory or on disk, or failed
+     */
+    private volatile boolean done;
+    private volatile Exception failure;
+    private volatile boolean closed;
+    private volatile int waiters;
+    private final Object loadLock = new Object();
+    private Thread loader;
+
+    private final StringBuilder characters = new StringBuilder(64);
+    private boolean tIsOpen;
+
+    private File dataFile;
+    private File indexFile;
+    private DataOutputStream dataOutput;
+    private DataOutputStream indexOutput;
+    private long dataOffset;
+    private int spilled;
+    private ConversionEvents.SharedStringsSpillEvent spillEvent;
+    private FileChannel dataChannel;
+    private MappedByteBuffer index;
+    private CachedString[] diskCache;
+
+    private static final class CachedString {
+        final int idx;
+        final String string;
+
+        CachedString(int idx, String string) {
+            this.idx = idx;
+            this.string = string;
+        }
+    }
+
+    /**
+     * Loads the shared strings of the package.
+     *
+     * @param pkg         The XLSX package
+     * @param budgetBytes The estimated heap the strings may take before they are moved to disk
+     */
+    public SpillableSharedStringsTable(OPCPackage pkg, long budgetBytes) throws IOException, SAXException {
+        this(pkg, budgetBytes, false);
+    }
+
+    /**
+     * Loads the shared strings of the package, possibly in the background.
+     *
+     * @param pkg         The XLSX package
+     * @param budgetBytes The estimated heap the strings may take before they are moved to disk
+     * @param background  Whether to return at once and load the strings on a thread of their own
+     * @see #awaitLoaded()
+     */
+    public SpillableSharedStringsTable(OPCPackage pkg, long budgetBytes, boolean background) throws IOException, SAXException {
+        this.budgetBytes = budgetBytes;
+        List<PackagePart> parts = pkg.getPartsByContentType(XSSFRelation.SHARED_STRINGS.getContentType());
+        if (parts.isEmpty()) {
+            done = true;
+            return;
+        }
+        final PackagePart part = parts.get(0);
+        if (!background) {
+            try (InputStream stream = part.getInputStream()) {
+                readFrom(stream);
+            } catch (IOException | SAXException | RuntimeException e) {
+                // no table is returned to close, so the spill files go now
+                try {
+                    deleteSpill();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            } finally {
+                done = true;
+            }
+            return;
+        }
+        loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (InputStream stream = part.getInputStream()) {
+                    readFrom(stream);
+                } catch (Exception e) {
+                    failure = e;
+                } finally {
+                    synchronized (loadLock) {
+                        done = true;
+                        loadLock.notifyAll();
+                    }
+                }
+            }
+        }, "xlsx2csv-sst");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Waits until the table is loaded.
+     *
+     * @throws IOException  If reading the table failed
+     * @throws SAXException If parsing the table failed
+     */
+    public void awaitLoaded() throws IOException, SAXException {
+        if (loader != null) {
+            try {
+                loader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while loading the shared strings");
+            }
+        }
+        Exception e = failure;
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof SAXException) {
+            throw (SAXException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+    }
+
+    /**
+     * Estimated heap taken by a string held in the table: object headers,
+     * hash and length fields, block slot, plus 2 bytes per char.
+     */
+    static long estimateBytes(String string) {
+        return 64 + 2L * string.length();
+    }
+
+    private void readFrom(InputStream stream) throws IOException, SAXException {
+        try {
+            XMLReader reader = SAXHelper.newXMLReader();
+            reader.setContentHandler(this);
+            reader.parse(new InputSource(stream));
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException("SAX parser appears to be broken - " + e.getMessage());
+        }
+        if (dataOutput != null) {
+            finishSpill();
+        }
+    }
+
+    private void add(String string) throws IOException {
+        if (dataOutput != null) {
+            write(string);
+        } else {
+            int idx = loaded;
+            String[][] blocks = this.blocks;
+            int block = idx >>> BLOCK_SHIFT;
+            if (block == blocks.length) {
+                // more strings than the unique count said
+                blocks = Arrays.copyOf(blocks, blocks.length * 2);
+                this.blocks = blocks;
+            }
+            if (blocks[block] == null) {
+                blocks[block] = new String[BLOCK_SIZE];
+            }
+            blocks[block][idx & (BLOCK_SIZE - 1)] = string;
+            heapBytes += estimateBytes(string);
+            if (heapBytes > budgetBytes) {
+                startSpill();
+            }
+        }
+        loaded++;
+        if (waiters > 0 && dataOutput == null) {
+            synchronized (loadLock) {
+                loadLock.notifyAll();
+            }
+        }
+    }
+
+    private void startSpill() throws IOException {
+        int inMemory = loaded + 1;
+        logger.log(POILogger.WARN, "Shared strings table exceeds the budget of " + budgetBytes
+                + " bytes after " + inMemory + " of " + uniqueCount + " strings, moving it to disk");
+        spillEvent = new ConversionEvents.SharedStringsSpillEvent();
+        spillEvent.begin();
+        spillEvent.budgetBytes = budgetBytes;
+        spillEvent.stringsInMemory = inMemory;
+        dataFile = File.createTempFile("sst", ".data");
+        indexFile = File.createTempFile("sst", ".index");
+        dataOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile), 1 << 16));
+        indexOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 16));
+        String[][] blocks = this.blocks;
+        for (int i = 0; i < inMemory; i++) {
+            write(blocks[i >>> BLOCK_SHIFT][i & (BLOCK_SIZE - 1)]);
+        }
+        // lookups wait for the end of the load from now on
+        this.blocks = null;
+        heapBytes = 0;
+    }
+
+    private void write(String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        indexOutput.writeLong(dataOffset);
+        dataOutput.write(bytes);
+        dataOffset += bytes.length;
+        spilled++;
+    }
+
+    private void finishSpill() throws IOException {
+        indexOutput.writeLong(dataOffset);
+        indexOutput.close();
+        indexOutput = null;
+        dataOutput.close();
+        dataOutput = null;
+        dataChannel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+        try (FileChannel indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+        }
+        diskCache = new CachedString[DISK_CACHE_SIZE];
+        heapBytes = 8L * DISK_CACHE_SIZE;
+        synchronized (loadLock) {
+            onDisk = true;
+            loadLock.notifyAll();
+        }
+        logger.log(POILogger.INFO, "Moved " + spilled + " shared strings (" + dataOffset + " bytes) to " + dataFile);
+        spillEvent.strings = spilled;
+        spillEvent.spilledBytes = dataOffset;
+        spillEvent.commit();
+    }
+
+    /**
+     * @return Whether the strings were moved to disk
+     */
+    public boolean isOnDisk() {
+        return onDisk;
+    }
+
+    /**
+     * @return The estimated heap taken by the strings kept in memory
+     */
+    public long getHeapBytes() {
+        return heapBytes;
+    }
+
+    /**
+     * @return The bytes of the strings moved to disk, or 0 while they are in memory
+     */
+    public long getSpilledBytes() {
+        return onDisk ? dataOffset : 0;
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public int getUniqueCount() {
+        return uniqueCount;
+    }
+
+    /**
+     * @param idx The index of the string, as found in the {@code <v>} of an {@code s} cell
+     * @return The string at the index
+     */
+    public String getEntryAt(int idx) {
+        while (true) {
+            // done first, then loaded: once done, the reads after it see the end of the load
+            boolean done = this.done;
+            // loaded before blocks: the blocks read after it hold all the strings it counts,
+            // and keep them after the move to disk starts
+            int loaded = this.loaded;
+            String[][] blocks = this.blocks;
+            if (blocks != null && idx < loaded) {
+                if (idx < 0) {
+                    throw new IndexOutOfBoundsException("Shared string " + idx + " of " + loaded);
+                }
+                return blocks[idx >>> BLOCK_SHIFT][idx & (BLOCK_SIZE - 1)];
+            }
+            if (blocks == null && onDisk) {
+                return getEntryOnDisk(idx);
+            }
+            if (done) {
+                Exception e = failure;
+                if (e != null) {
+                    // the load ended before the string, or before moving the strings to disk
+                    throw loadFailure(e);
+                }
+                throw new IndexOutOfBoundsException("Shared string " + idx + " of " + loaded);
+            }
+            awaitIndex(idx);
+        }
+    }
+
+    private String getEntryOnDisk(int idx) {
+        int slot = idx & (DISK_CACHE_SIZE - 1);
+        CachedString cached = diskCache[slot];
+        if (cached != null && cached.idx == idx) {
+            return cached.string;
+        }
+        String string = readFromDisk(idx);
+        diskCache[slot] = new CachedString(idx, string);
+        return string;
+    }
+
+    /**
+     * Waits until the string at the index is loaded in memory, the strings
+     * are on disk, or the load ends.
+     */
+    private void awaitIndex(int idx) {
+        synchronized (loadLock) {
+            waiters++;
+            try {
+                while (!done && (blocks != null ? idx >= loaded : !onDisk)) {
+                    loadLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new InterruptedIOException("Interrupted while loading the shared strings"));
+            } finally {
+                waiters--;
+            }
+        }
+    }
+
+    private static UncheckedIOException loadFailure(Exception e) {
+        return new UncheckedIOException(new IOException("Failed to load the shared strings: " + e.getMessage(), e));
+    }
+
+    private String readFromDisk(int idx) {
+        if (idx < 0 || idx >= spilled) {
+            throw new IndexOutOfBoundsException("Shared string " + idx + " of " + spilled);
+        }
+        long start = index.getLong(idx * 8);
+        long end = index.getLong(idx * 8 + 8);
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        try {
+            while (buffer.hasRemaining()) {
+                if (dataChannel.read(buffer, start + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of " + dataFile);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new String(buffer.array(), 0, buffer.limit(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public RichTextString getItemAt(int idx) {
+        return new XSSFRichTextString(getEntryAt(idx));
+    }
+
+    /**
+     * Stops a load in the background, and deletes the temporary files.
+     */
+    @Override
+    public void close() throws IOException {
+        if (loader != null) {
+            closed = true;
+            try {
+                loader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while stopping the shared strings load");
+            }
+            loader = null;
+        }
+        deleteSpill();
+    }
+
+    /**
+     * Closes and deletes the temporary files, however far the spill got.
+     */
+    private void deleteSpill() throws IOException {
+        try {
+            if (dataOutput != null) {
+                dataOutput.close();
+                dataOutput = null;
+            }
+        } finally {
+            try {
+                if (indexOutput != null) {
+                    indexOutput.close();
+                    indexOutput = null;
+                }
+            } finally {
+                try {
+                    if (dataChannel != null) {
+                        dataChannel.close();
+                        dataChannel = null;
+                        index = null;
+                    }
+                } finally {
+                    if (dataFile != null) {
+                        Files.deleteIfExists(dataFile.toPath());
+                    }
+                    if (indexFile != null) {
+                        Files.deleteIfExists(indexFile.toPath());
+                    }
+                }
+            }
+        }
+    }
+
+    //// ContentHandler methods ////
+
+    @Override
+    public void startElement(String uri, String localName, String name, Attributes attributes) throws SAXException {
+        if (uri != null && !uri.equals("http://schemas.openxmlformats.org/spreadsheetml/2006/main")) {
+            return;
+        }
+        if ("sst".equals(localName)) {
+            String count = attributes.getValue("count");
+            if (count != null) {
+                this.count = Integer.parseInt(count);
+            }
+            String uniqueCount = attributes.getValue("uniqueCount");
+            if (uniqueCount != null) {
+                this.uniqueCount = Integer.parseInt(uniqueCount);
+            }
+            // no more blocks than the budget holds strings for
+            long budgetStrings = budgetBytes / estimateBytes("");
+            long strings = Math.max(1, Math.min(this.uniqueCount, budgetStrings));
+            this.blocks = new String[(int) ((strings + BLOCK_SIZE - 1) / BLOCK_SIZE)][];
+        } else if ("si".equals(localName)) {
+            if (closed) {
+                throw new SAXException("The shared strings table was closed while loading");
+            }
+            characters.setLength(0);
+        } else if ("t".equals(localName)) {
+            tIsOpen = true;
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String name) throws SAXException {
+        if (uri != null && !uri.equals("http://schemas.openxmlformats.org/spreadsheetml/2006/main")) {
+            return;
+        }
+        if ("si".equals(localName)) {
+            try {
+                add(characters.toString());
+            } catch (IOException e) {
+                throw new SAXException("Failed to move the shared strings table to disk", e);
+            }
+        } else if ("t".equals(localName)) {
+            tIsOpen = false;
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (tIsOpen) {
+            characters.append(ch, start, length);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package io.fmreis;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the startup of command line conversions: the time from the
+ * launch of a fresh JVM until the first row of the workbook is converted,
+ * and until the JVM exits.
+ * <p>
+ * Each run starts a new JVM with the classpath of this one, running the
+ * same steps as {@link XLSX2CSVImproved#main(String[])} with the CSV
+ * discarded.  Arguments: the workbook, the number of runs (default 10)
+ * and any JVM options for the runs, e.g.
+ * {@code -XX:SharedArchiveFile=target/xlsx2csv.jsa} to measure a
+ * class-data-sharing archive built by the {@code appcds} profile.
+ */
+public class StartupBenchmark {
+    private static final String CHILD = "--child";
+    private static final String FIRST_ROW = "firstRow ";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1 && CHILD.equals(args[0])) {
+            convert(args[1]);
+            return;
+        }
+        if (args.length == 0) {
+            System.err.println("Use: StartupBenchmark <xlsx file> [runs] [JVM options...]");
+            return;
+        }
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(Arrays.asList(args).subList(Math.min(2, args.length), args.length));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(StartupBenchmark.class.getName());
+        command.add(CHILD);
+        command.add(args[0]);
+
+        long[] firstRow = new long[runs];
+        long[] total = new long[runs];
+        for (int run = 0; run < runs; run++) {
+            long start = System.currentTimeMillis();
+            Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            long firstRowMillis = -1;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(FIRST_ROW)) {
+                        firstRowMillis = Long.parseLong(line.substring(FIRST_ROW.length()));
+                    }
+                }
+            }
+            int exit = process.waitFor();
+            total[run] = System.currentTimeMillis() - start;
+            firstRow[run] = firstRowMillis < 0 ? -1 : firstRowMillis - start;
+            System.out.println("run " + (run + 1) + ": first row " + firstRow[run] + "ms, exit " + total[run] + "ms"
+                    + (exit != 0 ? " (exit code " + exit + ")" : ""));
+        }
+        Arrays.sort(firstRow);
+        Arrays.sort(total);
+        System.out.println("time to first row: min " + firstRow[0] + "ms, median " + firstRow[runs / 2] + "ms");
+        System.out.println("time to exit:      min " + total[0] + "ms, median " + total[runs / 2] + "ms");
+    }
+
+    /**
+     * Converts the workbook like {@link XLSX2CSVImproved#main(String[])},
+     * printing the wall clock time of the first converted row.
+     */
+    private static void convert(String fileName) throws Exception {
+        try (OPCPackage opcPackage = OPCPackage.open(fileName, PackageAccess.READ)) {
+            XLSXAnalyser xlsxAnalyser = new XLSXAnalyser(opcPackage);
+            PrintWriter output = new PrintWriter(new Writer() {
+                @Override
+                public void write(char[] buffer, int offset, int length) {
+                }
+
+                @Override
+                public void flush() {
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+            XLSX2CSVImproved xlsx2csv = new XLSX2CSVImproved(opcPackage, output, xlsxAnalyser.getMinimumCols(), ';', "EN");
+            xlsx2csv.getMetrics().setProgressListener(new ConversionProgressListener() {
+                @Override
+                public void onProgress(ConversionMetrics metrics, ConversionMetrics.SheetStats sheet) {
+                    System.out.println(FIRST_ROW + System.currentTimeMillis());
+                    System.out.flush();
+                    metrics.setProgressListener(null, 0);
+                }
+            }, 0);
+            xlsx2csv.process();
+        }
+    }
+}
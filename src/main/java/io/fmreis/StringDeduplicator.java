@@ -0,0 +1,83 @@
+package io.fmreis;
+
+import java.util.Arrays;
+
+/**
+ * A bounded, lossy intern table for cell values.
+ * <p>
+ * Values are looked up by their characters, before any {@link String}
+ * is created, in a direct-mapped table of a fixed number of slots: a hit
+ * returns the instance stored earlier, a miss creates the string and
+ * replaces whatever the slot held.  Memory use is therefore capped at
+ * the table size whatever the number of distinct values, and runs of
+ * repeated values (codes, flags, categories...) share one instance.
+ * <p>
+ * Instances are not thread-safe; use one per parsing thread.
+ */
+public class StringDeduplicator {
+
+    /**
+     * Values longer than this are not interned, as they rarely repeat
+     */
+    static final int MAX_LENGTH = 64;
+
+    private final String[] table;
+    private final int mask;
+    private long lookups;
+    private long hits;
+
+    /**
+     * @param slots The number of slots, rounded up to a power of two
+     */
+    public StringDeduplicator(int slots) {
+        int size = Integer.highestOneBit(Math.max(16, slots - 1) << 1);
+        this.table = new String[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * @param chars The value
+     * @return A string equal to the value, shared with earlier equal values when possible
+     */
+    public String dedupe(CharSequence chars) {
+        int length = chars.length();
+        if (length > MAX_LENGTH) {
+            return chars.toString();
+        }
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + chars.charAt(i);
+        }
+        lookups++;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        String existing = table[slot];
+        if (existing != null && existing.hashCode() == hash && existing.contentEquals(chars)) {
+            hits++;
+            return existing;
+        }
+        String value = chars.toString();
+        table[slot] = value;
+        return value;
+    }
+
+    /**
+     * @return The number of values looked up in the table
+     */
+    public long getLookups() {
+        return lookups;
+    }
+
+    /**
+     * @return The number of lookups which returned an existing instance
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Empties the table, keeping the lookup counters.
+     */
+    public void clear() {
+        Arrays.fill(table, null);
+    }
+}
@@ -0,0 +1,149 @@
+package io.fmreis;
+
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The first rows of every sheet of a workbook as CSV, for showing a
+ * preview without converting the workbook.
+ * <p>
+ * The time taken depends on the number of rows previewed, not on the
+ * size of the workbook: each sheet is abandoned after its first rows
+ * (see {@link XLSX2CSVImproved#setRowLimit(int)}), sheets are previewed
+ * concurrently, and the shared strings table loads in the background
+ * only as far as the previewed rows need, instead of being read whole
+ * first.  No analysis pass is made: all the rows are previewed,
+ * title and header rows included, without padding.
+ */
+public class WorkbookPreview {
+
+    /**
+     * Number of rows previewed when no other number is given
+     */
+    public static final int DEFAULT_ROWS = 20;
+
+    private final OPCPackage xlsxPackage;
+    private final int rows;
+    private char separator = ';';
+    private String lang = "EN";
+    private int sheetThreads = 1;
+    private boolean sheetNameColumn;
+    private long sharedStringsBudget = Runtime.getRuntime().maxMemory() / 4;
+    private ConversionMetrics metrics = new ConversionMetrics();
+    private final Map<String, String> sheets = new LinkedHashMap<>();
+
+    /**
+     * @param pkg  The XLSX package to preview
+     * @param rows The number of rows to preview per sheet
+     */
+    public WorkbookPreview(OPCPackage pkg, int rows) {
+        if (rows < 1) {
+            throw new IllegalArgumentException("A preview needs at least 1 row: " + rows);
+        }
+        this.xlsxPackage = pkg;
+        this.rows = rows;
+    }
+
+    /**
+     * Sets the field separator.  Defaults to {@code ;}.
+     */
+    public void setSeparator(char separator) {
+        this.separator = separator;
+    }
+
+    /**
+     * Sets the language of the CSV, as for {@link XLSX2CSVImproved}.  Defaults to EN.
+     */
+    public void setLang(String lang) {
+        this.lang = lang;
+    }
+
+    /**
+     * Sets the number of sheets previewed concurrently.  Defaults to 1.
+     */
+    public void setSheetThreads(int sheetThreads) {
+        this.sheetThreads = Math.max(1, sheetThreads);
+    }
+
+    /**
+     * Starts every row with the name of its sheet, as with
+     * {@link XLSX2CSVImproved#setSheetNameColumn(boolean)}.  Defaults to false.
+     */
+    public void setSheetNameColumn(boolean sheetNameColumn) {
+        this.sheetNameColumn = sheetNameColumn;
+    }
+
+    /**
+     * Sets the estimated heap the shared strings read may take, as for
+     * {@link XLSX2CSVImproved#setSharedStringsBudget(long)}.
+     */
+    public void setSharedStringsBudget(long budgetBytes) {
+        this.sharedStringsBudget = budgetBytes;
+    }
+
+    public void setMetrics(ConversionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public ConversionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Reads the first rows of the sheets.
+     *
+     * @throws IOException If reading the data from the package fails.
+     * @throws SAXException if parsing the XML data fails.
+     */
+    public void process() throws IOException, OpenXML4JException, SAXException {
+        // sheets may be opened from several threads, and are kept in workbook order
+        final Map<Integer, String> names = Collections.synchronizedMap(new TreeMap<Integer, String>());
+        final Map<Integer, StringWriter> outputs = Collections.synchronizedMap(new TreeMap<Integer, StringWriter>());
+        XLSX2CSVImproved xlsx2csv = new XLSX2CSVImproved(xlsxPackage, new PrintWriter(new StringWriter()), 0, separator, lang);
+        xlsx2csv.setMetrics(metrics);
+        xlsx2csv.setHeaderRows(0);
+        xlsx2csv.setRowLimit(rows);
+        xlsx2csv.setSharedStringsInBackground(true);
+        xlsx2csv.setSharedStringsBudget(sharedStringsBudget);
+        xlsx2csv.setSheetNameColumn(sheetNameColumn);
+        xlsx2csv.setSheetOutputs(new SheetOutputFactory() {
+            @Override
+            public Writer open(String sheetName, int sheetIndex) {
+                StringWriter output = new StringWriter();
+                names.put(sheetIndex, sheetName);
+                outputs.put(sheetIndex, output);
+                return output;
+            }
+        });
+        xlsx2csv.setSheetThreads(sheetThreads);
+        xlsx2csv.process();
+        sheets.clear();
+        for (Map.Entry<Integer, String> name : names.entrySet()) {
+            sheets.put(name.getValue(), outputs.get(name.getKey()).toString());
+        }
+    }
+
+    /**
+     * @return The CSV of the first rows, by sheet name in workbook order
+     */
+    public Map<String, String> getSheets() {
+        return Collections.unmodifiableMap(sheets);
+    }
+
+    /**
+     * @return The CSV of the first rows of the named sheet, or null if there is no such sheet
+     */
+    public String getSheet(String sheetName) {
+        return sheets.get(sheetName);
+    }
+}
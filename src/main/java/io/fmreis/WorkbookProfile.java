@@ -0,0 +1,229 @@
+package io.fmreis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size and cost estimate of a workbook, built by
+ * {@link XLSXAnalyser#profile(java.io.File)} from the zip central
+ * directory and the first few elements of the workbook, shared strings
+ * and sheet parts, without reading any sheet data.
+ * <p>
+ * The time and memory estimates use a linear cost model whose default
+ * coefficients were measured with {@link XLSX2CSVImproved} on a
+ * generated 2M cell workbook, on a single core; schedulers should
+ * recalibrate them against {@link ConversionMetrics} of real runs.
+ */
+public class WorkbookProfile {
+
+    /**
+     * Default conversion cost of one cell, in nanoseconds
+     */
+    public static final long DEFAULT_NANOS_PER_CELL = 5_000;
+
+    /**
+     * Default load cost of one byte of the inflated shared strings part, in nanoseconds
+     */
+    public static final long DEFAULT_NANOS_PER_SST_BYTE = 50;
+
+    /**
+     * Heap used by the converter besides the shared strings table (POI, styles, parser, buffers)
+     */
+    public static final long BASE_HEAP_BYTES = 48L << 20;
+
+    /**
+     * Average inflated size of a cell element, used when a sheet has no usable dimension
+     */
+    static final int AVERAGE_BYTES_PER_CELL = 40;
+
+    /**
+     * Least inflated size of a stored cell element, e.g. {@code <c><v>1</v></c>}
+     */
+    static final int MIN_BYTES_PER_CELL = 15;
+
+    /**
+     * Sizes and estimated extent of a single sheet
+     */
+    public static class SheetProfile {
+        private final String sheetName;
+        private final String partName;
+        private final long compressedSize;
+        private final long size;
+        private final String dimension;
+        private final long rows;
+        private final long columns;
+        private final boolean fromDimension;
+
+        SheetProfile(String sheetName, String partName, long compressedSize, long size,
+                     String dimension, long rows, long columns, boolean fromDimension) {
+            this.sheetName = sheetName;
+            this.partName = partName;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.dimension = dimension;
+            this.rows = rows;
+            this.columns = columns;
+            this.fromDimension = fromDimension;
+        }
+
+        public String getSheetName() {
+            return sheetName;
+        }
+
+        /**
+         * @return The zip entry name of the sheet part
+         */
+        public String getPartName() {
+            return partName;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        /**
+         * @return The inflated size of the sheet part, or -1 if unknown
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return The {@code <dimension ref>} of the sheet, or null if it has none
+         */
+        public String getDimension() {
+            return dimension;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getColumns() {
+            return columns;
+        }
+
+        public long getCells() {
+            return rows * columns;
+        }
+
+        /**
+         * @return Whether the extent comes from the sheet dimension rather than from the part size
+         */
+        public boolean isFromDimension() {
+            return fromDimension;
+        }
+
+        @Override
+        public String toString() {
+            return sheetName + " (" + partName + "): ~" + rows + " rows x " + columns + " columns"
+                    + (fromDimension ? " from dimension " + dimension : " from part size " + size);
+        }
+    }
+
+    ///////////////////////////////////////
+
+    private final long fileSize;
+    private final List<SheetProfile> sheets = new ArrayList<>();
+    private long sharedStringsCount;
+    private long sharedStringsUniqueCount;
+    private long sharedStringsSize;
+
+    WorkbookProfile(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    void addSheet(SheetProfile sheet) {
+        sheets.add(sheet);
+    }
+
+    void setSharedStrings(long count, long uniqueCount, long size) {
+        this.sharedStringsCount = count;
+        this.sharedStringsUniqueCount = uniqueCount;
+        this.sharedStringsSize = size;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public List<SheetProfile> getSheets() {
+        return Collections.unmodifiableList(sheets);
+    }
+
+    public long getSharedStringsCount() {
+        return sharedStringsCount;
+    }
+
+    public long getSharedStringsUniqueCount() {
+        return sharedStringsUniqueCount;
+    }
+
+    /**
+     * @return The inflated size of the shared strings part, 0 if there is none
+     */
+    public long getSharedStringsSize() {
+        return sharedStringsSize;
+    }
+
+    public long getEstimatedRows() {
+        long rows = 0;
+        for (SheetProfile sheet : sheets) {
+            rows += sheet.getRows();
+        }
+        return rows;
+    }
+
+    public long getEstimatedCells() {
+        long cells = 0;
+        for (SheetProfile sheet : sheets) {
+            cells += sheet.getCells();
+        }
+        return cells;
+    }
+
+    /**
+     * Estimates the heap taken by the shared strings once loaded: each
+     * {@code <si><t>..</t></si>} costs 16 bytes of markup in the part and
+     * about 64 bytes of object overhead on the heap, each char 2 bytes.
+     */
+    public long getEstimatedSharedStringsHeapBytes() {
+        long chars = Math.max(0, sharedStringsSize - 16 * sharedStringsUniqueCount);
+        return 64 * sharedStringsUniqueCount + 2 * chars;
+    }
+
+    public long getEstimatedHeapBytes() {
+        return BASE_HEAP_BYTES + getEstimatedSharedStringsHeapBytes();
+    }
+
+    public long getEstimatedConversionMillis() {
+        return getEstimatedConversionMillis(DEFAULT_NANOS_PER_CELL, DEFAULT_NANOS_PER_SST_BYTE);
+    }
+
+    /**
+     * @param nanosPerCell    The conversion cost of one cell
+     * @param nanosPerSstByte The load cost of one byte of the shared strings part
+     */
+    public long getEstimatedConversionMillis(long nanosPerCell, long nanosPerSstByte) {
+        return TimeUnit.NANOSECONDS.toMillis(getEstimatedCells() * nanosPerCell
+                + sharedStringsSize * nanosPerSstByte);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("file=").append(fileSize)
+                .append(" rows~").append(getEstimatedRows())
+                .append(" cells~").append(getEstimatedCells())
+                .append(" sst=").append(sharedStringsUniqueCount).append('/').append(sharedStringsCount)
+                .append(" sstHeap~").append(getEstimatedSharedStringsHeapBytes())
+                .append(" heap~").append(getEstimatedHeapBytes())
+                .append(" time~").append(getEstimatedConversionMillis()).append("ms");
+        for (SheetProfile sheet : sheets) {
+            sb.append('\n').append(sheet);
+        }
+        return sb.toString();
+    }
+}
@@ -17,11 +17,9 @@ package io.fmreis;
    limitations under the License.
 ==================================================================== */
 
-import org.apache.poi.ooxml.util.SAXHelper;
 import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
 import org.apache.poi.openxml4j.opc.OPCPackage;
 import org.apache.poi.openxml4j.opc.PackageAccess;
-import org.apache.poi.ss.usermodel.DataFormatter;
 import org.apache.poi.ss.util.CellAddress;
 import org.apache.poi.ss.util.CellReference;
 import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
@@ -33,12 +31,8 @@ import org.apache.poi.xssf.model.SharedStrings;
 import org.apache.poi.xssf.model.Styles;
 import org.apache.poi.xssf.model.StylesTable;
 import org.apache.poi.xssf.usermodel.XSSFComment;
-import org.xml.sax.ContentHandler;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
 
-import javax.xml.parsers.ParserConfigurationException;
 import java.io.*;
 import java.sql.Date;
 import java.text.*;
@@ -74,7 +68,7 @@ public class XLSX2CSV {
      *  as a (basic) CSV.
      */
     @SuppressWarnings("Duplicates")
-    private class SheetToCSV implements SheetContentsHandler {
+    private class SheetToCSV implements XSSFSheetTest.SheetContentsHandler {
         private boolean firstCellOfRow;
         private int currentRow = -1;
         private int currentCol = startColumn;
@@ -143,7 +137,7 @@ public class XLSX2CSV {
                 //noinspection ResultOfMethodCallIgnored
                 //Assumes is US
                 Double number = NumberFormat.getInstance(Locale.US).parse(formattedValue).doubleValue();
-                output.append(numberFormat.format(number));
+                csvEncoder.write(output, new String(numberBuffer, 0, numberRenderer.render(number, numberBuffer)));
 
             } catch (ParseException e1) {
 
@@ -154,7 +148,7 @@ public class XLSX2CSV {
                     Date parsedDate = (Date) dateFormat.parse(formattedValue);
                     System.out.println("The parsed date is: " + parsedDate);
                 } catch (ParseException e2) {
-                    output.append(formattedValue);
+                    csvEncoder.write(output, formattedValue);
                 }
             }
         }
@@ -175,6 +169,8 @@ public class XLSX2CSV {
      */
     private final PrintStream output;
 
+    private final CsvEncoder csvEncoder;
+
 
     private final char separator;
 
@@ -182,7 +178,9 @@ public class XLSX2CSV {
 
     private final String lang;
 
-    private NumberFormat numberFormat;
+    private NumberRenderer numberRenderer;
+
+    private final char[] numberBuffer = new char[NumberRenderer.MAX_LENGTH];
 
     /**
      * Creates a new XLSX -> CSV examples
@@ -196,6 +194,7 @@ public class XLSX2CSV {
         this.output = output;
         this.minColumns = minColumns;
         this.separator = separator;
+        this.csvEncoder = new CsvEncoder(separator);
         this.lang = lang;
     }
 
@@ -216,19 +215,9 @@ public class XLSX2CSV {
     public void processSheet(
             Styles styles,
             SharedStrings strings,
-            SheetContentsHandler sheetHandler,
+            XSSFSheetTest.SheetContentsHandler sheetHandler,
             InputStream sheetInputStream) throws IOException, SAXException {
-        DataFormatter formatter = new DataFormatter();
-        InputSource sheetSource = new InputSource(sheetInputStream);
-        try {
-            XMLReader sheetParser = SAXHelper.newXMLReader();
-            ContentHandler handler = new XSSFSheetXMLHandler(
-                    styles, null, strings, sheetHandler, formatter, false);
-            sheetParser.setContentHandler(handler);
-            sheetParser.parse(sheetSource);
-        } catch(ParserConfigurationException e) {
-            throw new RuntimeException("SAX parser appears to be broken - " + e.getMessage());
-        }
+        SheetParserPool.get().parse(styles, null, strings, sheetHandler, false, sheetInputStream, null);
     }
 
     /**
@@ -245,7 +234,7 @@ public class XLSX2CSV {
         XSSFReader.SheetIterator iter = (XSSFReader.SheetIterator) xssfReader.getSheetsData();
         int index = 0;
 
-        this.numberFormat = "EN".equals(this.lang) ? NumberFormat.getInstance(Locale.US) : NumberFormat.getInstance(Locale.FRANCE);
+        this.numberRenderer = new ShortestNumberRenderer("EN".equals(this.lang) ? '.' : ',');
 
         while (iter.hasNext()) {
             try (InputStream stream = iter.next()) {
@@ -17,35 +17,45 @@ package io.fmreis;
    limitations under the License.
 ==================================================================== */
 
-import org.apache.poi.ooxml.util.SAXHelper;
 import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
 import org.apache.poi.openxml4j.opc.OPCPackage;
 import org.apache.poi.openxml4j.opc.PackageAccess;
-import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.openxml4j.opc.PackagePart;
 import org.apache.poi.ss.util.CellAddress;
 import org.apache.poi.ss.util.CellReference;
-import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
 import org.apache.poi.xssf.eventusermodel.XSSFReader;
 import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
 import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler.SheetContentsHandler;
 import org.apache.poi.xssf.extractor.XSSFEventBasedExcelExtractor;
 import org.apache.poi.xssf.model.SharedStrings;
 import org.apache.poi.xssf.model.Styles;
-import org.apache.poi.xssf.model.StylesTable;
 import org.apache.poi.xssf.usermodel.XSSFComment;
-import org.xml.sax.ContentHandler;
-import org.xml.sax.InputSource;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
 import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
 
-import javax.xml.parsers.ParserConfigurationException;
 import java.io.*;
-import java.sql.Date;
 import java.text.DateFormat;
 import java.text.NumberFormat;
-import java.text.ParseException;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A rudimentary XLSX -> CSV processor modeled on the
@@ -77,92 +87,468 @@ public class XLSX2CSVImproved {
      *  as a (basic) CSV.
      */
     @SuppressWarnings("Duplicates")
-    private class SheetToCSV implements SheetContentsHandler {
+    private class SheetToCSV implements XSSFSheetTest.SheetContentsHandler {
+        private final ConversionMetrics.SheetStats sheetStats;
+        private final SheetSchema schema;
+        private final int firstDataRow;
+        private final PrintWriter output;
+        /**
+         * The destination of the typed values instead of {@link #output}, or null
+         */
+        private final RowSink sink;
+        /**
+         * The sheet name column and its separator, written before each row, or null
+         */
+        private final String rowPrefix;
+        // NumberFormat is not thread-safe, and sheets may be converted concurrently
+        private final NumberFormat usFormat = NumberFormat.getInstance(Locale.US);
+        private final DateFormat dateFormat = new SimpleDateFormat("yyyy-mm-dd");
+        private final ParsePosition parsePosition = new ParsePosition(0);
+        private final char[] numberBuffer = new char[NumberRenderer.MAX_LENGTH];
+        /**
+         * The value of the current cell, when {@link #parseNumber} found it to be a number
+         */
+        private double number;
+        private final boolean recording = ConversionEvents.isRecording();
+        private final boolean metricsTimed = metrics.isTimingEnabled();
+        private final boolean timed = recording || metricsTimed;
+        private final long sheetAllocationStart;
         private boolean firstCellOfRow;
         private int currentRow = -1;
         private int currentCol = startColumn;
+        private long charsWritten;
+        private long formatNanos;
+        private long writeNanos;
+        private long cells;
+        private ConversionEvents.RowBatchEvent batch;
 
-        private void outputMissingRows(int rowNum, int number) {
-            if(rowNum <= 3)
+        SheetToCSV(ConversionMetrics.SheetStats sheetStats, SheetSchema schema, PrintWriter output, RowSink sink) {
+            this.sheetStats = sheetStats;
+            this.schema = schema;
+            this.firstDataRow = schema != null ? schema.getFirstDataRow() : headerRows;
+            this.output = output;
+            this.sink = sink;
+            if (sheetNameColumn) {
+                StringWriter prefix = new StringWriter();
+                csvEncoder.write(prefix, sheetStats.getSheetName());
+                this.rowPrefix = prefix.append(separator).toString();
+            } else {
+                this.rowPrefix = null;
+            }
+            this.sheetAllocationStart = recording ? ConversionEvents.allocatedBytes() : 0;
+        }
+
+        private void startBatch(int rowNum) {
+            batch = new ConversionEvents.RowBatchEvent();
+            batch.sheetName = sheetStats.getSheetName();
+            batch.firstRow = rowNum;
+            batch.allocatedBytes = ConversionEvents.allocatedBytes();
+            batch.begin();
+        }
+
+        private void commitBatch() {
+            batch.end();
+            if (batch.shouldCommit()) {
+                batch.allocatedBytes = ConversionEvents.allocatedBytes() - batch.allocatedBytes;
+                batch.commit();
+            }
+            batch = null;
+        }
+
+        /**
+         * Emits the events still pending at the end of the sheet.
+         */
+        void endSheet(long bytesInflated, long unzipNanos) {
+            if (!recording) {
                 return;
-            for (int i=0; i<number; i++) {
-                for (int j=0; j<minColumns-1; j++) {
-                    output.append(separator);
-                }
-                output.append('\n');
+            }
+            if (batch != null) {
+                commitBatch();
+            }
+            ConversionEvents.SheetEvent event = new ConversionEvents.SheetEvent();
+            if (event.shouldCommit()) {
+                event.sheetName = sheetStats.getSheetName();
+                event.rows = sheetStats.getRows();
+                event.cells = cells;
+                event.bytesInflated = bytesInflated;
+                event.unzipNanos = unzipNanos;
+                event.formatNanos = formatNanos;
+                event.writeNanos = writeNanos;
+                event.allocatedBytes = ConversionEvents.allocatedBytes() - sheetAllocationStart;
+                event.commit();
             }
         }
 
+        private void outputMissingRows(int rowNum) {
+            // only the missing rows after the header
+            int missing = rowNum - Math.max(currentRow + 1, firstDataRow);
+            if(missing <= 0 || sparseOutput || sink != null)
+                return;
+            charsWritten += gapWriter.writeEmptyRows(output, missing, rowPrefix);
+        }
+
         @Override
         public void startRow(int rowNum) {
+            if (recording && batch == null) {
+                startBatch(rowNum);
+            }
             // If there were gaps, output the missing rows
-            outputMissingRows(rowNum, rowNum-currentRow-1);
+            long start = timed ? System.nanoTime() : 0;
+            outputMissingRows(rowNum);
+            if (timed) {
+                addWriteNanos(System.nanoTime() - start);
+            }
             // Prepare for this row
             firstCellOfRow = true;
             currentRow = rowNum;
             currentCol = startColumn;
+            if (sink != null && rowNum >= firstDataRow) {
+                try {
+                    sink.startRow(rowNum);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
         }
 
         @Override
         @SuppressWarnings("Duplicates")
         public void endRow(int rowNum) {
+            metrics.rowCompleted(sheetStats);
+            if (batch != null && ++batch.rows == ConversionEvents.ROW_BATCH_SIZE) {
+                commitBatch();
+            }
+            if (sink != null && rowNum >= firstDataRow) {
+                try {
+                    sink.endRow(rowNum);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
             // Ensure the minimum number of columns
-            if(rowNum <= 2)
+            if(rowNum < firstDataRow || sparseOutput)
                 return;
-            for (int i=currentCol; i<minColumns; i++) {
-                output.append(separator);
+            if (firstCellOfRow) {
+                writeRowPrefix();
             }
+            charsWritten += gapWriter.writeSeparators(output, minColumns - currentCol);
             output.append('\n');
+            charsWritten++;
+            metrics.addCharsWritten(charsWritten);
+            charsWritten = 0;
         }
 
         @Override
-        @SuppressWarnings("Duplicates")
         public void cell(String cellReference, String formattedValue,
                          XSSFComment comment) {
+            cell(cellReference, formattedValue, null, comment);
+        }
 
-            if (currentRow < 3){
-                return;
+        @Override
+        @SuppressWarnings("Duplicates")
+        public void cell(String cellReference, String formattedValue, String formula,
+                         XSSFComment comment) {
+            metrics.cellCompleted();
+            cells++;
+            if (batch != null) {
+                batch.cells++;
             }
 
-            if (firstCellOfRow) {
-                firstCellOfRow = false;
-            } else {
-                output.append(separator);
+            if (currentRow < firstDataRow){
+                return;
             }
 
+            long start = timed ? System.nanoTime() : 0;
+
             // gracefully handle missing CellRef here in a similar way as XSSFCell does
             if(cellReference == null) {
                 cellReference = new CellAddress(currentRow, currentCol).formatAsString();
             }
 
             // Did we miss any cells?
-            int thisCol = (new CellReference(cellReference)).getCol();
+            long packedRef = XSSFSheetTest.packCellRef(cellReference);
+            int thisCol = packedRef >= 0 ? (int) packedRef : (new CellReference(cellReference)).getCol();
             int missedCols = thisCol - currentCol - 1;
-            for (int i=0; i<missedCols; i++) {
-                output.append(separator);
-            }
-            currentCol = thisCol;
 
             // Number or string?
-            try {
-                //noinspection ResultOfMethodCallIgnored
-                //Assumes is US
-                Double number = NumberFormat.getInstance(Locale.US).parse(formattedValue).doubleValue();
-                output.append(numberFormat.format(number));
+            boolean numeric;
+            String value = null;
+            if (formulasNotResults && formula != null) {
+                numeric = false;
+                value = formattedValue;
+            } else {
+                SheetSchema.ColumnType type = schema != null ? schema.getType(thisCol) : SheetSchema.ColumnType.EMPTY;
+                numeric = parseNumber(type, formattedValue);
+                if (!numeric) {
+                    value = formatText(type, formattedValue);
+                }
+            }
+
+            long formatted = timed ? System.nanoTime() : 0;
 
-            } catch (ParseException e1) {
+            if (sink != null) {
+                sinkValue(thisCol, numeric, value);
+            } else if (sparseOutput) {
+                outputTriple(thisCol, numeric, value);
+            } else {
+                if (firstCellOfRow) {
+                    firstCellOfRow = false;
+                    writeRowPrefix();
+                } else {
+                    output.append(separator);
+                    charsWritten++;
+                }
+                if (missedCols > 0) {
+                    charsWritten += gapWriter.writeSeparators(output, missedCols);
+                }
+                currentCol = thisCol;
+                charsWritten += writeValue(numeric, value);
+            }
+
+            if (timed) {
+                long written = System.nanoTime();
+                addFormatNanos(formatted - start);
+                addWriteNanos(written - formatted);
+            }
+        }
 
-                String pattern = "yyyy-mm-dd";
-                DateFormat dateFormat = new SimpleDateFormat(pattern);
+        /**
+         * Reads the value of a cell as a number, if it is written as one.
+         * Numbers of columns of known type are parsed directly, dates and
+         * text never are; values of unknown type, or that do not fit the
+         * type of their column, are numbers if they start with a (US) number.
+         *
+         * @return Whether the value is a number, stored in {@link #number}
+         */
+        private boolean parseNumber(SheetSchema.ColumnType type, String formattedValue) {
+            switch (type) {
+                case INTEGER:
+                case DECIMAL:
+                    if (SchemaInferencer.numberType(formattedValue) != null) {
+                        number = SchemaInferencer.parseNumber(formattedValue);
+                        return true;
+                    }
+                    return parseGeneric(formattedValue);
+                case DATE:
+                case STRING:
+                    return false;
+                default:
+                    return parseGeneric(formattedValue);
+            }
+        }
 
-                try {
-                    Date parsedDate = (Date) dateFormat.parse(formattedValue);
-                    System.out.println("The parsed date is: " + parsedDate);
-                } catch (ParseException e2) {
-                    output.append(formattedValue);
+        private boolean parseGeneric(String formattedValue) {
+            // plain numbers, the common case, without NumberFormat, which
+            // would also read only the mantissa of scientific notation
+            if (SchemaInferencer.numberType(formattedValue) != null) {
+                number = SchemaInferencer.parseNumber(formattedValue);
+                return true;
+            }
+            // most text fails at the first char, without the cost of a ParseException
+            if (formattedValue.isEmpty() || !mayStartNumber(formattedValue.charAt(0))) {
+                return false;
+            }
+            //Assumes is US
+            parsePosition.setIndex(0);
+            Number parsed = usFormat.parse(formattedValue, parsePosition);
+            if (parsed == null) {
+                return false;
+            }
+            number = parsed.doubleValue();
+            return true;
+        }
+
+        /**
+         * Formats a value that is not a number.
+         */
+        private String formatText(SheetSchema.ColumnType type, String formattedValue) {
+            if (type == SheetSchema.ColumnType.DATE || type == SheetSchema.ColumnType.STRING) {
+                return formattedValue;
+            }
+            if (formattedValue.isEmpty() || !mayStartDate(formattedValue.charAt(0))) {
+                return formattedValue;
+            }
+            parsePosition.setIndex(0);
+            return dateFormat.parse(formattedValue, parsePosition) != null ? null : formattedValue;
+        }
+
+        /**
+         * Writes the value of a cell: {@link #number} if it is numeric,
+         * else the text, if any.
+         *
+         * @return The number of chars written
+         */
+        private int writeValue(boolean numeric, String value) {
+            if (numeric) {
+                int length = numberRenderer.render(number, numberBuffer);
+                return csvEncoder.write(output, numberBuffer, length);
+            }
+            return value != null ? csvEncoder.write(output, value) : 0;
+        }
+
+        /**
+         * Sends the value of a cell to the sink, like {@link #writeValue}.
+         */
+        private void sinkValue(int col, boolean numeric, String value) {
+            try {
+                if (numeric) {
+                    sink.number(col, number);
+                } else if (value != null) {
+                    sink.text(col, value);
                 }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Writes a non-empty cell as a (1-based) row, column, value line.
+         */
+        private void outputTriple(int col, boolean numeric, String value) {
+            if (!numeric && (value == null || value.isEmpty())) {
+                return;
+            }
+            writeRowPrefix();
+            String row = Integer.toString(currentRow + 1);
+            String column = Integer.toString(col + 1);
+            output.append(row).append(separator).append(column).append(separator);
+            charsWritten += row.length() + column.length() + 3 + writeValue(numeric, value);
+            output.append('\n');
+        }
+
+        private void writeRowPrefix() {
+            if (rowPrefix != null) {
+                output.write(rowPrefix);
+                charsWritten += rowPrefix.length();
+            }
+        }
+
+        private void addFormatNanos(long nanos) {
+            formatNanos += nanos;
+            if (batch != null) {
+                batch.formatNanos += nanos;
+            }
+            if (metricsTimed) {
+                metrics.record(ConversionMetrics.Stage.FORMAT, nanos);
+            }
+        }
+
+        private void addWriteNanos(long nanos) {
+            writeNanos += nanos;
+            if (batch != null) {
+                batch.writeNanos += nanos;
+            }
+            if (metricsTimed) {
+                metrics.record(ConversionMetrics.Stage.WRITE, nanos);
+            }
+        }
+    }
+
+    /**
+     * Fills the {@link RowBatch} with the raw values of the data rows of a
+     * sheet, and hands it to the consumer each time it is full.
+     */
+    private class SheetToBatches implements XSSFSheetTest.RawCellHandler {
+        private final ConversionMetrics.SheetStats sheetStats;
+        private final RowBatch batch;
+        private final int firstDataRow;
+        private int currentRow = -1;
+        private boolean rowAdded;
+
+        SheetToBatches(ConversionMetrics.SheetStats sheetStats, SheetSchema schema, RowBatch batch) {
+            this.sheetStats = sheetStats;
+            this.batch = batch;
+            this.firstDataRow = schema != null ? schema.getFirstDataRow() : headerRows;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+            currentRow = rowNum;
+            rowAdded = false;
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            metrics.rowCompleted(sheetStats);
+            if (rowAdded && batch.isFull()) {
+                send();
+            }
+        }
+
+        /**
+         * @return Whether the cell belongs to a data row, which is then in the batch
+         */
+        private boolean dataCell() {
+            metrics.cellCompleted();
+            if (currentRow < firstDataRow) {
+                return false;
+            }
+            if (!rowAdded) {
+                batch.addRow(currentRow);
+                rowAdded = true;
+            }
+            return true;
+        }
+
+        private void send() {
+            try {
+                rowBatchConsumer.accept(batch);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            batch.clear();
+        }
+
+        /**
+         * Sends the rows left at the end of the sheet.
+         */
+        void flush() throws IOException {
+            if (batch.size() > 0) {
+                rowBatchConsumer.accept(batch);
+                batch.clear();
+            }
+        }
+
+        @Override
+        public void numberCell(int column, CharSequence value) {
+            if (dataCell()) {
+                batch.setNumber(column, value);
+            }
+        }
+
+        @Override
+        public void booleanCell(int column, boolean value) {
+            if (dataCell()) {
+                batch.setBoolean(column, value);
             }
         }
+
+        @Override
+        public void sharedStringCell(int column, int index) {
+            if (dataCell()) {
+                batch.setSharedString(column, index);
+            }
+        }
+
+        @Override
+        public void textCell(int column, CharSequence value) {
+            if (dataCell()) {
+                batch.setText(column, value, RowBatch.TEXT);
+            }
+        }
+
+        @Override
+        public void errorCell(int column, CharSequence value) {
+            if (dataCell()) {
+                batch.setText(column, value, RowBatch.ERROR);
+            }
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            // only the comments of empty cells come here, and batches have no comments
+        }
     }
 
 
@@ -182,11 +568,137 @@ public class XLSX2CSVImproved {
 
     private final char separator;
 
+    private final CsvEncoder csvEncoder;
+
     private final int startColumn = 0;
 
     private final String lang;
 
-    private NumberFormat numberFormat;
+    private NumberRenderer numberRenderer;
+
+    private ConversionMetrics metrics = new ConversionMetrics();
+
+    /**
+     * Whether formula cells are output as their formula rather than their cached result
+     */
+    private boolean formulasNotResults;
+
+    /**
+     * Whether cells are output as row, column, value lines instead of a dense grid
+     */
+    private boolean sparseOutput;
+
+    private GapWriter gapWriter;
+
+    /**
+     * Whether each row starts with the name of its sheet
+     */
+    private boolean sheetNameColumn;
+
+    /**
+     * Separate destinations of the sheets, or null to write all sheets to {@link #output}
+     */
+    private SheetOutputFactory sheetOutputs;
+
+    /**
+     * The destination of the typed values of the sheets instead of CSV, or null
+     */
+    private RowSink rowSink;
+
+    /**
+     * The consumer of the data rows of the sheets in batches instead of CSV, or null
+     */
+    private RowBatchConsumer rowBatchConsumer;
+
+    /**
+     * The batch reused for all the sheets, or null
+     */
+    private RowBatch rowBatch;
+
+    /**
+     * The directory of {@link #setOutputDirectory(File)}, or null
+     */
+    private File outputDirectory;
+
+    /**
+     * The file names of the sheets in {@link #outputDirectory}, without {@code .csv}, by sheet name
+     */
+    private volatile Map<String, String> sheetFileNames = Collections.emptyMap();
+
+    /**
+     * Whether only the sheets changed since the last conversion to {@link #outputDirectory} are converted
+     */
+    private boolean incremental;
+
+    /**
+     * Names of the sheets the last incremental conversion found unchanged
+     */
+    private final List<String> unchangedSheets = new ArrayList<>();
+
+    /**
+     * Number of sheets converted at once when each sheet has its own destination
+     */
+    private int sheetThreads = 1;
+
+    /**
+     * Names of the sheets to convert, or null for all
+     */
+    private Set<String> includedSheets;
+
+    /**
+     * Names of the sheets not to convert
+     */
+    private Set<String> excludedSheets = Collections.emptySet();
+
+    /**
+     * Number of leading rows of each sheet that are not data, when the sheet has no schema
+     */
+    private int headerRows = 3;
+
+    /**
+     * Schemas of the sheets, by sheet name
+     */
+    private Map<String, SheetSchema> schemas = Collections.emptyMap();
+
+    /**
+     * Number of rows to infer the schema of sheets without one from, or 0 not to infer schemas
+     */
+    private int schemaSampleRows;
+
+    /**
+     * The number of data rows converted per sheet, or 0 for all
+     */
+    private int rowLimit;
+
+    /**
+     * Estimated heap the shared strings may take before they are moved to disk
+     */
+    private long sharedStringsBudget = Runtime.getRuntime().maxMemory() / 4;
+
+    /**
+     * The heap budget the structures of the conversion are sized from, or null
+     */
+    private MemoryBudget memoryBudget;
+
+    /**
+     * Whether the sheets start converting while the shared strings load
+     */
+    private boolean sharedStringsInBackground;
+
+    /**
+     * Shared strings table loaded already, or null to load one per conversion
+     */
+    private SpillableSharedStringsTable sharedStrings;
+
+    /**
+     * Size of the buffer of each separate sheet destination
+     */
+    private int sheetBufferChars;
+
+    /**
+     * Number of buffers the output of each separate sheet destination is split in, 1 to write it synchronously
+     */
+    private int outputBuffers = 1;
 
     /**
      * Creates a new XLSX -> CSV examples
@@ -201,7 +713,282 @@ public class XLSX2CSVImproved {
         this.output = output;
         this.minColumns = minColumns;
         this.separator = separator;
+        this.csvEncoder = new CsvEncoder(separator);
         this.lang = lang;
+        this.numberRenderer = new ShortestNumberRenderer("EN".equals(lang) ? '.' : ',');
+    }
+
+    public ConversionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics the conversion reports to, which may be shared
+     * with other conversions.
+     *
+     * @param metrics The metrics to update
+     */
+    public void setMetrics(ConversionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets whether formula cells are written as their formula text (with
+     * shared formulas expanded) instead of their cached result.
+     */
+    public void setFormulasNotResults(boolean formulasNotResults) {
+        this.formulasNotResults = formulasNotResults;
+    }
+
+    /**
+     * Sets whether to output one {@code row;column;value} line (1-based
+     * row and column numbers) per non-empty cell instead of a padded grid,
+     * which for very sparse sheets is much smaller.
+     */
+    public void setSparseOutput(boolean sparseOutput) {
+        this.sparseOutput = sparseOutput;
+    }
+
+    /**
+     * Sets whether each output row starts with a column holding the name
+     * of its sheet, so that sheets written to the same output can be told
+     * apart.
+     */
+    public void setSheetNameColumn(boolean sheetNameColumn) {
+        this.sheetNameColumn = sheetNameColumn;
+    }
+
+    /**
+     * Sets a separate destination for each sheet instead of the output
+     * given to the constructor.
+     *
+     * @param sheetOutputs The factory opening the destination of each sheet, or null
+     * @see #setOutputDirectory(File)
+     * @see #setSheetThreads(int)
+     */
+    public void setSheetOutputs(SheetOutputFactory sheetOutputs) {
+        this.sheetOutputs = sheetOutputs;
+        this.outputDirectory = null;
+    }
+
+    /**
+     * Writes each sheet to a UTF-8 file of the directory, named after the
+     * sheet with {@code .csv} appended.  Sheets whose names make the same
+     * file name get a {@code _2}, {@code _3}... suffix, in workbook order.
+     *
+     * @param directory An existing directory
+     */
+    public void setOutputDirectory(final File directory) {
+        setSheetOutputs(new SheetOutputFactory() {
+            @Override
+            public Writer open(String sheetName, int sheetIndex) throws IOException {
+                File file = new File(directory, getSheetFileName(sheetName) + ".csv");
+                return new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+            }
+        });
+        this.outputDirectory = directory;
+    }
+
+    /**
+     * Sets whether to convert only the sheets that changed since the last
+     * conversion to the output directory, keeping the files of the others.
+     * <p>
+     * Each conversion records in the directory the CRC-32 and size of the
+     * zip entry of every sheet converted, of the workbook, of the shared
+     * strings and of the styles, as well as the options of the conversion.
+     * A sheet is converted again when its entry, the workbook, the styles or
+     * the options changed, or the shared strings did and the sheet refers to
+     * any of them; the
+     * unchanged ones are listed by {@link #getUnchangedSheets()}.  The
+     * files of sheets removed from the workbook are deleted.  Requires
+     * {@link #setOutputDirectory(File)}.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * @return The names of the sheets the last incremental conversion did
+     *         not convert because they were unchanged
+     */
+    public List<String> getUnchangedSheets() {
+        return Collections.unmodifiableList(unchangedSheets);
+    }
+
+    /**
+     * Sends the typed values of the data rows of the sheets to a sink
+     * instead of writing them as CSV, one sheet after the other.  Text
+     * and numbers are told apart as for the CSV, from the schema of the
+     * sheet if it has one.  The output given to the constructor and the
+     * sheet destinations are not written to.
+     *
+     * @param rowSink The sink, or null to write CSV
+     * @see JdbcRowSink
+     */
+    public void setRowSink(RowSink rowSink) {
+        this.rowSink = rowSink;
+    }
+
+    /**
+     * Hands the raw values of the data rows of the sheets to a consumer in
+     * batches of primitive columns instead of writing them as CSV, one
+     * sheet after the other.  Values are not formatted, so numbers, booleans
+     * and shared strings reach the consumer without building any String.
+     * The output given to the constructor and the sheet destinations are
+     * not written to.
+     *
+     * @param consumer  The consumer, or null to write CSV
+     * @param batchRows The number of rows of a batch
+     * @see RowBatch
+     */
+    public void setRowBatchConsumer(RowBatchConsumer consumer, int batchRows) {
+        this.rowBatchConsumer = consumer;
+        this.rowBatch = consumer != null ? new RowBatch(batchRows) : null;
+    }
+
+    /**
+     * Sets the number of buffers of each separate sheet destination.  With
+     * 2 or more, each destination is written by a thread of its own from
+     * full buffers while the sheet goes on filling the next ones (see
+     * {@link AsyncWriter}), which keeps slow storage from holding the
+     * parsing up.  The buffers share the size a single buffer would have.
+     * Defaults to 1, written by the converting thread.
+     */
+    public void setOutputBuffers(int outputBuffers) {
+        this.outputBuffers = Math.max(1, outputBuffers);
+    }
+
+    /**
+     * Sets the number of sheets converted concurrently when each sheet has
+     * its own destination.  Defaults to 1.
+     */
+    public void setSheetThreads(int sheetThreads) {
+        this.sheetThreads = Math.max(1, sheetThreads);
+    }
+
+    /**
+     * Sets the names of the only sheets to convert.  The other sheets are
+     * skipped without reading their data.
+     *
+     * @param sheetNames The names, or null to convert all sheets that are not excluded
+     */
+    public void setIncludedSheets(Collection<String> sheetNames) {
+        this.includedSheets = sheetNames == null ? null : new HashSet<>(sheetNames);
+    }
+
+    /**
+     * Sets the names of sheets not to convert.  They are skipped without
+     * reading their data.
+     */
+    public void setExcludedSheets(Collection<String> sheetNames) {
+        this.excludedSheets = sheetNames == null ? Collections.<String>emptySet() : new HashSet<>(sheetNames);
+    }
+
+    /**
+     * Converts only the first data rows of each sheet, and abandons the
+     * rest of the sheet unread (see {@link SheetScanner}).  With the shared
+     * strings loaded in the background, the table is only read as far as
+     * those rows need, which keeps previews of huge workbooks fast.
+     * Does not apply to a {@link #setRowBatchConsumer batch consumer}.
+     *
+     * @param rowLimit The number of data rows, or 0 for all
+     * @see WorkbookPreview
+     */
+    public void setRowLimit(int rowLimit) {
+        this.rowLimit = Math.max(0, rowLimit);
+    }
+
+    /**
+     * Sets the number of leading rows of each sheet (titles and headers)
+     * that are not output, for sheets without a schema.  Defaults to 3.
+     */
+    public void setHeaderRows(int headerRows) {
+        this.headerRows = headerRows;
+    }
+
+    /**
+     * Sets the schemas of the sheets, for instance those of
+     * {@link XLSXAnalyser#getSchemas()}.  The rows of a sheet with a schema
+     * are output from its first data row on, and the values of its typed
+     * columns are formatted for their type instead of being parsed as
+     * numbers first.
+     *
+     * @param schemas The schemas by sheet name
+     */
+    public void setSchemas(Map<String, SheetSchema> schemas) {
+        this.schemas = schemas == null ? Collections.<String, SheetSchema>emptyMap() : schemas;
+    }
+
+    /**
+     * Sets whether to infer the schema of each sheet without one from its
+     * first {@value SchemaInferencer#DEFAULT_SAMPLE_ROWS} rows, which reads
+     * those rows twice.
+     *
+     * @see #setSchemas(Map)
+     */
+    public void setSchemaInference(boolean schemaInference) {
+        this.schemaSampleRows = schemaInference ? SchemaInferencer.DEFAULT_SAMPLE_ROWS : 0;
+    }
+
+    /**
+     * Sets how numeric cells are written.  Defaults to the shortest digits
+     * that read back as the same number, without grouping, with a point as
+     * decimal separator for {@code EN} and a comma for other languages.
+     * Numbers containing the separator are quoted.
+     *
+     * @param numberRenderer The renderer, used by all sheets
+     * @see NumberFormatRenderer
+     */
+    public void setNumberRenderer(NumberRenderer numberRenderer) {
+        this.numberRenderer = numberRenderer;
+    }
+
+    /**
+     * Sets the estimated heap the shared strings table may take.  Larger
+     * tables are moved to disk while loading, which slows the conversion
+     * down instead of running out of memory.  Defaults to a quarter of the
+     * maximum heap.
+     *
+     * @param budgetBytes The budget in bytes
+     */
+    public void setSharedStringsBudget(long budgetBytes) {
+        this.sharedStringsBudget = budgetBytes;
+    }
+
+    /**
+     * Sizes the shared strings table, the output buffers of the sheets and
+     * the number of sheets converted at once from a single heap budget,
+     * instead of {@link #setSharedStringsBudget(long)}, and checks the
+     * workbook against it before converting any sheet.  The rows held by
+     * a batch consumer or a row sink count against the budget too.
+     *
+     * @param memoryBudget The budget, or null to size them separately
+     */
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Loads the shared strings table on a thread of its own while the
+     * sheets start converting, each cell waiting only for its own string
+     * to be loaded, instead of loading the whole table first.  Workbooks
+     * written by Excel list their strings in order of first use, so the
+     * first sheet rarely waits at all.  Defaults to false.
+     */
+    public void setSharedStringsInBackground(boolean sharedStringsInBackground) {
+        this.sharedStringsInBackground = sharedStringsInBackground;
+    }
+
+    /**
+     * Converts with the shared strings table of the package loaded already,
+     * for instance the one of an {@link XLSXAnalyser}, instead of loading it
+     * again.  The table is left open, and neither the shared strings budget
+     * nor loading in the background apply to it.
+     *
+     * @param sharedStrings The table, or null to load one per conversion
+     */
+    public void setSharedStrings(SpillableSharedStringsTable sharedStrings) {
+        this.sharedStrings = sharedStrings;
     }
 
     /**
@@ -216,24 +1003,27 @@ public class XLSX2CSVImproved {
      *            possibly from a byte stream or character stream
      *            supplied by the application.
      * @throws SAXException if parsing the XML data fails.
+     * @return The number of cells of the sheet that refer to a shared string
      */
     @SuppressWarnings("Duplicates")
-    public void processSheet(
+    public long processSheet(
             Styles styles,
             SharedStrings strings,
-            SheetContentsHandler sheetHandler,
+            XSSFSheetTest.SheetContentsHandler sheetHandler,
             InputStream sheetInputStream) throws IOException, SAXException {
-        DataFormatter formatter = new DataFormatter();
-        InputSource sheetSource = new InputSource(sheetInputStream);
-        try {
-            XMLReader sheetParser = SAXHelper.newXMLReader();
-            ContentHandler handler = new XSSFSheetXMLHandler(
-                    styles, null, strings, sheetHandler, formatter, false);
-            sheetParser.setContentHandler(handler);
-            sheetParser.parse(sheetSource);
-        } catch(ParserConfigurationException e) {
-            throw new RuntimeException("SAX parser appears to be broken - " + e.getMessage());
-        }
+        return SheetParserPool.get().parse(styles, null, strings, sheetHandler, formulasNotResults, sheetInputStream, metrics);
+    }
+
+    /**
+     * Like {@link #processSheet(Styles, SharedStrings, XSSFSheetTest.SheetContentsHandler, InputStream)},
+     * with the number formats read by {@link CellNumberFormats} in place of a styles table.
+     */
+    public long processSheet(
+            CellNumberFormats numberFormats,
+            SharedStrings strings,
+            XSSFSheetTest.SheetContentsHandler sheetHandler,
+            InputStream sheetInputStream) throws IOException, SAXException {
+        return SheetParserPool.get().parse(numberFormats, null, strings, sheetHandler, formulasNotResults, sheetInputStream, metrics);
     }
 
     /**
@@ -244,41 +1034,474 @@ public class XLSX2CSVImproved {
      */
     @SuppressWarnings("Duplicates")
     public void process() throws IOException, OpenXML4JException, SAXException {
-        long inicio = System.currentTimeMillis();
-        ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(this.xlsxPackage);
+        CellNumberFormats styles = new CellNumberFormats(this.xlsxPackage);
+        if (outputDirectory != null) {
+            // before any sheet is converted, as they may be converted concurrently
+            sheetFileNames = toFileNames(readSheetNames());
+        }
+        ConversionManifest previous = null;
+        ConversionManifest manifest = null;
+        unchangedSheets.clear();
+        if (incremental) {
+            if (outputDirectory == null || rowSink != null || rowBatchConsumer != null || rowLimit > 0) {
+                throw new IllegalStateException("An incremental conversion needs an output directory, and no row sink, batch consumer nor row limit");
+            }
+            previous = ConversionManifest.load(outputDirectory);
+            manifest = new ConversionManifest();
+            manifest.setOptions(getOptions());
+            manifest.setPart(ConversionManifest.WORKBOOK, ConversionManifest.workbookEntryOf(this.xlsxPackage));
+            manifest.setPart(ConversionManifest.STYLES, ConversionManifest.entryOf(this.xlsxPackage, XSSFRelation.STYLES));
+            manifest.setPart(ConversionManifest.SHARED_STRINGS, ConversionManifest.entryOf(this.xlsxPackage, XSSFRelation.SHARED_STRINGS));
+            if (!hasChangedSheets(previous, manifest)) {
+                // nothing refers to the shared strings, do not even load them
+                process(null, styles, 1, previous, manifest);
+                return;
+            }
+        }
+        if (rowSink != null && rowBatchConsumer != null) {
+            throw new IllegalStateException("Rows go either to a row sink or to a batch consumer");
+        }
+        int threads = sheetOutputs != null && rowSink == null && rowBatchConsumer == null ? sheetThreads : 1;
+        long stringsBudget = sharedStringsBudget;
+        this.sheetBufferChars = 1 << 16;
+        if (memoryBudget != null) {
+            long rowBytes = rowBatch != null ? rowBatch.getHeapBytes(minColumns) : rowSink != null ? rowSink.getHeapBytes(minColumns) : 0;
+            threads = memoryBudget.getSheetThreads(threads, styles);
+            memoryBudget.check(threads, styles, rowBytes);
+            stringsBudget = memoryBudget.getSharedStringsBytes(threads, styles, rowBytes);
+            this.sheetBufferChars = memoryBudget.getOutputBufferChars();
+        }
+        if (sharedStrings != null) {
+            metrics.recordSharedStrings(sharedStrings);
+            process(sharedStrings, styles, threads, previous, manifest);
+            return;
+        }
+        try (SpillableSharedStringsTable strings = new SpillableSharedStringsTable(this.xlsxPackage, stringsBudget, sharedStringsInBackground)) {
+            if (sharedStringsInBackground) {
+                process(strings, styles, threads, previous, manifest);
+                if (rowLimit == 0) {
+                    // a broken table fails the conversion even if no cell used it
+                    strings.awaitLoaded();
+                }
+                // otherwise closing the table stops loading the strings no row needed
+                metrics.recordSharedStrings(strings);
+            } else {
+                metrics.recordSharedStrings(strings);
+                process(strings, styles, threads, previous, manifest);
+            }
+        }
+    }
+
+    /**
+     * @return The options that change the output of a sheet, as recorded by incremental conversions
+     */
+    private String getOptions() {
+        // a renderer without its own toString never compares equal, and always converts again
+        return "separator=" + separator + " lang=" + lang + " minColumns=" + minColumns + " headerRows=" + headerRows
+                + " schemaSampleRows=" + schemaSampleRows + " schemas=" + new TreeMap<>(schemas)
+                + " formulas=" + formulasNotResults + " sparse=" + sparseOutput + " sheetNameColumn=" + sheetNameColumn
+                + " numbers=" + numberRenderer;
+    }
+
+    /**
+     * @return The names of the sheets, in workbook order
+     */
+    private List<String> readSheetNames() throws IOException, OpenXML4JException {
+        List<String> sheetNames = new ArrayList<>();
+        XSSFReader.SheetIterator iter = (XSSFReader.SheetIterator) new XSSFReader(this.xlsxPackage).getSheetsData();
+        while (iter.hasNext()) {
+            iter.next().close();
+            sheetNames.add(iter.getSheetName());
+        }
+        return sheetNames;
+    }
+
+    private String getSheetFileName(String sheetName) {
+        String fileName = sheetFileNames.get(sheetName);
+        return fileName != null ? fileName : toFileName(sheetName);
+    }
+
+    /**
+     * @return Distinct file names for the sheets, ignoring case as some
+     *         file systems do, by sheet name
+     */
+    static Map<String, String> toFileNames(List<String> sheetNames) {
+        Map<String, String> fileNames = new LinkedHashMap<>();
+        Set<String> taken = new HashSet<>();
+        for (String sheetName : sheetNames) {
+            String fileName = toFileName(sheetName);
+            String unique = fileName;
+            for (int n = 2; !taken.add(unique.toLowerCase(Locale.ROOT)); n++) {
+                unique = fileName + "_" + n;
+            }
+            fileNames.put(sheetName, unique);
+        }
+        return fileNames;
+    }
+
+    /**
+     * @return Whether an incremental conversion has any sheet to convert
+     */
+    private boolean hasChangedSheets(ConversionManifest previous, ConversionManifest manifest) throws IOException, OpenXML4JException {
+        XSSFReader.SheetIterator iter = (XSSFReader.SheetIterator) new XSSFReader(this.xlsxPackage).getSheetsData();
+        while (iter.hasNext()) {
+            // next() moves to the sheet, only its part is needed
+            iter.next().close();
+            String sheetName = iter.getSheetName();
+            if (isSheetIncluded(sheetName) && !previous.isUnchanged(manifest, sheetName,
+                    ConversionManifest.entryOf(iter.getSheetPart()), outputDirectory)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param previous The manifest of the last incremental conversion, or null if not incremental
+     * @param manifest The manifest of this one, which the converted sheets are recorded to
+     */
+    @SuppressWarnings("Duplicates")
+    private void process(SharedStrings strings, CellNumberFormats styles, int threads,
+                         ConversionManifest previous, ConversionManifest manifest) throws IOException, OpenXML4JException, SAXException {
         XSSFReader xssfReader = new XSSFReader(this.xlsxPackage);
-        StylesTable styles = xssfReader.getStylesTable();
         XSSFReader.SheetIterator iter = (XSSFReader.SheetIterator) xssfReader.getSheetsData();
         int index = 0;
+        Set<String> sheetNames = new HashSet<>();
 
-        this.numberFormat = "EN".equals(this.lang) ? NumberFormat.getInstance(Locale.US) : NumberFormat.getInstance(Locale.FRANCE);
+        this.gapWriter = new GapWriter(separator, minColumns);
 
-        while (iter.hasNext()) {
-            try (InputStream stream = iter.next()) {
-                String sheetName = iter.getSheetName();
-                processSheet(styles, strings, new SheetToCSV(), stream);
+        ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        List<Future<Void>> sheets = new ArrayList<>();
+        try {
+            while (iter.hasNext()) {
+                // opening the stream of a sheet does not inflate anything yet
+                try (InputStream stream = iter.next()) {
+                    String sheetName = iter.getSheetName();
+                    int sheetIndex = index++;
+                    sheetNames.add(sheetName);
+                    if (!isSheetIncluded(sheetName)) {
+                        if (manifest != null) {
+                            // the output of an excluded sheet stays as it was
+                            manifest.copySheet(previous, sheetName);
+                        }
+                        continue;
+                    }
+                    if (manifest != null) {
+                        String entry = ConversionManifest.entryOf(iter.getSheetPart());
+                        if (previous.isUnchanged(manifest, sheetName, entry, outputDirectory)) {
+                            manifest.copySheet(previous, sheetName);
+                            unchangedSheets.add(sheetName);
+                            continue;
+                        }
+                        // the output is about to be overwritten, so that a failure cannot leave it recorded
+                        previous.removeSheet(sheetName);
+                        previous.save(outputDirectory);
+                    }
+                    if (pool == null) {
+                        processSheet(sheetName, sheetIndex, iter.getSheetPart(), stream, styles, strings, manifest);
+                    } else {
+                        sheets.add(pool.submit(newSheetTask(sheetName, sheetIndex, iter.getSheetPart(), styles, strings, manifest)));
+                    }
+                }
+            }
+            for (Future<Void> sheet : sheets) {
+                waitFor(sheet);
+            }
+            if (manifest != null) {
+                deleteRemovedSheets(previous, sheetNames);
+                manifest.save(outputDirectory);
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private boolean isSheetIncluded(String sheetName) {
+        return (includedSheets == null || includedSheets.contains(sheetName)) && !excludedSheets.contains(sheetName);
+    }
+
+    /**
+     * Deletes the output files of the sheets of the last incremental
+     * conversion that are no longer in the workbook.
+     */
+    private void deleteRemovedSheets(ConversionManifest previous, Set<String> sheetNames) throws IOException {
+        for (String sheetName : previous.getSheetNames()) {
+            if (!sheetNames.contains(sheetName)) {
+                File file = new File(outputDirectory, previous.getSheetFile(sheetName));
+                if (file.exists() && !file.delete()) {
+                    throw new IOException("Failed to delete the output of removed sheet " + sheetName + ": " + file);
+                }
+            }
+        }
+    }
+
+    private Callable<Void> newSheetTask(final String sheetName, final int sheetIndex, final PackagePart part,
+                                        final CellNumberFormats styles, final SharedStrings strings, final ConversionManifest manifest) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try (InputStream stream = part.getInputStream()) {
+                    processSheet(sheetName, sheetIndex, part, stream, styles, strings, manifest);
+                }
+                return null;
+            }
+        };
+    }
+
+    private static void waitFor(Future<Void> sheet) throws IOException, SAXException {
+        try {
+            sheet.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while converting sheets");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof SAXException) {
+                throw (SAXException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Failed to convert a sheet", cause);
+        }
+    }
+
+    /**
+     * Converts one sheet to the output, or to its own destination.
+     *
+     * @param manifest The manifest to record the converted sheet to, or null
+     */
+    @SuppressWarnings("Duplicates")
+    private void processSheet(String sheetName, int sheetIndex, PackagePart part, InputStream stream,
+                              CellNumberFormats styles, SharedStrings strings, ConversionManifest manifest) throws IOException, SAXException {
+        SheetSchema schema = schemas.get(sheetName);
+        if (schema == null && schemaSampleRows > 0) {
+            SchemaInferencer inferencer = new SchemaInferencer(sheetName, schemaSampleRows, null, null);
+            try (InputStream sample = part.getInputStream()) {
+                inferencer.sample(styles, strings, sample);
+            }
+            schema = inferencer.getSchema();
+        }
+        if (rowBatchConsumer != null) {
+            processSheetBatches(sheetName, stream, styles, strings, schema);
+            return;
+        }
+        long sharedStringCells;
+        boolean ownOutput = sheetOutputs != null && rowSink == null;
+        PrintWriter sheetOutput = !ownOutput ? output : new PrintWriter(openSheetOutput(sheetName, sheetIndex));
+        try {
+            ConversionMetrics.SheetStats sheetStats = metrics.startSheet(sheetName);
+            SheetToCSV sheetToCSV = new SheetToCSV(sheetStats, schema, sheetOutput, rowSink);
+            MeteredInputStream meteredStream = new MeteredInputStream(stream, metrics);
+            long start = System.nanoTime();
+            if (rowSink != null) {
+                rowSink.startSheet(sheetName, schema);
+            }
+            try {
+                if (rowLimit > 0) {
+                    // only incremental conversions record it, and they have no row limit
+                    sharedStringCells = 0;
+                    SheetScanner.scan(styles, strings, sheetToCSV,
+                            SheetScanner.throughRow(sheetToCSV.firstDataRow + rowLimit - 1), meteredStream, metrics);
+                } else {
+                    sharedStringCells = processSheet(styles, strings, sheetToCSV, meteredStream);
+                }
+            } catch (UncheckedIOException e) {
+                // from the sink, through the parser
+                throw e.getCause();
+            }
+            if (rowSink != null) {
+                rowSink.endSheet();
+            }
+            long elapsed = System.nanoTime() - start;
+            sheetToCSV.endSheet(meteredStream.getBytes(), meteredStream.getNanos());
+            metrics.addCharsWritten(sheetToCSV.charsWritten);
+            if (metrics.isTimingEnabled()) {
+                metrics.record(ConversionMetrics.Stage.SAX, elapsed - meteredStream.getNanos()
+                        - sheetToCSV.formatNanos - sheetToCSV.writeNanos);
+            }
+            metrics.endSheet(sheetStats);
+        } finally {
+            if (ownOutput) {
+                sheetOutput.close();
             }
-            ++index;
         }
-        System.out.println((System.currentTimeMillis() - inicio) / 1000 + " segundos for processing");
+        if (ownOutput && sheetOutput.checkError()) {
+            throw new IOException("Failed to write sheet " + sheetName);
+        }
+        if (manifest != null) {
+            manifest.putSheet(sheetName, ConversionManifest.entryOf(part), getSheetFileName(sheetName) + ".csv", sharedStringCells > 0);
+        }
+    }
+
+    /**
+     * Hands the data rows of one sheet to the batch consumer.
+     */
+    private void processSheetBatches(String sheetName, InputStream stream, CellNumberFormats styles, SharedStrings strings,
+                                     SheetSchema schema) throws IOException, SAXException {
+        ConversionMetrics.SheetStats sheetStats = metrics.startSheet(sheetName);
+        rowBatch.startSheet(sheetName, schema, strings);
+        SheetToBatches sheetToBatches = new SheetToBatches(sheetStats, schema, rowBatch);
+        MeteredInputStream meteredStream = new MeteredInputStream(stream, metrics);
+        long start = System.nanoTime();
+        try {
+            processSheet(styles, strings, sheetToBatches, meteredStream);
+        } catch (UncheckedIOException e) {
+            // from the consumer, through the parser
+            throw e.getCause();
+        }
+        sheetToBatches.flush();
+        rowBatchConsumer.endSheet(sheetName);
+        if (metrics.isTimingEnabled()) {
+            metrics.record(ConversionMetrics.Stage.SAX, System.nanoTime() - start - meteredStream.getNanos());
+        }
+        metrics.endSheet(sheetStats);
+    }
+
+    private Writer openSheetOutput(String sheetName, int sheetIndex) throws IOException {
+        Writer destination = sheetOutputs.open(sheetName, sheetIndex);
+        return outputBuffers > 1 ? new AsyncWriter(destination, sheetBufferChars / outputBuffers, outputBuffers, metrics)
+                : new BufferedWriter(destination, sheetBufferChars);
+    }
+
+    /**
+     * @return Whether a US NumberFormat could read a number from text
+     *         starting with the char: a digit, a sign, a separator, NaN or infinity
+     */
+    static boolean mayStartNumber(char c) {
+        return (c >= '0' && c <= '9') || c == '-' || c == '.' || c == ','
+                || c == 'N' || c == '\u221E' || (c > 0x7F && Character.isDigit(c));
+    }
+
+    /**
+     * @return Whether a date format of numeric fields could read a date
+     *         from text starting with the char, which may be leading whitespace
+     */
+    static boolean mayStartDate(char c) {
+        return mayStartNumber(c) || Character.isWhitespace(c);
+    }
+
+    /**
+     * @return The sheet name with the characters that file systems reject
+     *         (Excel already rejects {@code : \ / ? * [ ]}) replaced
+     */
+    static String toFileName(String sheetName) {
+        StringBuilder sb = new StringBuilder(sheetName.length());
+        for (int i = 0; i < sheetName.length(); i++) {
+            char c = sheetName.charAt(i);
+            sb.append(c < ' ' || "<>:\"/\\|?*".indexOf(c) >= 0 ? '_' : c);
+        }
+        if (sb.length() == 0 || sb.charAt(0) == '.') {
+            sb.insert(0, '_');
+        }
+        return sb.toString();
     }
 
+    /**
+     * Converts a workbook.
+     * Arguments: input file, output file or {@code -} for the standard
+     * output, separator, language ({@code EN}, or another for a decimal
+     * comma), memory budget in MB (see {@link MemoryBudget}) and cache
+     * directory (see {@link ConversionCache}, of at most 1024 MB); all optional.
+     * They may be preceded by {@code --timing} to time the stages of the
+     * conversion (see {@link ConversionMetrics#setTimingEnabled(boolean)}).
+     */
     public static void main(String[] args) throws Exception {
+        boolean timing = args.length > 0 && "--timing".equals(args[0]);
+        if (timing) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
 
-        File xlsxFile = new File("/home/fmreis/IdeaProjects/xlsx2csv/src/main/resources/big.xlsx");
-        File file = new File("/home/fmreis/IdeaProjects/xlsx2csv/src/main/resources/out.csv");
+        File xlsxFile = new File(args.length > 0 ? args[0] : "/home/fmreis/IdeaProjects/xlsx2csv/src/main/resources/big.xlsx");
+        String outputName = args.length > 1 ? args[1] : "/home/fmreis/IdeaProjects/xlsx2csv/src/main/resources/out.csv";
+        boolean toStdout = "-".equals(outputName);
+        // keep the standard output for the CSV
+        final PrintStream log = toStdout ? System.err : System.out;
 
-        char separator = ';';
-        String lang = "EN";
+        char separator = args.length > 2 && !args[2].isEmpty() ? args[2].charAt(0) : ';';
+        String lang = args.length > 3 ? args[3] : "EN";
+        MemoryBudget budget = args.length > 4 && !args[4].isEmpty() ? new MemoryBudget(Long.parseLong(args[4]) << 20) : null;
+        int bufferChars = budget != null ? budget.getOutputBufferChars() : 1 << 16;
+        ConversionMetrics metrics = new ConversionMetrics();
+        metrics.setTimingEnabled(timing);
+        ConversionCache cache = args.length > 5 ? new ConversionCache(new File(args[5]), 1024L << 20) : null;
+        String cacheKey = null;
+        if (cache != null) {
+            // the CSV is written in the default charset
+            cacheKey = ConversionCache.key(xlsxFile, "separator=" + separator + " lang=" + lang + " charset=" + Charset.defaultCharset());
+            try (InputStream cached = cache.get(cacheKey)) {
+                if (cached != null) {
+                    OutputStream outputStream = toStdout ? System.out : new FileOutputStream(outputName);
+                    try {
+                        copy(cached, outputStream);
+                        outputStream.flush();
+                    } finally {
+                        if (!toStdout) {
+                            outputStream.close();
+                        }
+                    }
+                    log.println("cached " + cacheKey + ", " + cache);
+                    return;
+                }
+            }
+        }
 
         // The package open is instantaneous, as it should be.
         try (OPCPackage opcPackage = OPCPackage.open(xlsxFile.getPath(), PackageAccess.READ);
-             PrintWriter printWriter = new PrintWriter(file)) {
-            XLSXAnalyser xlsxAnalyser = new XLSXAnalyser(opcPackage);
+             OutputStream file = toStdout ? null : new FileOutputStream(outputName);
+             ConversionCache.Recording recording = cache != null ? cache.record(cacheKey, toStdout ? System.out : file) : null;
+             // encoded and written by a thread of its own while the sheets are parsed
+             PrintWriter printWriter = new PrintWriter(new AsyncWriter(new OutputStreamWriter(
+                     recording != null ? recording : toStdout ? System.out : file), bufferChars / 3, 3, metrics))) {
+            XLSXAnalyser xlsxAnalyser;
+            if (budget != null) {
+                // fail before any sheet is parsed, and analyse within the same budget as the conversion
+                CellNumberFormats styles = new CellNumberFormats(opcPackage);
+                budget.check(1, styles);
+                xlsxAnalyser = new XLSXAnalyser(opcPackage, new ConversionMetrics(), budget.getSharedStringsBytes(1, styles));
+            } else {
+                xlsxAnalyser = new XLSXAnalyser(opcPackage);
+            }
             XLSX2CSVImproved xlsx2csv = new XLSX2CSVImproved(opcPackage, printWriter, xlsxAnalyser.getMinimumCols(), separator, lang);
+            xlsx2csv.setMetrics(metrics);
+            xlsx2csv.setMemoryBudget(budget);
+            xlsx2csv.getMetrics().setProgressListener(new ConversionProgressListener() {
+                @Override
+                public void onProgress(ConversionMetrics metrics, ConversionMetrics.SheetStats sheet) {
+                    log.println(sheet);
+                }
+            }, 5000);
             xlsx2csv.process();
             printWriter.flush();
+            // PrintWriter keeps the failures of the output to itself
+            if (printWriter.checkError()) {
+                throw new IOException("Failed to write " + outputName);
+            }
+            if (recording != null) {
+                recording.commit();
+            }
+            log.println(xlsx2csv.getMetrics());
+            if (cache != null) {
+                log.println(cache);
+            }
+            if (metrics.getSharedStringsSpilledBytes() > 0) {
+                // on the standard error even when the log is not, as it slows the conversion down
+                System.err.println("Warning: " + metrics.getSharedStringsSpilledBytes() + " bytes of shared strings"
+                        + " exceeded their budget and were read from disk; a larger heap or memory budget avoids it");
+            }
         }
     }
-}
 
+    private static void copy(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        int n;
+        while ((n = input.read(buffer)) >= 0) {
+            output.write(buffer, 0, n);
+        }
+    }
+}
@@ -17,28 +17,32 @@ package io.fmreis;
    limitations under the License.
 ==================================================================== */
 
-import org.apache.poi.ooxml.util.SAXHelper;
 import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
 import org.apache.poi.openxml4j.opc.OPCPackage;
 import org.apache.poi.openxml4j.opc.PackageAccess;
-import org.apache.poi.ss.usermodel.DataFormatter;
-import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.util.StaxHelper;
 import org.apache.poi.xssf.eventusermodel.XSSFReader;
 import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
 import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler.SheetContentsHandler;
 import org.apache.poi.xssf.extractor.XSSFEventBasedExcelExtractor;
-import org.apache.poi.xssf.model.SharedStrings;
-import org.apache.poi.xssf.model.Styles;
-import org.apache.poi.xssf.model.StylesTable;
-import org.apache.poi.xssf.usermodel.XSSFComment;
-import org.xml.sax.ContentHandler;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import static java.lang.Math.max;
 
 /**
@@ -61,43 +65,12 @@ import static java.lang.Math.max;
 public class XLSXAnalyser {
 
 
-    /**
-     *  Convenient exception to interrupt SAX parsing
-     */
-    public class MySAXTerminatorException extends RuntimeException {
-        private MySAXTerminatorException(String message){
-            super(message);
-        }
-    }
-
-    private class SheetAnalyzer implements SheetContentsHandler {
-
-        @Override
-        public void startRow(int rowNum) {
-            //reset the length for the most wide row
-            currentRowColumnCount = 0;
-        }
-
-        @Override
-        public void endRow(int rowNum) {
-            //set new value if new value is greater than the current most wide row
-            globalMaxColumnCount = max(globalMaxColumnCount, currentRowColumnCount);
-            throw new MySAXTerminatorException("Got the number of cells for the line " + currentRowColumnCount);
-        }
-
-        @Override
-        public void cell(String cellReference, String formattedValue,
-                         XSSFComment comment) {
-            currentRowColumnCount++;
-
-        }
-    }
-
     ///////////////////////////////////////
 
     private final OPCPackage xlsxPackage;
+    private final ConversionMetrics metrics;
+    private final Map<String, SheetSchema> schemas = new LinkedHashMap<>();
     private int globalMaxColumnCount = 0;
-    private int currentRowColumnCount = 0;
 
 
     /**
@@ -106,58 +79,322 @@ public class XLSXAnalyser {
      * @param pkg        The XLSX package to process
      */
     public XLSXAnalyser(OPCPackage pkg) throws OpenXML4JException, SAXException, IOException {
+        this(pkg, new ConversionMetrics());
+    }
+
+    /**
+     * Creates a new XLSXAnalyser
+     *
+     * @param pkg        The XLSX package to process
+     * @param metrics    The metrics the analysis reports to
+     */
+    public XLSXAnalyser(OPCPackage pkg, ConversionMetrics metrics) throws OpenXML4JException, SAXException, IOException {
+        this(pkg, metrics, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Creates a new XLSXAnalyser
+     *
+     * @param pkg                 The XLSX package to process
+     * @param metrics             The metrics the analysis reports to
+     * @param sharedStringsBudget The estimated heap the shared strings may take before they
+     *                            are moved to disk, as for {@link XLSX2CSVImproved#setSharedStringsBudget(long)}
+     */
+    public XLSXAnalyser(OPCPackage pkg, ConversionMetrics metrics, long sharedStringsBudget) throws OpenXML4JException, SAXException, IOException {
         this.xlsxPackage = pkg;
-        this.process();
+        this.metrics = metrics;
+        try (SpillableSharedStringsTable strings = new SpillableSharedStringsTable(this.xlsxPackage, sharedStringsBudget)) {
+            this.process(strings);
+        }
     }
 
-    @SuppressWarnings("Duplicates")
-    private void processSheet(
-            Styles styles,
-            SharedStrings strings,
-            SheetContentsHandler sheetHandler,
-            InputStream sheetInputStream) throws IOException, SAXException {
-
-                DataFormatter formatter = new DataFormatter();
-                InputSource sheetSource = new InputSource(sheetInputStream);
-                try {
-                    XMLReader sheetParser = SAXHelper.newXMLReader();
-                    ContentHandler handler = new XSSFSheetXMLHandler(
-                            styles, null, strings, sheetHandler, formatter, false);
-                    sheetParser.setContentHandler(handler);
-                    sheetParser.parse(sheetSource);
-                } catch(ParserConfigurationException e) {
-                    throw new RuntimeException("SAX parser appears to be broken - " + e.getMessage());
-                }
+    /**
+     * Creates a new XLSXAnalyser that reads the strings from a table loaded
+     * already, so that a converter of the same package can reuse it too
+     * (see {@link XLSX2CSVImproved#setSharedStrings(SpillableSharedStringsTable)}).
+     *
+     * @param pkg        The XLSX package to process
+     * @param metrics    The metrics the analysis reports to
+     * @param strings    The shared strings table of the package, left open
+     */
+    public XLSXAnalyser(OPCPackage pkg, ConversionMetrics metrics, SpillableSharedStringsTable strings) throws OpenXML4JException, SAXException, IOException {
+        this.xlsxPackage = pkg;
+        this.metrics = metrics;
+        this.process(strings);
     }
 
     @SuppressWarnings("Duplicates")
-    private void process() throws IOException, OpenXML4JException, SAXException {
-        long inicio = System.currentTimeMillis();
-
-        ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(this.xlsxPackage);
+    private void process(SpillableSharedStringsTable strings) throws IOException, OpenXML4JException, SAXException {
+        metrics.recordSharedStrings(strings);
         XSSFReader xssfReader = new XSSFReader(this.xlsxPackage);
-        StylesTable styles = xssfReader.getStylesTable();
+        CellNumberFormats styles = new CellNumberFormats(this.xlsxPackage);
         XSSFReader.SheetIterator iter = (XSSFReader.SheetIterator) xssfReader.getSheetsData();
         int index = 0;
 
         while (iter.hasNext()) {
             try (InputStream stream = iter.next()) {
                 String sheetName = iter.getSheetName();
-                try {
-                    processSheet(styles, strings, new SheetAnalyzer(), stream);
-                } catch (MySAXTerminatorException ex){
-                    System.out.println(ex.getMessage());
-                }
+                ConversionMetrics.SheetStats sheetStats = metrics.startSheet(sheetName);
+                SchemaInferencer inferencer = new SchemaInferencer(sheetName, SchemaInferencer.DEFAULT_SAMPLE_ROWS, metrics, sheetStats);
+                inferencer.sample(styles, strings, new MeteredInputStream(stream, metrics));
+                globalMaxColumnCount = max(globalMaxColumnCount, inferencer.getFirstRowCells());
+                schemas.put(sheetName, inferencer.getSchema());
+                metrics.endSheet(sheetStats);
             }
             ++index;
         }
-        System.out.println((System.currentTimeMillis() - inicio) / 1000 + " segundos for analysis, max length: " + globalMaxColumnCount);
     }
 
+    /**
+     * @return The largest number of cells in the first row of a sheet
+     */
     public int getMinimumCols() {
         return globalMaxColumnCount;
     }
 
+    /**
+     * @return The schemas of the sheets, inferred from their first
+     *         {@value SchemaInferencer#DEFAULT_SAMPLE_ROWS} rows, by sheet name
+     */
+    public Map<String, SheetSchema> getSchemas() {
+        return Collections.unmodifiableMap(schemas);
+    }
+
+    /**
+     * @return The schema of the named sheet, or null if there is no such sheet
+     */
+    public SheetSchema getSchema(String sheetName) {
+        return schemas.get(sheetName);
+    }
+
+    public ConversionMetrics getMetrics() {
+        return metrics;
+    }
+
+    ///////////////////////////////////////
+
+    private static final String RELATIONSHIPS_NS_SUFFIX = "/relationships";
+
+    /**
+     * Estimates the size and conversion cost of a workbook without
+     * parsing its sheet data.  Only the zip central directory, the
+     * relationship parts, workbook.xml, the root element of the shared
+     * strings part and the head of each sheet part (up to its
+     * {@code <dimension>}) are read, so this takes milliseconds even for
+     * multi-GB workbooks.
+     *
+     * @param file The XLSX file to profile
+     * @return The profile of the workbook
+     * @throws IOException If the file is not a readable XLSX package
+     */
+    public static WorkbookProfile profile(File file) throws IOException {
+        try (ZipFile zip = new ZipFile(file)) {
+            WorkbookProfile profile = new WorkbookProfile(file.length());
+
+            String workbookPart = null;
+            for (String[] rel : readRelationships(zip, "_rels/.rels")) {
+                if (rel[1].endsWith("/officeDocument")) {
+                    workbookPart = resolvePartName("", rel[2]);
+                }
+            }
+            if (workbookPart == null || zip.getEntry(workbookPart) == null) {
+                throw new IOException("No workbook part found in " + file);
+            }
+            String workbookDir = workbookPart.substring(0, workbookPart.lastIndexOf('/') + 1);
+            Map<String, String> targets = new HashMap<>();
+            String relsPart = workbookDir + "_rels/" + workbookPart.substring(workbookDir.length()) + ".rels";
+            for (String[] rel : readRelationships(zip, relsPart)) {
+                String target = resolvePartName(workbookDir, rel[2]);
+                targets.put(rel[0], target);
+                if (rel[1].endsWith("/sharedStrings")) {
+                    profileSharedStrings(zip, target, profile);
+                }
+            }
+
+            for (String[] sheet : readSheets(zip, workbookPart)) {
+                String partName = targets.get(sheet[1]);
+                ZipEntry entry = partName == null ? null : zip.getEntry(partName);
+                if (entry != null) {
+                    profile.addSheet(profileSheet(zip, entry, sheet[0]));
+                }
+            }
+            return profile;
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to profile " + file + " - " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return The (Id, Type, Target) of each relationship of the part, none if it does not exist
+     */
+    private static List<String[]> readRelationships(ZipFile zip, String partName) throws IOException, XMLStreamException {
+        List<String[]> relationships = new ArrayList<>();
+        ZipEntry entry = zip.getEntry(partName);
+        if (entry == null) {
+            return relationships;
+        }
+        try (InputStream stream = zip.getInputStream(entry)) {
+            XMLStreamReader reader = StaxHelper.newXMLInputFactory().createXMLStreamReader(stream);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && "Relationship".equals(reader.getLocalName())
+                            && !"External".equals(reader.getAttributeValue(null, "TargetMode"))) {
+                        relationships.add(new String[]{
+                                reader.getAttributeValue(null, "Id"),
+                                reader.getAttributeValue(null, "Type"),
+                                reader.getAttributeValue(null, "Target")});
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return relationships;
+    }
+
+    /**
+     * @return The (name, relationship id) of each sheet of the workbook, in workbook order
+     */
+    private static List<String[]> readSheets(ZipFile zip, String workbookPart) throws IOException, XMLStreamException {
+        List<String[]> sheets = new ArrayList<>();
+        try (InputStream stream = zip.getInputStream(zip.getEntry(workbookPart))) {
+            XMLStreamReader reader = StaxHelper.newXMLInputFactory().createXMLStreamReader(stream);
+            try {
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT && "sheet".equals(reader.getLocalName())) {
+                        String id = null;
+                        for (int i = 0; i < reader.getAttributeCount(); i++) {
+                            String ns = reader.getAttributeNamespace(i);
+                            if ("id".equals(reader.getAttributeLocalName(i)) && ns != null && ns.endsWith(RELATIONSHIPS_NS_SUFFIX)) {
+                                id = reader.getAttributeValue(i);
+                            }
+                        }
+                        sheets.add(new String[]{reader.getAttributeValue(null, "name"), id});
+                    } else if (event == XMLStreamConstants.END_ELEMENT && "sheets".equals(reader.getLocalName())) {
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return sheets;
+    }
+
+    private static void profileSharedStrings(ZipFile zip, String partName, WorkbookProfile profile) throws IOException, XMLStreamException {
+        ZipEntry entry = zip.getEntry(partName);
+        if (entry == null) {
+            return;
+        }
+        try (InputStream stream = zip.getInputStream(entry)) {
+            XMLStreamReader reader = StaxHelper.newXMLInputFactory().createXMLStreamReader(stream);
+            try {
+                reader.nextTag();
+                profile.setSharedStrings(parseLong(reader.getAttributeValue(null, "count")),
+                        parseLong(reader.getAttributeValue(null, "uniqueCount")), entry.getSize());
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the sheet part up to its dimension.  A missing dimension, or
+     * one that cannot describe a part of this size (some writers always
+     * write {@code A1}), is replaced by an estimate from the part size and
+     * the width of the first row.
+     */
+    private static WorkbookProfile.SheetProfile profileSheet(ZipFile zip, ZipEntry entry, String sheetName) throws IOException, XMLStreamException {
+        String dimension = null;
+        int firstRowCells = 0;
+        try (InputStream stream = zip.getInputStream(entry)) {
+            XMLStreamReader reader = StaxHelper.newXMLInputFactory().createXMLStreamReader(stream);
+            try {
+                boolean inRow = false;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String name = reader.getLocalName();
+                        if ("dimension".equals(name)) {
+                            dimension = reader.getAttributeValue(null, "ref");
+                            if (plausibleCells(dimension, entry.getSize())) {
+                                break;
+                            }
+                        } else if ("row".equals(name)) {
+                            inRow = true;
+                        } else if ("c".equals(name) && inRow) {
+                            firstRowCells++;
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT
+                            && ("sheetData".equals(reader.getLocalName()) || (inRow && "row".equals(reader.getLocalName()) && firstRowCells > 0))) {
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        if (dimension != null && plausibleCells(dimension, entry.getSize())) {
+            CellRangeAddress range = CellRangeAddress.valueOf(dimension);
+            return new WorkbookProfile.SheetProfile(sheetName, entry.getName(), entry.getCompressedSize(), entry.getSize(),
+                    dimension, range.getLastRow() - range.getFirstRow() + 1L, range.getLastColumn() - range.getFirstColumn() + 1L, true);
+        }
+        long columns = Math.max(1, firstRowCells);
+        long cells = Math.max(0, entry.getSize()) / WorkbookProfile.AVERAGE_BYTES_PER_CELL;
+        return new WorkbookProfile.SheetProfile(sheetName, entry.getName(), entry.getCompressedSize(), entry.getSize(),
+                dimension, (cells + columns - 1) / columns, columns, false);
+    }
+
+    /**
+     * Whether a sheet part of the given size could hold the cells of the dimension,
+     * allowing for 1KB of markup per cell, and whether they would fill it: a
+     * dimension far larger than the cells stored, of a sparse sheet or from a
+     * careless writer, overestimates the conversion as much as a stale one
+     * underestimates it.
+     */
+    private static boolean plausibleCells(String dimension, long size) {
+        if (dimension == null) {
+            return false;
+        }
+        try {
+            long cells = CellRangeAddress.valueOf(dimension).getNumberOfCells();
+            return cells * 1024L + 4096 >= size
+                    && (size < 0 || cells * WorkbookProfile.MIN_BYTES_PER_CELL <= size + 4096);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return value == null ? 0 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String resolvePartName(String baseDir, String target) {
+        String path = target.startsWith("/") ? target.substring(1) : baseDir + target;
+        Deque<String> segments = new ArrayDeque<>();
+        for (String segment : path.split("/")) {
+            if ("..".equals(segment)) {
+                segments.pollLast();
+            } else if (!segment.isEmpty() && !".".equals(segment)) {
+                segments.addLast(segment);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String segment : segments) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(segment);
+        }
+        return sb.toString();
+    }
+
     private static int getMinimumCols(String arg) throws IOException, OpenXML4JException, SAXException {
         File xlsxFile = new File(arg);
 
@@ -171,6 +408,7 @@ public class XLSXAnalyser {
 
     @SuppressWarnings("Duplicates")
     public static void main(String[] args) throws Exception {
+        System.out.println(profile(new File("/home/fmreis/IdeaProjects/xlsx2csv/src/main/resources/big.xlsx")));
         System.out.println(getMinimumCols("/home/fmreis/IdeaProjects/xlsx2csv/src/main/resources/big.xlsx"));
     }
 }
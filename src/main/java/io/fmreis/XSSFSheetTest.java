@@ -16,16 +16,21 @@ import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Map;
 
 public class XSSFSheetTest extends DefaultHandler {
     private static final POILogger logger = POILogFactory.getLogger(XSSFSheetTest.class);
     private Styles stylesTable;
+    private CellNumberFormats numberFormats;
     private Comments comments;
     private SharedStrings sharedStringsTable;
-    private final XSSFSheetTest.SheetContentsHandler output;
+    private XSSFSheetTest.SheetContentsHandler output;
+    private XSSFSheetTest.RawCellHandler rawOutput;
+    private int rawColumn;
+    private boolean stringFormula;
     private boolean vIsOpen;
     private boolean fIsOpen;
     private boolean isIsOpen;
@@ -38,10 +43,18 @@ public class XSSFSheetTest extends DefaultHandler {
     private int nextRowNum;
     private String cellRef;
     private boolean formulasNotResults;
+    private boolean formulasWanted;
     private StringBuilder value;
     private StringBuilder formula;
     private StringBuilder headerFooter;
-    private Queue<CellAddress> commentCellRefs;
+    private boolean cellHasFormula;
+    private String sharedFormulaMaster;
+    private final Map<String, SharedFormula> sharedFormulas = new HashMap<>();
+    private long[] commentCells;
+    private int commentCursor;
+    private String[] sharedStringCache;
+    private long sharedStringCells;
+    private StringDeduplicator deduplicator = new StringDeduplicator(4096);
 
     public XSSFSheetTest(Styles styles, Comments comments, SharedStrings strings, XSSFSheetTest.SheetContentsHandler sheetContentsHandler, DataFormatter dataFormatter, boolean formulasNotResults) {
         this.value = new StringBuilder(64);
@@ -51,7 +64,9 @@ public class XSSFSheetTest extends DefaultHandler {
         this.comments = comments;
         this.sharedStringsTable = strings;
         this.output = sheetContentsHandler;
+        this.rawOutput = sheetContentsHandler instanceof RawCellHandler ? (RawCellHandler) sheetContentsHandler : null;
         this.formulasNotResults = formulasNotResults;
+        this.formulasWanted = sheetContentsHandler != null && sheetContentsHandler.wantsFormulas();
         this.nextDataType = XSSFSheetTest.xssfDataType.NUMBER;
         this.formatter = dataFormatter;
         this.init(comments);
@@ -65,18 +80,141 @@ public class XSSFSheetTest extends DefaultHandler {
         this(styles, strings, sheetContentsHandler, new DataFormatter(), formulasNotResults);
     }
 
+    /**
+     * Prepares the handler for parsing another sheet, clearing all the
+     * state left by the previous one, so that a single instance (and its
+     * buffers) can serve any number of sheets of a thread.
+     */
+    public void reset(Styles styles, Comments comments, SharedStrings strings, XSSFSheetTest.SheetContentsHandler sheetContentsHandler, boolean formulasNotResults) {
+        reset(styles, null, comments, strings, sheetContentsHandler, formulasNotResults);
+    }
+
+    /**
+     * Like {@link #reset(Styles, Comments, SharedStrings, SheetContentsHandler, boolean)},
+     * with the number formats read by {@link CellNumberFormats} in place of a styles table.
+     */
+    void reset(Styles styles, CellNumberFormats numberFormats, Comments comments, SharedStrings strings,
+               XSSFSheetTest.SheetContentsHandler sheetContentsHandler, boolean formulasNotResults) {
+        if (strings != this.sharedStringsTable) {
+            this.sharedStringCache = null;
+        }
+        this.stylesTable = styles;
+        this.numberFormats = numberFormats;
+        this.comments = comments;
+        this.sharedStringsTable = strings;
+        this.output = sheetContentsHandler;
+        this.rawOutput = sheetContentsHandler instanceof RawCellHandler ? (RawCellHandler) sheetContentsHandler : null;
+        this.rawColumn = -1;
+        this.stringFormula = false;
+        this.formulasNotResults = formulasNotResults;
+        this.formulasWanted = sheetContentsHandler != null && sheetContentsHandler.wantsFormulas();
+        this.vIsOpen = false;
+        this.fIsOpen = false;
+        this.isIsOpen = false;
+        this.hfIsOpen = false;
+        this.nextDataType = XSSFSheetTest.xssfDataType.NUMBER;
+        this.formatIndex = 0;
+        this.formatString = null;
+        this.rowNum = 0;
+        this.nextRowNum = 0;
+        this.cellRef = null;
+        this.sharedStringCells = 0;
+        this.value.setLength(0);
+        this.formula.setLength(0);
+        this.headerFooter.setLength(0);
+        this.cellHasFormula = false;
+        this.sharedFormulaMaster = null;
+        this.sharedFormulas.clear();
+        this.commentCells = null;
+        this.commentCursor = 0;
+        this.init(comments);
+    }
+
+    /**
+     * Sets the table inline string values are interned in, or null to
+     * create a new string for every value.  The table may be shared by
+     * the handlers of consecutive sheets of the same thread.
+     */
+    public void setDeduplicator(StringDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+    }
+
+    public StringDeduplicator getDeduplicator() {
+        return this.deduplicator;
+    }
+
+    /**
+     * Indexes the commented cells as a sorted array of packed (row, col)
+     * keys, which the parse then walks with a cursor: cells are met in
+     * the same order, so each one costs a single comparison.
+     */
     private void init(Comments commentsTable) {
         if (commentsTable != null) {
-            this.commentCellRefs = new LinkedList();
-            Iterator iter = commentsTable.getCellAddresses();
+            long[] cells = new long[Math.max(16, commentsTable.getNumberOfComments())];
+            int count = 0;
+            Iterator<CellAddress> iter = commentsTable.getCellAddresses();
 
             while(iter.hasNext()) {
-                this.commentCellRefs.add((CellAddress) iter.next());
+                CellAddress address = iter.next();
+                if (count == cells.length) {
+                    cells = Arrays.copyOf(cells, count * 2);
+                }
+                cells[count++] = pack(address.getRow(), address.getColumn());
             }
+            Arrays.sort(cells, 0, count);
+            this.commentCells = Arrays.copyOf(cells, count);
+            this.commentCursor = 0;
         }
 
     }
 
+    private static long pack(int row, int col) {
+        return (long) row << 32 | col;
+    }
+
+    /**
+     * Parses a cell reference such as {@code AB12} into a packed key
+     * without allocating.
+     *
+     * @return The key, or -1 if the reference is missing or malformed
+     */
+    static long packCellRef(String ref) {
+        if (ref == null) {
+            return -1;
+        }
+        int length = ref.length();
+        int i = 0;
+        int col = 0;
+        while (i < length) {
+            char c = ref.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                col = col * 26 + (c - 'A' + 1);
+            } else if (c >= 'a' && c <= 'z') {
+                col = col * 26 + (c - 'a' + 1);
+            } else if (c != '$') {
+                break;
+            }
+            i++;
+        }
+        int row = 0;
+        int digits = 0;
+        for (; i < length; i++) {
+            char c = ref.charAt(i);
+            if (c == '$' && digits == 0) {
+                continue;
+            }
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            row = row * 10 + (c - '0');
+            digits++;
+        }
+        if (col == 0 || digits == 0) {
+            return -1;
+        }
+        return pack(row - 1, col - 1);
+    }
+
     private boolean isTextTag(String name) {
         if ("v".equals(name)) {
             return true;
@@ -99,6 +237,7 @@ public class XSSFSheetTest extends DefaultHandler {
                 String cellStyleStr;
                 if ("f".equals(localName)) {
                     this.formula.setLength(0);
+                    this.cellHasFormula = true;
                     if (this.nextDataType == XSSFSheetTest.xssfDataType.NUMBER) {
                         this.nextDataType = XSSFSheetTest.xssfDataType.FORMULA;
                     }
@@ -108,9 +247,11 @@ public class XSSFSheetTest extends DefaultHandler {
                         cellStyleStr = attributes.getValue("ref");
                         String si = attributes.getValue("si");
                         if (cellStyleStr != null) {
+                            // master cell: its formula is tokenized when the element ends
+                            this.sharedFormulaMaster = si;
                             this.fIsOpen = true;
-                        } else if (this.formulasNotResults) {
-                            logger.log(5, new Object[]{"shared formulas not yet supported!"});
+                        } else {
+                            this.expandSharedFormula(si);
                         }
                     } else {
                         this.fIsOpen = true;
@@ -124,14 +265,17 @@ public class XSSFSheetTest extends DefaultHandler {
                             this.rowNum = this.nextRowNum;
                         }
 
+                        this.rawColumn = -1;
                         this.output.startRow(this.rowNum);
                     } else if ("c".equals(localName)) {
                         this.nextDataType = XSSFSheetTest.xssfDataType.NUMBER;
+                        this.cellHasFormula = false;
                         this.formatIndex = -1;
                         this.formatString = null;
                         this.cellRef = attributes.getValue("r");
                         cellType = attributes.getValue("t");
                         cellStyleStr = attributes.getValue("s");
+                        this.stringFormula = "str".equals(cellType);
                         if ("b".equals(cellType)) {
                             this.nextDataType = XSSFSheetTest.xssfDataType.BOOLEAN;
                         } else if ("e".equals(cellType)) {
@@ -142,6 +286,13 @@ public class XSSFSheetTest extends DefaultHandler {
                             this.nextDataType = XSSFSheetTest.xssfDataType.SST_STRING;
                         } else if ("str".equals(cellType)) {
                             this.nextDataType = XSSFSheetTest.xssfDataType.FORMULA;
+                        } else if (this.numberFormats != null) {
+                            CellNumberFormats formats = this.numberFormats;
+                            int styleIndex = cellStyleStr != null ? Integer.parseInt(cellStyleStr) : 0;
+                            if (styleIndex >= 0 && styleIndex < formats.getNumCellStyles()) {
+                                this.formatIndex = formats.getFormatIndex(styleIndex);
+                                this.formatString = formats.getFormatString(styleIndex);
+                            }
                         } else {
                             XSSFCellStyle style = null;
                             if (this.stylesTable != null) {
@@ -176,6 +327,12 @@ public class XSSFSheetTest extends DefaultHandler {
             String thisStr = null;
             if (this.isTextTag(localName)) {
                 this.vIsOpen = false;
+                if (this.rawOutput != null) {
+                    // the comments of the empty cells before this one still go through cell()
+                    this.checkForEmptyCellComments(XSSFSheetTest.EmptyCellCommentsCheckType.CELL);
+                    this.rawCell();
+                    return;
+                }
                 switch(this.nextDataType) {
                     case BOOLEAN:
                         char first = this.value.charAt(0);
@@ -202,18 +359,14 @@ public class XSSFSheetTest extends DefaultHandler {
                         }
                         break;
                     case INLINE_STRING:
-                        XSSFRichTextString rtsi = new XSSFRichTextString(this.value.toString());
-                        thisStr = rtsi.toString();
+                        thisStr = decode(this.deduplicator != null ? this.deduplicator.dedupe(this.value) : this.value.toString());
                         break;
                     case SST_STRING:
-                        String sstIndex = this.value.toString();
-
-                        try {
-                            int idx = Integer.parseInt(sstIndex);
-                            RichTextString rtss = this.sharedStringsTable.getItemAt(idx);
-                            thisStr = rtss.toString();
-                        } catch (NumberFormatException var10) {
-                            logger.log(7, new Object[]{"Failed to parse SST index '" + sstIndex, var10});
+                        int idx = parseIndex(this.value);
+                        if (idx >= 0) {
+                            thisStr = this.sharedString(idx);
+                        } else {
+                            logger.log(7, new Object[]{"Failed to parse SST index '" + this.value + "'"});
                         }
                         break;
                     case NUMBER:
@@ -229,11 +382,23 @@ public class XSSFSheetTest extends DefaultHandler {
                         thisStr = "(TODO: Unexpected type: " + this.nextDataType + ")";
                 }
 
-                this.checkForEmptyCellComments(XSSFSheetTest.EmptyCellCommentsCheckType.CELL);
-                XSSFComment comment = this.comments != null ? this.comments.findCellComment(new CellAddress(this.cellRef)) : null;
-                this.output.cell(this.cellRef, thisStr, comment);
+                XSSFComment comment = this.checkForEmptyCellComments(XSSFSheetTest.EmptyCellCommentsCheckType.CELL);
+                String cellFormula = null;
+                if (this.cellHasFormula && (this.formulasNotResults || this.formulasWanted)) {
+                    cellFormula = this.nextDataType == XSSFSheetTest.xssfDataType.FORMULA && this.formulasNotResults
+                            ? thisStr : this.formula.toString();
+                }
+                this.output.cell(this.cellRef, thisStr, cellFormula, comment);
             } else if ("f".equals(localName)) {
                 this.fIsOpen = false;
+                if (this.sharedFormulaMaster != null) {
+                    long cell = packCellRef(this.cellRef);
+                    if (cell >= 0) {
+                        this.sharedFormulas.put(this.sharedFormulaMaster,
+                                SharedFormula.parse(this.formula.toString(), (int) (cell >>> 32), (int) cell));
+                    }
+                    this.sharedFormulaMaster = null;
+                }
             } else if ("is".equals(localName)) {
                 this.isIsOpen = false;
             } else if ("row".equals(localName)) {
@@ -270,57 +435,164 @@ public class XSSFSheetTest extends DefaultHandler {
         }
     }
 
-    private void checkForEmptyCellComments(XSSFSheetTest.EmptyCellCommentsCheckType type) {
-        if (this.commentCellRefs != null && !this.commentCellRefs.isEmpty()) {
-            if (type == XSSFSheetTest.EmptyCellCommentsCheckType.END_OF_SHEET_DATA) {
-                while(!this.commentCellRefs.isEmpty()) {
-                    this.outputEmptyCellComment((CellAddress)this.commentCellRefs.remove());
-                }
-
-                return;
-            }
-
-            if (this.cellRef == null) {
-                if (type == XSSFSheetTest.EmptyCellCommentsCheckType.END_OF_ROW) {
-                    while(!this.commentCellRefs.isEmpty()) {
-                        if (((CellAddress)this.commentCellRefs.peek()).getRow() != this.rowNum) {
-                            return;
-                        }
+    /**
+     * Sets the formula of a cell belonging to a shared formula group by
+     * shifting the references of the group's master formula.
+     */
+    private void expandSharedFormula(String si) {
+        SharedFormula master = si == null ? null : this.sharedFormulas.get(si);
+        long cell = packCellRef(this.cellRef);
+        if (master == null || cell < 0) {
+            logger.log(5, new Object[]{"No master formula found for shared formula " + si + " in " + this.cellRef});
+            return;
+        }
+        this.formula.append(master.render((int) (cell >>> 32), (int) cell));
+    }
 
-                        this.outputEmptyCellComment((CellAddress)this.commentCellRefs.remove());
-                    }
+    /**
+     * @return The number of cells of the sheet parsed since the last
+     *         {@link #reset} that refer to a shared string
+     */
+    public long getSharedStringCells() {
+        return this.sharedStringCells;
+    }
 
-                    return;
+    /**
+     * Hands the raw value of the current cell to the {@link RawCellHandler}.
+     */
+    private void rawCell() {
+        long cell = this.cellRef != null ? packCellRef(this.cellRef) : -1;
+        int column = cell >= 0 ? (int) cell : this.rawColumn + 1;
+        this.rawColumn = column;
+        switch(this.nextDataType) {
+            case BOOLEAN:
+                this.rawOutput.booleanCell(column, this.value.charAt(0) != '0');
+                break;
+            case ERROR:
+                this.rawOutput.errorCell(column, this.value);
+                break;
+            case FORMULA:
+                if (this.formulasNotResults) {
+                    this.rawOutput.textCell(column, this.formula);
+                } else if (this.stringFormula) {
+                    this.rawOutput.textCell(column, this.value);
+                } else if (this.value.length() > 0) {
+                    this.rawOutput.numberCell(column, this.value);
+                }
+                break;
+            case INLINE_STRING:
+                this.rawOutput.textCell(column, this.value.indexOf("_x") < 0 ? this.value : decode(this.value.toString()));
+                break;
+            case SST_STRING:
+                int idx = parseIndex(this.value);
+                if (idx >= 0) {
+                    this.sharedStringCells++;
+                    this.rawOutput.sharedStringCell(column, idx);
+                } else {
+                    logger.log(7, new Object[]{"Failed to parse SST index '" + this.value + "'"});
                 }
+                break;
+            case NUMBER:
+                if (this.value.length() > 0) {
+                    this.rawOutput.numberCell(column, this.value);
+                }
+                break;
+        }
+    }
 
-                throw new IllegalStateException("Cell ref should be null only if there are only empty cells in the row; rowNum: " + this.rowNum);
+    /**
+     * Returns the canonical instance of a shared string, so that every
+     * cell referring to the same index gets the same String.  Strings of
+     * a table moved to disk, or unescaped from one, are read afresh and
+     * are only shared as far as the deduplicator's slots allow.
+     */
+    private String sharedString(int idx) {
+        this.sharedStringCells++;
+        if (this.sharedStringsTable instanceof SpillableSharedStringsTable) {
+            SpillableSharedStringsTable table = (SpillableSharedStringsTable) this.sharedStringsTable;
+            String entry = table.getEntryAt(idx);
+            String str = decode(entry);
+            if ((str != entry || table.isOnDisk()) && this.deduplicator != null) {
+                str = this.deduplicator.dedupe(str);
             }
+            return str;
+        }
+        if (this.sharedStringCache == null) {
+            this.sharedStringCache = new String[Math.max(16, this.sharedStringsTable.getUniqueCount())];
+        }
+        if (idx >= this.sharedStringCache.length) {
+            this.sharedStringCache = Arrays.copyOf(this.sharedStringCache, Math.max(idx + 1, this.sharedStringCache.length * 3 / 2));
+        }
+        String str = this.sharedStringCache[idx];
+        if (str == null) {
+            RichTextString rtss = this.sharedStringsTable.getItemAt(idx);
+            str = rtss.toString();
+            this.sharedStringCache[idx] = str;
+        }
+        return str;
+    }
 
-            CellAddress nextCommentCellRef;
-            do {
-                CellAddress cellRef = new CellAddress(this.cellRef);
-                CellAddress peekCellRef = (CellAddress)this.commentCellRefs.peek();
-                if (type == XSSFSheetTest.EmptyCellCommentsCheckType.CELL && cellRef.equals(peekCellRef)) {
-                    this.commentCellRefs.remove();
-                    return;
-                }
+    /**
+     * Decodes the {@code _xHHHH_} escapes of a string value the same way
+     * {@link XSSFRichTextString} does, without building one when there are none.
+     */
+    static String decode(String value) {
+        return value.indexOf("_x") < 0 ? value : new XSSFRichTextString(value).getString();
+    }
 
-                int comparison = peekCellRef.compareTo(cellRef);
-                if (comparison > 0 && type == XSSFSheetTest.EmptyCellCommentsCheckType.END_OF_ROW && peekCellRef.getRow() <= this.rowNum) {
-                    nextCommentCellRef = (CellAddress)this.commentCellRefs.remove();
-                    this.outputEmptyCellComment(nextCommentCellRef);
-                } else if (comparison < 0 && type == XSSFSheetTest.EmptyCellCommentsCheckType.CELL && peekCellRef.getRow() <= this.rowNum) {
-                    nextCommentCellRef = (CellAddress)this.commentCellRefs.remove();
-                    this.outputEmptyCellComment(nextCommentCellRef);
-                } else {
-                    nextCommentCellRef = null;
-                }
-            } while(nextCommentCellRef != null && !this.commentCellRefs.isEmpty());
+    /**
+     * @return The non-negative integer held by the characters, or -1 if they are not one
+     */
+    static int parseIndex(CharSequence chars) {
+        int length = chars.length();
+        if (length == 0 || length > 9) {
+            return -1;
+        }
+        int idx = 0;
+        for (int i = 0; i < length; i++) {
+            char c = chars.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            idx = idx * 10 + (c - '0');
         }
+        return idx;
+    }
 
+    /**
+     * Outputs the comments of the empty cells before the current position
+     * and, for {@link EmptyCellCommentsCheckType#CELL}, returns the comment
+     * of the current cell if it has one.
+     */
+    private XSSFComment checkForEmptyCellComments(XSSFSheetTest.EmptyCellCommentsCheckType type) {
+        if (this.commentCells == null) {
+            return null;
+        }
+        long[] cells = this.commentCells;
+        long limit;
+        if (type == XSSFSheetTest.EmptyCellCommentsCheckType.END_OF_SHEET_DATA) {
+            limit = Long.MAX_VALUE;
+        } else if (type == XSSFSheetTest.EmptyCellCommentsCheckType.END_OF_ROW) {
+            limit = pack(this.rowNum + 1, 0);
+        } else {
+            limit = packCellRef(this.cellRef);
+            if (limit < 0) {
+                return null;
+            }
+        }
+        while (this.commentCursor < cells.length && cells[this.commentCursor] < limit) {
+            this.outputEmptyCellComment(cells[this.commentCursor++]);
+        }
+        if (type == XSSFSheetTest.EmptyCellCommentsCheckType.CELL
+                && this.commentCursor < cells.length && cells[this.commentCursor] == limit) {
+            this.commentCursor++;
+            return this.comments.findCellComment(new CellAddress((int) (limit >>> 32), (int) limit));
+        }
+        return null;
     }
 
-    private void outputEmptyCellComment(CellAddress cellRef) {
+    private void outputEmptyCellComment(long cell) {
+        CellAddress cellRef = new CellAddress((int) (cell >>> 32), (int) cell);
         XSSFComment comment = this.comments.findCellComment(cellRef);
         this.output.cell(cellRef.formatAsString(), (String)null, comment);
     }
@@ -332,6 +604,26 @@ public class XSSFSheetTest extends DefaultHandler {
 
         void cell(String var1, String var2, XSSFComment var3);
 
+        /**
+         * Called instead of {@link #cell(String, String, XSSFComment)}, with
+         * the formula of the cell (shared formulas expanded) or null if it
+         * has none, for handlers wanting both the formula and its result.
+         * The formula is only passed when formulas are output in place of
+         * their results, or when {@link #wantsFormulas()}.
+         */
+        default void cell(String cellReference, String formattedValue, String formula, XSSFComment comment) {
+            cell(cellReference, formattedValue, comment);
+        }
+
+        /**
+         * @return Whether {@link #cell(String, String, String, XSSFComment)}
+         *         should get the formula along with the result: building it
+         *         costs a String per formula cell
+         */
+        default boolean wantsFormulas() {
+            return false;
+        }
+
         default void headerFooter(String text, boolean isHeader, String tagName) {
         }
 
@@ -339,6 +631,38 @@ public class XSSFSheetTest extends DefaultHandler {
         }
     }
 
+    /**
+     * A handler receiving the raw values of the cells, unformatted and by
+     * 0-based column index, instead of {@link SheetContentsHandler#cell}:
+     * no String is built for numbers, booleans nor shared strings.  The
+     * chars passed are only valid during the call.
+     */
+    public interface RawCellHandler extends SheetContentsHandler {
+
+        /**
+         * Receives a number, or the numeric result of a formula, as written in the sheet.
+         */
+        void numberCell(int column, CharSequence value);
+
+        void booleanCell(int column, boolean value);
+
+        /**
+         * @param index The index of the string in the shared strings table
+         */
+        void sharedStringCell(int column, int index);
+
+        /**
+         * Receives an inline string, the string result of a formula, or the
+         * formula itself when formulas are output rather than their results.
+         */
+        void textCell(int column, CharSequence value);
+
+        /**
+         * Receives an error value, such as {@code #DIV/0!}.
+         */
+        void errorCell(int column, CharSequence value);
+    }
+
     private static enum EmptyCellCommentsCheckType {
         CELL,
         END_OF_ROW,
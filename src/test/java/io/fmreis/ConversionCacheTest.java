@@ -0,0 +1,74 @@
+package io.fmreis;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the keys of the cache, and what it keeps of a directory shared
+ * with other processes.
+ */
+public class ConversionCacheTest {
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void keysTheWorkbookAndTheOptions() throws Exception {
+        File workbook = TestWorkbooks.bundled("poi_test.xlsx");
+        String key = ConversionCache.key(workbook, "sparse=true");
+        assertEquals(key, ConversionCache.key(workbook, "sparse=true"));
+        assertNotEquals(key, ConversionCache.key(workbook, "sparse=false"));
+        assertNotEquals(key, ConversionCache.key(TestWorkbooks.bundled("poi_test2.xlsx"), "sparse=true"));
+    }
+
+    @Test
+    public void storesCommittedResultsOnly() throws Exception {
+        File workbook = TestWorkbooks.bundled("poi_test.xlsx");
+        String committed = ConversionCache.key(workbook, "");
+        String abandoned = ConversionCache.key(workbook, "sparse=true");
+        ConversionCache cache = new ConversionCache(temp.getRoot(), 1 << 20);
+        ConversionCache.Recording recording = cache.record(committed, new ByteArrayOutputStream());
+        recording.write("1;2\n".getBytes(StandardCharsets.UTF_8));
+        recording.commit();
+        recording.close();
+        recording = cache.record(abandoned, new ByteArrayOutputStream());
+        recording.write("3;4\n".getBytes(StandardCharsets.UTF_8));
+        recording.close();
+        assertNull(cache.get(abandoned));
+        try (InputStream cached = cache.get(committed)) {
+            ByteArrayOutputStream read = new ByteArrayOutputStream();
+            int b;
+            while ((b = cached.read()) >= 0) {
+                read.write(b);
+            }
+            assertEquals("1;2\n", new String(read.toByteArray(), StandardCharsets.UTF_8));
+        }
+        // opened again, as after a restart
+        assertEquals(1, new ConversionCache(temp.getRoot(), 1 << 20).getEntries());
+    }
+
+    @Test
+    public void deletesOnlyTheStaleTemporaryFilesOfOtherProcesses() throws Exception {
+        File running = new File(temp.getRoot(), "0123456789abcdef1.tmp");
+        File stale = new File(temp.getRoot(), "0123456789abcdef2.tmp");
+        assertTrue(running.createNewFile() && stale.createNewFile());
+        assertTrue(stale.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2)));
+        ConversionCache cache = new ConversionCache(temp.getRoot(), 1 << 20);
+        assertTrue(running.exists());
+        assertFalse(stale.exists());
+        assertEquals(0, cache.getEntries());
+    }
+}
@@ -0,0 +1,248 @@
+package io.fmreis;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the conversion server on a free loopback port with a single
+ * worker, and checks the answers of its admission, its rejections and
+ * its cache.
+ */
+public class ConversionServerTest {
+
+    private static final String WORKBOOK = "poi_test2.xlsx";
+
+    private static final long BUDGET = 64L << 20;
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    private ConversionServer server;
+    private final ExecutorService clients = Executors.newCachedThreadPool();
+
+    @Before
+    public void start() throws IOException {
+        server = new ConversionServer(0, 1, BUDGET);
+        server.start();
+    }
+
+    @After
+    public void stop() {
+        clients.shutdownNow();
+        server.close();
+    }
+
+    @Test
+    public void convertsAPostedWorkbook() throws Exception {
+        Response response = post("/convert", WORKBOOK);
+        assertEquals(200, response.status);
+        assertEquals(TestWorkbooks.convert(TestWorkbooks.bundled(WORKBOOK)), response.body);
+        assertEquals(1, server.getJobsCompleted());
+    }
+
+    @Test
+    public void answersTheSecondConversionFromTheCache() throws Exception {
+        ConversionCache cache = new ConversionCache(temp.newFolder("cache"), 1 << 20);
+        server.setCache(cache);
+        Response first = post("/convert?sparse=true", WORKBOOK);
+        Response second = post("/convert?sparse=true", WORKBOOK);
+        assertEquals(200, first.status);
+        assertEquals(200, second.status);
+        assertEquals(first.body, second.body);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getEntries());
+        assertEquals(2, server.getJobsCompleted());
+        // other options are another result
+        assertEquals(200, post("/convert", WORKBOOK).status);
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getEntries());
+    }
+
+    @Test
+    public void rejectsInvalidParameters() throws Exception {
+        assertEquals(400, post("/convert?headerRows=two", WORKBOOK).status);
+        assertEquals(400, post("/convert?headerRows=-1", WORKBOOK).status);
+        assertEquals(400, post("/preview?rows=ten", WORKBOOK).status);
+        assertEquals(400, post("/preview?rows=" + (ConversionServer.MAX_PREVIEW_ROWS + 1), WORKBOOK).status);
+        assertEquals(400, post("/convert", "not a workbook".getBytes(StandardCharsets.UTF_8)).status);
+        assertEquals(405, request("GET", "/convert", null).status);
+        assertEquals(403, request("GET", "/convert?path=x.xlsx", null).status);
+        assertEquals(5, server.getJobsRejected());
+        assertEquals(0, server.getJobsFailed());
+    }
+
+    @Test
+    public void rejectsTooLargeWorkbooks() throws Exception {
+        byte[] workbook = Files.readAllBytes(TestWorkbooks.bundled(WORKBOOK).toPath());
+        server.setMaxRequestBytes(workbook.length - 1);
+        assertEquals(413, post("/convert", workbook).status);
+        server.setMaxRequestBytes(workbook.length);
+        assertEquals(200, post("/convert", workbook).status);
+    }
+
+    @Test
+    public void rejectsAJobThatWaitedLongerThanTheQueueTimeout() throws Exception {
+        int permits = holdAdmission();
+        try {
+            server.setQueueTimeoutMillis(100);
+            assertEquals(503, post("/convert", WORKBOOK).status);
+            assertEquals(503, post("/preview", WORKBOOK).status);
+            assertEquals(2, server.getJobsRejected());
+        } finally {
+            server.admission.release(permits);
+        }
+        assertEquals(200, post("/convert", WORKBOOK).status);
+    }
+
+    @Test
+    public void answersMetricsAndCacheHitsWhileJobsWaitForAdmission() throws Exception {
+        ConversionCache cache = new ConversionCache(temp.newFolder("cache"), 1 << 20);
+        server.setCache(cache);
+        final Response cached = post("/convert", WORKBOOK);
+        int permits = holdAdmission();
+        Future<Response> waiting;
+        try {
+            // more waiting jobs than workers
+            waiting = clients.submit(new Callable<Response>() {
+                @Override
+                public Response call() throws Exception {
+                    return post("/convert?sparse=true", WORKBOOK);
+                }
+            });
+            Future<Response> alsoWaiting = clients.submit(new Callable<Response>() {
+                @Override
+                public Response call() throws Exception {
+                    return post("/preview", WORKBOOK);
+                }
+            });
+            awaitPending(2);
+            Response metrics = request("GET", "/metrics", null);
+            assertEquals(200, metrics.status);
+            assertTrue(metrics.body, metrics.body.contains("pending 2"));
+            Response hit = post("/convert", WORKBOOK);
+            assertEquals(200, hit.status);
+            assertEquals(cached.body, hit.body);
+            assertFalse(waiting.isDone() || alsoWaiting.isDone());
+            server.admission.release(permits);
+            permits = 0;
+            assertEquals(200, alsoWaiting.get(10, TimeUnit.SECONDS).status);
+        } finally {
+            server.admission.release(permits);
+        }
+        assertEquals(200, waiting.get(10, TimeUnit.SECONDS).status);
+        assertEquals(4, server.getJobsCompleted());
+    }
+
+    @Test
+    public void rejectsRequestsBeyondThePendingJobs() throws Exception {
+        server.setMaxPendingJobs(1);
+        int permits = holdAdmission();
+        Future<Response> waiting;
+        try {
+            waiting = clients.submit(new Callable<Response>() {
+                @Override
+                public Response call() throws Exception {
+                    return post("/convert", WORKBOOK);
+                }
+            });
+            awaitPending(1);
+            assertEquals(503, post("/convert", WORKBOOK).status);
+            assertEquals(200, request("GET", "/metrics", null).status);
+        } finally {
+            server.admission.release(permits);
+        }
+        assertEquals(200, waiting.get(10, TimeUnit.SECONDS).status);
+        assertEquals(200, post("/convert", WORKBOOK).status);
+    }
+
+    /**
+     * Takes the whole admission budget, once the jobs answered before have released theirs.
+     *
+     * @return The permits to release
+     */
+    private int holdAdmission() throws InterruptedException {
+        int permits = (int) (BUDGET / 1024);
+        server.admission.acquire(permits);
+        return permits;
+    }
+
+    private void awaitPending(int jobs) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (server.admission.getQueueLength() < jobs) {
+            assertTrue("jobs did not wait for admission", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private Response post(String path, String workbook) throws Exception {
+        return post(path, Files.readAllBytes(TestWorkbooks.bundled(workbook).toPath()));
+    }
+
+    private Response post(String path, byte[] body) throws IOException {
+        return request("POST", path, body);
+    }
+
+    private Response request(String method, String path, byte[] body) throws IOException {
+        URL url = new URL("http", server.getAddress().getHostString(), server.getAddress().getPort(), path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod(method);
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(body.length);
+                try (OutputStream output = connection.getOutputStream()) {
+                    output.write(body);
+                }
+            }
+            int status = connection.getResponseCode();
+            InputStream input = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            ByteArrayOutputStream read = new ByteArrayOutputStream();
+            if (input != null) {
+                try {
+                    byte[] buffer = new byte[1 << 16];
+                    int n;
+                    while ((n = input.read(buffer)) >= 0) {
+                        read.write(buffer, 0, n);
+                    }
+                } finally {
+                    input.close();
+                }
+            }
+            return new Response(status, new String(read.toByteArray(), StandardCharsets.UTF_8));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static final class Response {
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+}
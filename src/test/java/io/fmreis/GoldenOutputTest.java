@@ -0,0 +1,146 @@
+package io.fmreis;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the CSV of the bundled workbooks and of the generated formulas
+ * workbook, in each output mode, to the golden files in
+ * {@code src/test/resources/golden}.
+ * <p>
+ * After a deliberate change of the output, rewrite the golden files with
+ * {@code mvn test -Dtest=GoldenOutputTest -Dgolden.update=true}, review
+ * their diff, and increase {@link ConversionCache#FORMAT_VERSION}.
+ */
+@RunWith(Parameterized.class)
+public class GoldenOutputTest {
+
+    /**
+     * The output modes compared, each configuring the converter
+     */
+    private enum Mode implements TestWorkbooks.Configurer {
+        DEFAULT {
+            @Override
+            public void configure(XLSX2CSVImproved xlsx2csv) {
+            }
+        },
+        SPARSE {
+            @Override
+            public void configure(XLSX2CSVImproved xlsx2csv) {
+                xlsx2csv.setSparseOutput(true);
+            }
+        },
+        SCHEMA {
+            @Override
+            public void configure(XLSX2CSVImproved xlsx2csv) {
+                xlsx2csv.setSchemaInference(true);
+            }
+        },
+        FORMULAS {
+            @Override
+            public void configure(XLSX2CSVImproved xlsx2csv) {
+                xlsx2csv.setFormulasNotResults(true);
+                xlsx2csv.setSheetNameColumn(true);
+            }
+        }
+    }
+
+    @Parameterized.Parameters(name = "{0} {1}")
+    public static Collection<Object[]> parameters() {
+        List<Object[]> parameters = new ArrayList<>();
+        List<String> workbooks = new ArrayList<>(Arrays.asList(TestWorkbooks.BUNDLED));
+        workbooks.add(FORMULAS);
+        for (String workbook : workbooks) {
+            for (Mode mode : Mode.values()) {
+                parameters.add(new Object[]{workbook, mode});
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * The name of the generated workbook of formulas, shared formulas and comments
+     */
+    private static final String FORMULAS = "formulas.xlsx";
+
+    @ClassRule
+    public static final TemporaryFolder TEMP = new TemporaryFolder();
+
+    private static File formulas;
+
+    @BeforeClass
+    public static void generate() throws Exception {
+        formulas = TestWorkbooks.generateFormulas(TEMP.getRoot());
+    }
+
+    private File file() throws Exception {
+        return FORMULAS.equals(workbook) ? formulas : TestWorkbooks.bundled(workbook);
+    }
+
+    private final String workbook;
+    private final Mode mode;
+
+    public GoldenOutputTest(String workbook, Mode mode) {
+        this.workbook = workbook;
+        this.mode = mode;
+    }
+
+    @Test
+    public void matchesGolden() throws Exception {
+        String csv = TestWorkbooks.convert(file(), mode);
+        assertGolden(workbook.replace(".xlsx", "") + "." + mode.name().toLowerCase() + ".csv", csv);
+    }
+
+    @Test
+    public void sameWithSharedStringsInBackground() throws Exception {
+        String csv = TestWorkbooks.convert(file(), new TestWorkbooks.Configurer() {
+            @Override
+            public void configure(XLSX2CSVImproved xlsx2csv) throws Exception {
+                mode.configure(xlsx2csv);
+                xlsx2csv.setSharedStringsInBackground(true);
+            }
+        });
+        assertEquals(TestWorkbooks.convert(file(), mode), csv);
+    }
+
+    @Test
+    public void sameWithSharedStringsOnDisk() throws Exception {
+        String csv = TestWorkbooks.convert(file(), new TestWorkbooks.Configurer() {
+            @Override
+            public void configure(XLSX2CSVImproved xlsx2csv) throws Exception {
+                mode.configure(xlsx2csv);
+                xlsx2csv.setSharedStringsBudget(0);
+            }
+        });
+        assertEquals(TestWorkbooks.convert(file(), mode), csv);
+    }
+
+    /**
+     * Compares to a golden file, or writes it with {@code -Dgolden.update=true}.
+     */
+    static void assertGolden(String name, String actual) throws IOException {
+        File golden = new File(System.getProperty("basedir", "."), "src/test/resources/golden/" + name);
+        if (Boolean.getBoolean("golden.update")) {
+            Files.write(golden.toPath(), actual.getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        assertTrue("No golden file " + golden + ", write it with -Dgolden.update=true", golden.isFile());
+        assertEquals(name, new String(Files.readAllBytes(golden.toPath()), StandardCharsets.UTF_8), actual);
+    }
+}
@@ -0,0 +1,148 @@
+package io.fmreis;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTWorkbook;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Converts versions of a generated workbook of three sheets to the same
+ * output directory incrementally, and checks which sheets each
+ * conversion finds unchanged: {@code numbers} and {@code extra} hold
+ * numbers only, {@code text} refers to the shared strings.
+ */
+public class IncrementalConversionTest {
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    private File output;
+    private int versions;
+
+    @Before
+    public void createOutput() throws Exception {
+        output = temp.newFolder("output");
+    }
+
+    @Test
+    public void skipsTheUnchangedSheets() throws Exception {
+        assertEquals(Collections.emptyList(), convert(new Version()));
+        assertEquals("1;2\n2;4\n3;6\n", read("numbers"));
+        assertEquals(Arrays.asList("numbers", "text", "extra"), convert(new Version()));
+    }
+
+    @Test
+    public void convertsAChangedSheetAgain() throws Exception {
+        convert(new Version());
+        Version changed = new Version();
+        changed.factor = 3;
+        assertEquals(Arrays.asList("text", "extra"), convert(changed));
+        assertEquals("1;3\n2;6\n3;9\n", read("numbers"));
+    }
+
+    @Test
+    public void convertsTheSheetsOfChangedSharedStringsAgain() throws Exception {
+        convert(new Version());
+        Version changed = new Version();
+        // the same indexes in the sheet, other strings in the table
+        changed.word = "pear";
+        assertEquals(Arrays.asList("numbers", "extra"), convert(changed));
+        assertEquals("pear 1\npear 2\npear 3\n", read("text"));
+    }
+
+    @Test
+    public void convertsAllSheetsOfAChangedWorkbookPartAgain() throws Exception {
+        convert(new Version());
+        Version changed = new Version();
+        changed.date1904 = true;
+        assertEquals(Collections.emptyList(), convert(changed));
+    }
+
+    @Test
+    public void deletesTheOutputOfARemovedSheet() throws Exception {
+        convert(new Version());
+        assertTrue(new File(output, "extra.csv").isFile());
+        Version changed = new Version();
+        changed.extra = false;
+        // the workbook part lists the sheets, so the others are converted again too
+        assertEquals(Collections.emptyList(), convert(changed));
+        assertFalse(new File(output, "extra.csv").exists());
+        assertEquals(Arrays.asList("numbers", "text"), convert(changed));
+    }
+
+    /**
+     * The content of a version of the workbook
+     */
+    private static final class Version {
+        int factor = 2;
+        String word = "apple";
+        boolean date1904;
+        boolean extra = true;
+    }
+
+    /**
+     * @return The sheets found unchanged
+     */
+    private List<String> convert(Version version) throws Exception {
+        File workbook = write(version);
+        try (OPCPackage pkg = OPCPackage.open(workbook, PackageAccess.READ)) {
+            XLSX2CSVImproved xlsx2csv = new XLSX2CSVImproved(pkg, new PrintWriter(new StringWriter()), -1, ';', "EN");
+            xlsx2csv.setHeaderRows(0);
+            xlsx2csv.setOutputDirectory(output);
+            xlsx2csv.setIncremental(true);
+            xlsx2csv.process();
+            return xlsx2csv.getUnchangedSheets();
+        }
+    }
+
+    private File write(Version version) throws Exception {
+        File file = temp.newFile("version-" + ++versions + ".xlsx");
+        try (XSSFWorkbook workbook = new XSSFWorkbook()) {
+            if (version.date1904) {
+                CTWorkbook ctWorkbook = workbook.getCTWorkbook();
+                (ctWorkbook.isSetWorkbookPr() ? ctWorkbook.getWorkbookPr() : ctWorkbook.addNewWorkbookPr()).setDate1904(true);
+            }
+            Sheet numbers = workbook.createSheet("numbers");
+            Sheet text = workbook.createSheet("text");
+            Sheet extra = version.extra ? workbook.createSheet("extra") : null;
+            for (int i = 0; i < 3; i++) {
+                Row row = numbers.createRow(i);
+                row.createCell(0).setCellValue(i + 1);
+                row.createCell(1).setCellValue((i + 1) * version.factor);
+                text.createRow(i).createCell(0).setCellValue(version.word + " " + (i + 1));
+                if (extra != null) {
+                    extra.createRow(i).createCell(0).setCellValue(-i);
+                }
+            }
+            try (OutputStream out = new FileOutputStream(file)) {
+                workbook.write(out);
+            }
+        }
+        return file;
+    }
+
+    private String read(String sheetName) throws Exception {
+        return new String(Files.readAllBytes(new File(output, sheetName + ".csv").toPath()), StandardCharsets.UTF_8);
+    }
+}
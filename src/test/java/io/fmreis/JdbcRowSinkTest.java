@@ -0,0 +1,192 @@
+package io.fmreis;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Loads generated sheets into an in-memory H2 database through
+ * {@link JdbcRowSink}, by insert.  The PostgreSQL {@code COPY} path needs
+ * a PostgreSQL server, so only the CSV it streams is checked.
+ */
+public class JdbcRowSinkTest {
+
+    private static final int ROWS = 2500;
+
+    @ClassRule
+    public static final TemporaryFolder TEMP = new TemporaryFolder();
+
+    private static File workbook;
+
+    private Connection connection;
+
+    @BeforeClass
+    public static void generate() throws Exception {
+        workbook = TestWorkbooks.generate(TEMP.getRoot(), ROWS);
+    }
+
+    @Before
+    public void connect() throws Exception {
+        connection = DriverManager.getConnection("jdbc:h2:mem:");
+    }
+
+    @After
+    public void disconnect() throws Exception {
+        connection.close();
+    }
+
+    private void load(JdbcRowSink sink) throws Exception {
+        load(sink, workbook);
+    }
+
+    private void load(JdbcRowSink sink, File workbook) throws Exception {
+        try (OPCPackage pkg = OPCPackage.open(workbook, PackageAccess.READ)) {
+            XLSX2CSVImproved xlsx2csv = new XLSX2CSVImproved(pkg, new PrintWriter(new StringWriter()),
+                    TestWorkbooks.COLUMNS, ';', "EN");
+            xlsx2csv.setSchemaInference(true);
+            xlsx2csv.setRowSink(sink);
+            sink.setBatchSize(1000);
+            xlsx2csv.process();
+        } finally {
+            sink.close();
+        }
+    }
+
+    @Test
+    public void createsAndLoadsTheTableOfTheSheet() throws Exception {
+        JdbcRowSink sink = new JdbcRowSink(connection);
+        load(sink);
+        assertEquals(ROWS, sink.getRowsLoaded());
+        assertEquals(Arrays.asList("ID", "AMOUNT", "LABEL", "FLAG", "TOTAL"), columnNames("PUBLIC"));
+        try (Statement statement = connection.createStatement();
+             ResultSet sums = statement.executeQuery("SELECT COUNT(*), SUM(ID), SUM(AMOUNT), SUM(TOTAL) FROM DATA")) {
+            assertTrue(sums.next());
+            long sumOfIds = ROWS * (ROWS + 1L) / 2;
+            assertEquals(ROWS, sums.getLong(1));
+            assertEquals(sumOfIds, sums.getLong(2));
+            assertEquals(sumOfIds * 0.25 - 1000.0 * ROWS, sums.getDouble(3), 1e-6);
+            assertEquals(TestWorkbooks.total(1) * sumOfIds, sums.getLong(4));
+        }
+        try (Statement statement = connection.createStatement();
+             ResultSet row = statement.executeQuery("SELECT LABEL, FLAG FROM DATA WHERE ID = 1003")) {
+            assertTrue(row.next());
+            assertEquals(TestWorkbooks.label(1003), row.getString(1));
+            assertEquals("FALSE", row.getString(2));
+        }
+    }
+
+    @Test
+    public void ignoresTablesOfTheSameNameInOtherSchemas() throws Exception {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE SCHEMA OTHER");
+            statement.execute("CREATE TABLE OTHER.DATA (X VARCHAR(10), Y VARCHAR(10))");
+        }
+        JdbcRowSink sink = new JdbcRowSink(connection);
+        load(sink);
+        assertEquals(ROWS, sink.getRowsLoaded());
+        assertEquals(TestWorkbooks.COLUMNS, columnNames("PUBLIC").size());
+        assertEquals(2, columnNames("OTHER").size());
+    }
+
+    @Test
+    public void createsTextColumnsOfTheTextType() throws Exception {
+        JdbcRowSink sink = new JdbcRowSink(connection);
+        sink.setTextType("VARCHAR(100)");
+        load(sink);
+        try (ResultSet column = connection.getMetaData().getColumns(null, "PUBLIC", "DATA", "LABEL")) {
+            assertTrue(column.next());
+            assertEquals(100, column.getInt("COLUMN_SIZE"));
+        }
+    }
+
+    @Test
+    public void quotesReservedWords() throws Exception {
+        File reserved = TEMP.newFile("reserved.xlsx");
+        try (XSSFWorkbook workbook = new XSSFWorkbook()) {
+            Sheet sheet = workbook.createSheet("Order");
+            Row header = sheet.createRow(0);
+            String[] headers = {"Order", "Group", "Value", "Year", "Key", "User"};
+            for (int column = 0; column < headers.length; column++) {
+                header.createCell(column).setCellValue(headers[column]);
+            }
+            for (int i = 1; i <= 20; i++) {
+                Row row = sheet.createRow(i);
+                row.createCell(0).setCellValue(i);
+                row.createCell(1).setCellValue("group " + i % 3);
+                row.createCell(2).setCellValue(i * 0.5);
+                row.createCell(3).setCellValue(2000 + i);
+                row.createCell(4).setCellValue("key " + i);
+                row.createCell(5).setCellValue("user " + i);
+            }
+            try (OutputStream out = new FileOutputStream(reserved)) {
+                workbook.write(out);
+            }
+        }
+        JdbcRowSink sink = new JdbcRowSink(connection);
+        load(sink, reserved);
+        assertEquals(20, sink.getRowsLoaded());
+        assertEquals(Arrays.asList("ORDER", "GROUP", "VALUE", "YEAR", "KEY", "USER"), columnNames("PUBLIC", "ORDER"));
+        try (Statement statement = connection.createStatement();
+             ResultSet sums = statement.executeQuery("SELECT COUNT(*), SUM(\"VALUE\"), MAX(\"USER\") FROM \"ORDER\" WHERE \"YEAR\" > 2010")) {
+            assertTrue(sums.next());
+            assertEquals(10, sums.getLong(1));
+            assertEquals(77.5, sums.getDouble(2), 0);
+            assertEquals("user 20", sums.getString(3));
+        }
+    }
+
+    @Test
+    public void encodesTheRowsOfCopyAsCsv() {
+        JdbcRowSink.Table table = new JdbcRowSink.Table("data", "\"DATA\"", 0,
+                new int[]{Types.BIGINT, Types.DOUBLE, Types.VARCHAR, Types.VARCHAR});
+        Object[][] rows = {
+                {1.0, 0.1, "plain", "a, b"},
+                {-2.0, 1e21, "", "say \"hi\"\nthere"},
+                {null, null, null, null},
+                {3.0, 2.5, "not loaded", null}
+        };
+        // empty text is quoted so that it is not null, and the last row is not in the batch
+        assertEquals("1,0.1,plain,\"a, b\"\n"
+                + "-2,1E21,\"\",\"say \"\"hi\"\"\nthere\"\n"
+                + ",,,\n", table.toCopyCsv(rows, 3));
+    }
+
+    private List<String> columnNames(String schema) throws Exception {
+        return columnNames(schema, "DATA");
+    }
+
+    private List<String> columnNames(String schema, String table) throws Exception {
+        List<String> names = new ArrayList<>();
+        try (ResultSet columns = connection.getMetaData().getColumns(null, schema, table, null)) {
+            while (columns.next()) {
+                names.add(columns.getString("COLUMN_NAME"));
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,136 @@
+package io.fmreis;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Splits budgets into their parts, for the number formats of a bundled
+ * workbook.
+ */
+public class MemoryBudgetTest {
+
+    private static final long MB = 1L << 20;
+
+    private static OPCPackage pkg;
+    private static CellNumberFormats styles;
+
+    @BeforeClass
+    public static void loadStyles() throws Exception {
+        pkg = OPCPackage.open(TestWorkbooks.bundled("poi_test2.xlsx"), PackageAccess.READ);
+        styles = new CellNumberFormats(pkg);
+    }
+
+    @AfterClass
+    public static void close() throws Exception {
+        pkg.close();
+    }
+
+    /**
+     * @return The heap the budget leaves to the sheets, as getSheetThreads counts it
+     */
+    private static long sheetsBytes(MemoryBudget budget) {
+        return budget.getTotalBytes() - WorkbookProfile.BASE_HEAP_BYTES - styles.getHeapBytes()
+                - MemoryBudget.MIN_SHARED_STRINGS_BYTES;
+    }
+
+    @Test
+    public void sizesTheOutputBufferFromTheBudget() {
+        assertEquals(8 << 10, new MemoryBudget(MB).getOutputBufferChars());
+        assertEquals(256 << 10, new MemoryBudget(128 * MB).getOutputBufferChars());
+        assertEquals(1 << 20, new MemoryBudget(4096 * MB).getOutputBufferChars());
+        MemoryBudget budget = new MemoryBudget(128 * MB);
+        assertEquals(MemoryBudget.SHEET_BYTES + 3L * budget.getOutputBufferChars(), budget.getSheetBytes());
+    }
+
+    @Test
+    public void convertsAsManySheetsAtOnceAsTheBudgetHolds() {
+        MemoryBudget budget = new MemoryBudget(128 * MB);
+        long fit = sheetsBytes(budget) / budget.getSheetBytes();
+        assertTrue(fit > 1 && fit < 1000);
+        assertEquals(1, budget.getSheetThreads(1, styles));
+        assertEquals(fit, budget.getSheetThreads(1000, styles));
+        assertEquals(fit, budget.getSheetThreads((int) fit, styles));
+        // never fewer than one, which check then rejects
+        assertEquals(1, new MemoryBudget(WorkbookProfile.BASE_HEAP_BYTES).getSheetThreads(4, styles));
+    }
+
+    @Test
+    public void leavesTheRestToTheSharedStrings() {
+        MemoryBudget budget = new MemoryBudget(128 * MB);
+        long fixed = WorkbookProfile.BASE_HEAP_BYTES + styles.getHeapBytes() + 3 * budget.getSheetBytes();
+        assertEquals(128 * MB - fixed, budget.getSharedStringsBytes(3, styles));
+        assertEquals(128 * MB - fixed - 5 * MB, budget.getSharedStringsBytes(3, styles, 5 * MB));
+    }
+
+    @Test
+    public void checksThatTheFixedPartsLeaveTheLeastToTheSharedStrings() throws Exception {
+        MemoryBudget budget = new MemoryBudget(128 * MB);
+        // the rows that fill the budget exactly
+        long rowBytes = 128 * MB - WorkbookProfile.BASE_HEAP_BYTES - styles.getHeapBytes() - 2 * budget.getSheetBytes()
+                - MemoryBudget.MIN_SHARED_STRINGS_BYTES;
+        budget.check(2, styles, rowBytes);
+        assertEquals(MemoryBudget.MIN_SHARED_STRINGS_BYTES, budget.getSharedStringsBytes(2, styles, rowBytes));
+        try {
+            budget.check(2, styles, rowBytes + 1);
+            fail("A budget a byte short passed");
+        } catch (MemoryBudget.ExceededException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("for the rows held"));
+        }
+        budget.check(2, styles);
+    }
+
+    @Test(expected = MemoryBudget.ExceededException.class)
+    public void rejectsABudgetAboveTheHeap() throws Exception {
+        long maxHeap = Runtime.getRuntime().maxMemory();
+        assumeTrue("No maximum heap", maxHeap != Long.MAX_VALUE);
+        new MemoryBudget(maxHeap + 1).check(1, styles);
+    }
+
+    @Test
+    public void countsTheRowsOfABatchConsumer() throws Exception {
+        final RowBatch batch = new RowBatch(100000);
+        long rowBytes = batch.getHeapBytes(TestWorkbooks.COLUMNS);
+        assertTrue(rowBytes > 10 * MB);
+        MemoryBudget probe = new MemoryBudget(128 * MB);
+        // enough for the conversion to CSV, not for the batch
+        long total = WorkbookProfile.BASE_HEAP_BYTES + styles.getHeapBytes() + probe.getSheetBytes()
+                + MemoryBudget.MIN_SHARED_STRINGS_BYTES + rowBytes / 2;
+        XLSX2CSVImproved xlsx2csv = new XLSX2CSVImproved(pkg, new PrintWriter(new StringWriter()), TestWorkbooks.COLUMNS, ';', "EN");
+        xlsx2csv.setMemoryBudget(new MemoryBudget(total));
+        xlsx2csv.process();
+        xlsx2csv.setRowBatchConsumer(new RowBatchConsumer() {
+            @Override
+            public void accept(RowBatch batch) {
+            }
+        }, batch.getCapacity());
+        try {
+            xlsx2csv.process();
+            fail("The rows of the batch were not counted");
+        } catch (MemoryBudget.ExceededException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("for the rows held"));
+        }
+    }
+
+    @Test
+    public void countsTheQueueOfTheJdbcSink() {
+        JdbcRowSink sink = new JdbcRowSink(null);
+        sink.setBatchSize(1000);
+        sink.setQueueBatches(4);
+        long perRow = sink.getHeapBytes(10) / 6000;
+        assertTrue(perRow + " bytes per row of 10 values", perRow > 10 * 16 && perRow < 10 * 100);
+        long heap = sink.getHeapBytes(10);
+        sink.setBatchSize(2000);
+        assertEquals(2 * heap, sink.getHeapBytes(10));
+    }
+}
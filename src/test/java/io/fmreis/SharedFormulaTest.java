@@ -0,0 +1,141 @@
+package io.fmreis;
+
+import org.apache.poi.ooxml.util.SAXHelper;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Renders shared formulas for the cells of their group, directly and as
+ * expanded by {@link XSSFSheetTest} from the generated formulas workbook.
+ */
+public class SharedFormulaTest {
+
+    @ClassRule
+    public static final TemporaryFolder TEMP = new TemporaryFolder();
+
+    private static File workbook;
+
+    @BeforeClass
+    public static void generate() throws Exception {
+        workbook = TestWorkbooks.generateFormulas(TEMP.getRoot());
+    }
+
+    /**
+     * @return The formula of the master cell, at C3, rendered for the cell at the row and column
+     */
+    private static String render(String formula, int row, int col) {
+        return SharedFormula.parse(formula, 2, 2).render(row, col);
+    }
+
+    @Test
+    public void shiftsRelativeReferences() {
+        assertEquals("A3*2+B4", render("A3*2+B4", 2, 2));
+        assertEquals("C6*2+D7", render("A3*2+B4", 5, 4));
+    }
+
+    @Test
+    public void keepsAbsoluteReferences() {
+        assertEquals("$A$3+$B$4", render("$A$3+$B$4", 10, 10));
+    }
+
+    @Test
+    public void shiftsOnlyTheRelativePartOfMixedReferences() {
+        assertEquals("$A13+K$4", render("$A3+B$4", 12, 11));
+    }
+
+    @Test
+    public void shiftsRanges() {
+        assertEquals("SUM(A$3:A10)", render("SUM(A$3:A3)", 9, 2));
+        assertEquals("SUM(B:D)+SUM(5:7)", render("SUM(A:C)+SUM(3:5)", 4, 3));
+        assertEquals("SUM($A:D)+SUM($3:7)", render("SUM($A:C)+SUM($3:5)", 4, 3));
+    }
+
+    @Test
+    public void shiftsReferencesToOtherSheets() {
+        assertEquals("other!B5+'my sheet'!C6+'it''s'!$A$1", render("other!A3+'my sheet'!B4+'it''s'!$A$1", 4, 3));
+    }
+
+    @Test
+    public void keepsLiteralsFunctionsAndNames() {
+        assertEquals("LOG10(B5)&\"A1\"&rate_2020&[1]Sheet1!B3", render("LOG10(A3)&\"A1\"&rate_2020&[1]Sheet1!A1", 4, 3));
+    }
+
+    @Test
+    public void rendersReferencesShiftedOffTheSheetAsRefErrors() {
+        assertEquals("#REF!+$A1", render("A3+$A1", 2, 1));
+        assertEquals("#REF!+A$1", render("A1+A$1", 1, 2));
+        assertEquals("#REF!", render("A1048576", 3, 2));
+        assertEquals("#REF!", render("XFD1", 2, 3));
+        assertEquals("SUM(#REF!:A)", render("SUM(A:B)", 2, 1));
+    }
+
+    @Test
+    public void expandsTheSharedFormulasOfTheGeneratedWorkbook() throws Exception {
+        final Map<String, String> formulas = new HashMap<>();
+        try (OPCPackage pkg = OPCPackage.open(workbook, PackageAccess.READ)) {
+            XSSFReader reader = new XSSFReader(pkg);
+            XSSFSheetTest handler = new XSSFSheetTest(reader.getStylesTable(), new ReadOnlySharedStringsTable(pkg),
+                    new XSSFSheetTest.SheetContentsHandler() {
+                        @Override
+                        public void startRow(int rowNum) {
+                        }
+
+                        @Override
+                        public void endRow(int rowNum) {
+                        }
+
+                        @Override
+                        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+                        }
+
+                        @Override
+                        public void cell(String cellReference, String formattedValue, String formula, XSSFComment comment) {
+                            if (formula != null) {
+                                formulas.put(cellReference, formula);
+                            }
+                        }
+
+                        @Override
+                        public boolean wantsFormulas() {
+                            return true;
+                        }
+                    }, new DataFormatter(), false);
+            XMLReader parser = SAXHelper.newXMLReader();
+            parser.setContentHandler(handler);
+            try (InputStream sheet = reader.getSheetsData().next()) {
+                parser.parse(new InputSource(sheet));
+            }
+        }
+        for (int r = 2; r <= TestWorkbooks.FORMULA_ROWS + 1; r++) {
+            assertEquals("A" + r + "*2", formulas.get("B" + r));
+            assertEquals("$A$2+A" + r, formulas.get("C" + r));
+            assertEquals("$A" + r + "+A$2", formulas.get("D" + r));
+            assertEquals("SUM(A$2:A" + r + ")", formulas.get("E" + r));
+            assertEquals("other!A" + (r - 1) + "+'other'!$A$1", formulas.get("F" + r));
+        }
+        assertEquals("\"A1\"&A4", formulas.get("G4"));
+        assertEquals("LOG10(A4*10)", formulas.get("H4"));
+        assertEquals("1/0", formulas.get("I4"));
+        assertEquals("A4>0", formulas.get("J4"));
+        assertEquals("A4+B4", formulas.get("M4"));
+        assertEquals("#REF!+A5", formulas.get("L5"));
+        assertEquals(TestWorkbooks.FORMULA_ROWS * 5 + 6, formulas.size());
+    }
+}
@@ -0,0 +1,119 @@
+package io.fmreis;
+
+import org.apache.poi.ooxml.util.SAXHelper;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import java.io.File;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Parses the sheet of the generated formulas workbook, with its comments,
+ * and compares the events of {@link XSSFSheetTest} to a golden file:
+ * which cells come with a comment, and where the comments of empty
+ * cells are reported.
+ */
+public class SheetEventsTest {
+
+    @ClassRule
+    public static final TemporaryFolder TEMP = new TemporaryFolder();
+
+    private static File workbook;
+
+    @BeforeClass
+    public static void generate() throws Exception {
+        workbook = TestWorkbooks.generateFormulas(TEMP.getRoot());
+    }
+
+    /**
+     * Writes an event per line, leaving out the rows of the middle of the
+     * formula groups, which are all alike.
+     */
+    private static final class Recorder implements XSSFSheetTest.SheetContentsHandler {
+        final StringBuilder events = new StringBuilder();
+        private boolean recording;
+
+        @Override
+        public void startRow(int rowNum) {
+            recording = rowNum < 6 || rowNum >= TestWorkbooks.FORMULA_ROWS - 2;
+            if (recording) {
+                events.append("row ").append(rowNum + 1).append('\n');
+            }
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            if (recording) {
+                events.append("end of row ").append(rowNum + 1).append('\n');
+            }
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            cell(cellReference, formattedValue, null, comment);
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, String formula, XSSFComment comment) {
+            if (!recording && comment == null) {
+                return;
+            }
+            events.append(cellReference).append(' ').append(formattedValue);
+            if (formula != null) {
+                events.append(" =").append(formula);
+            }
+            if (comment != null) {
+                events.append(" # ").append(comment.getAuthor()).append(": ").append(comment.getString().getString());
+            }
+            events.append('\n');
+        }
+
+        @Override
+        public void endSheet() {
+            events.append("end of sheet\n");
+        }
+
+        @Override
+        public boolean wantsFormulas() {
+            return true;
+        }
+    }
+
+    private static void parse(ContentHandler handler, InputStream sheet) throws Exception {
+        XMLReader parser = SAXHelper.newXMLReader();
+        parser.setContentHandler(handler);
+        parser.parse(new InputSource(sheet));
+    }
+
+    /**
+     * Each comment is reported once, in the order of the cells: with its
+     * cell, or on its own before the next cell or the end of its row, or
+     * within the next row when its row is missing.
+     */
+    @Test
+    public void reportsTheCommentsInCellOrder() throws Exception {
+        Recorder recorder = new Recorder();
+        try (OPCPackage pkg = OPCPackage.open(workbook, PackageAccess.READ)) {
+            XSSFReader reader = new XSSFReader(pkg);
+            XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+            try (InputStream sheet = sheets.next()) {
+                parse(new XSSFSheetTest(reader.getStylesTable(), sheets.getSheetComments(),
+                        new ReadOnlySharedStringsTable(pkg), recorder, new DataFormatter(), false), sheet);
+            }
+        }
+        GoldenOutputTest.assertGolden("formulas.events.txt", recorder.events.toString());
+    }
+}
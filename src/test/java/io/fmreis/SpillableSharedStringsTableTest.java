@@ -0,0 +1,126 @@
+package io.fmreis;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Looks up the strings of a generated table of {@value #STRINGS} distinct
+ * strings, in memory and moved to disk, while loading in the background.
+ */
+public class SpillableSharedStringsTableTest {
+
+    private static final int STRINGS = 20000;
+    private static final int THREADS = 4;
+    private static final int ROUNDS = 10;
+
+    /**
+     * Room for about a thousand strings, so the table moves to disk early in the load
+     */
+    private static final long BUDGET = 80000;
+
+    /**
+     * About the number of strings within the budget, around which the lookups start
+     */
+    private static final int BUDGET_STRINGS = (int) (BUDGET / SpillableSharedStringsTable.estimateBytes("string 0000"));
+
+    @ClassRule
+    public static final TemporaryFolder TEMP = new TemporaryFolder();
+
+    private static File workbook;
+
+    @BeforeClass
+    public static void generate() throws Exception {
+        workbook = TestWorkbooks.generateStrings(TEMP.getRoot(), STRINGS);
+    }
+
+    @Test
+    public void keepsTheStringsWithinTheBudgetInMemory() throws Exception {
+        try (OPCPackage pkg = OPCPackage.open(workbook, PackageAccess.READ);
+             SpillableSharedStringsTable table = new SpillableSharedStringsTable(pkg, Long.MAX_VALUE)) {
+            assertFalse(table.isOnDisk());
+            assertEquals(0, table.getSpilledBytes());
+            assertEquals(STRINGS, table.getUniqueCount());
+            assertEquals("string 0", table.getEntryAt(0));
+            assertEquals("string " + (STRINGS - 1), table.getEntryAt(STRINGS - 1));
+        }
+    }
+
+    @Test
+    public void movesTheStringsBeyondTheBudgetToDisk() throws Exception {
+        try (OPCPackage pkg = OPCPackage.open(workbook, PackageAccess.READ);
+             SpillableSharedStringsTable table = new SpillableSharedStringsTable(pkg, BUDGET)) {
+            assertTrue(table.isOnDisk());
+            long bytes = 0;
+            for (int i = 0; i < STRINGS; i++) {
+                assertEquals("string " + i, table.getEntryAt(i));
+                bytes += ("string " + i).length();
+            }
+            // reported to the metrics, and through them to JMX and the command line
+            ConversionMetrics metrics = new ConversionMetrics();
+            metrics.recordSharedStrings(table);
+            assertEquals(bytes, metrics.getSharedStringsSpilledBytes());
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsAnIndexPastTheTable() throws Exception {
+        try (OPCPackage pkg = OPCPackage.open(workbook, PackageAccess.READ);
+             SpillableSharedStringsTable table = new SpillableSharedStringsTable(pkg, BUDGET, true)) {
+            table.getEntryAt(STRINGS);
+        }
+    }
+
+    /**
+     * Lookups from several threads, each from a different start, racing
+     * the load in the background across the move to disk.
+     */
+    @Test
+    public void looksUpWhileMovingToDiskInTheBackground() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            try (OPCPackage pkg = OPCPackage.open(workbook, PackageAccess.READ);
+                 final SpillableSharedStringsTable table = new SpillableSharedStringsTable(pkg, BUDGET, true)) {
+                final AtomicReference<Throwable> failure = new AtomicReference<>();
+                Thread[] threads = new Thread[THREADS];
+                for (int t = 0; t < THREADS; t++) {
+                    final int start = t * BUDGET_STRINGS / 2;
+                    threads[t] = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                for (int i = 0; i < STRINGS; i++) {
+                                    int idx = (start + i) % STRINGS;
+                                    String string = table.getEntryAt(idx);
+                                    if (!("string " + idx).equals(string)) {
+                                        throw new AssertionError("Shared string " + idx + " is " + string);
+                                    }
+                                }
+                            } catch (Throwable e) {
+                                failure.compareAndSet(null, e);
+                            }
+                        }
+                    });
+                    threads[t].start();
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                if (failure.get() != null) {
+                    throw new AssertionError("Round " + round, failure.get());
+                }
+                table.awaitLoaded();
+                assertTrue(table.isOnDisk());
+            }
+        }
+    }
+}
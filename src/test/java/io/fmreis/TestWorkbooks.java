@@ -0,0 +1,351 @@
+package io.fmreis;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Workbooks for the tests: the bundled ones, and large ones generated
+ * with known contents.
+ */
+final class TestWorkbooks {
+
+    /**
+     * The bundled workbooks
+     */
+    static final String[] BUNDLED = {"poi_test.xlsx", "poi_test2.xlsx", "poi_test_columns.xlsx"};
+
+    /**
+     * Number of distinct labels of a generated sheet, all shared strings
+     */
+    static final int LABELS = 1000;
+
+    /**
+     * Number of cells of a row of a generated sheet
+     */
+    static final int COLUMNS = 5;
+
+    private TestWorkbooks() {
+    }
+
+    static File bundled(String name) throws URISyntaxException {
+        URL url = TestWorkbooks.class.getResource("/" + name);
+        if (url == null) {
+            throw new IllegalArgumentException("No bundled workbook " + name);
+        }
+        return new File(url.toURI());
+    }
+
+    /**
+     * Generates a sheet of a header row and numbered rows of: the row
+     * number, an amount with a fraction, a label, a flag, and a large
+     * whole number.
+     *
+     * @param rows The number of rows after the header
+     */
+    static File generate(File directory, int rows) throws IOException {
+        File file = new File(directory, "generated-" + rows + ".xlsx");
+        SXSSFWorkbook workbook = new SXSSFWorkbook(null, 1000, true, true);
+        try {
+            Sheet sheet = workbook.createSheet("data");
+            Row header = sheet.createRow(0);
+            header.createCell(0).setCellValue("id");
+            header.createCell(1).setCellValue("amount");
+            header.createCell(2).setCellValue("label");
+            header.createCell(3).setCellValue("flag");
+            header.createCell(4).setCellValue("total");
+            for (int i = 1; i <= rows; i++) {
+                Row row = sheet.createRow(i);
+                row.createCell(0).setCellValue(i);
+                row.createCell(1).setCellValue(amount(i));
+                row.createCell(2).setCellValue(label(i));
+                row.createCell(3).setCellValue(i % 3 == 0);
+                row.createCell(4).setCellValue(total(i));
+            }
+            try (OutputStream out = new FileOutputStream(file)) {
+                workbook.write(out);
+            }
+        } finally {
+            workbook.dispose();
+            workbook.close();
+        }
+        return file;
+    }
+
+    /**
+     * Generates a sheet of one column of distinct strings, {@code "string 0"}
+     * to {@code "string <count - 1>"}, which are the shared strings table in
+     * that order.
+     */
+    static File generateStrings(File directory, int count) throws IOException {
+        File file = new File(directory, "strings-" + count + ".xlsx");
+        SXSSFWorkbook workbook = new SXSSFWorkbook(null, 1000, true, true);
+        try {
+            Sheet sheet = workbook.createSheet("strings");
+            for (int i = 0; i < count; i++) {
+                sheet.createRow(i).createCell(0).setCellValue("string " + i);
+            }
+            try (OutputStream out = new FileOutputStream(file)) {
+                workbook.write(out);
+            }
+        } finally {
+            workbook.dispose();
+            workbook.close();
+        }
+        return file;
+    }
+
+    /**
+     * Number of data rows of the generated formulas workbook
+     */
+    static final int FORMULA_ROWS = 200;
+
+    /**
+     * Writes a workbook of formulas part by part, as POI only writes
+     * shared formulas as separate ones.  Its sheet {@code data} has a
+     * header row and rows {@code r} of 2 to {@value #FORMULA_ROWS} + 1
+     * holding {@code i = r - 1} in A and one shared formula group per
+     * column after it, master in row 2:
+     * <ul>
+     * <li>B, relative: {@code A2*2}</li>
+     * <li>C, absolute and relative: {@code $A$2+A2}</li>
+     * <li>D, mixed: {@code $A2+A$2}</li>
+     * <li>E, a range: {@code SUM(A$2:A2)}</li>
+     * <li>F, the sheet {@code other}, named plain and quoted: {@code other!A1+'other'!$A$1}</li>
+     * </ul>
+     * Row 4, the first converted after the default header rows, also has
+     * separate formulas of a string, a function named like a cell, an
+     * error and a boolean in G to J, and a group of M4 and L5 shifting
+     * {@code A4+B4} past column A.  The cached results are those
+     * Excel would compute, {@code other!A<k>} holding {@code 10 * k}.
+     * <p>
+     * After the formulas, row {@value #FORMULA_ROWS} + 2 is missing, the
+     * next one has no cells and the last one has cells in C and E only.
+     * Comments, listed out of order, sit on cells with a value or a
+     * formula, on empty cells before, between and after the cells of a
+     * row, on the missing and the empty rows, and after the last row.
+     */
+    static File generateFormulas(File directory) throws IOException {
+        File file = new File(directory, "formulas.xlsx");
+        String main = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+        String relationships = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+        String packageRelationships = "http://schemas.openxmlformats.org/package/2006/relationships";
+        String contentTypes = "application/vnd.openxmlformats-officedocument.spreadsheetml.";
+        int lastRow = FORMULA_ROWS + 1;
+
+        StringBuilder data = new StringBuilder();
+        data.append("<worksheet xmlns=\"").append(main).append("\"><dimension ref=\"A1:M").append(lastRow + 3)
+                .append("\"/><sheetData>");
+        data.append("<row r=\"1\">");
+        String[] header = {"n", "relative", "absolute", "mixed", "range", "sheet"};
+        for (int col = 0; col < header.length; col++) {
+            data.append("<c r=\"").append((char) ('A' + col)).append("1\" t=\"s\"><v>").append(col).append("</v></c>");
+        }
+        data.append("</row>");
+        for (int r = 2; r <= lastRow; r++) {
+            int i = r - 1;
+            data.append("<row r=\"").append(r).append("\">");
+            data.append("<c r=\"A").append(r).append("\"><v>").append(i).append("</v></c>");
+            sharedFormula(data, "B", r, 0, "A2*2", 2 * i);
+            sharedFormula(data, "C", r, 1, "$A$2+A2", 1 + i);
+            sharedFormula(data, "D", r, 2, "$A2+A$2", i + 1);
+            sharedFormula(data, "E", r, 3, "SUM(A$2:A2)", (long) i * (i + 1) / 2);
+            sharedFormula(data, "F", r, 4, "other!A1+'other'!$A$1", 10 * i + 10);
+            if (r == 4) {
+                data.append("<c r=\"G4\" t=\"str\"><f>\"A1\"&amp;A4</f><v>A13</v></c>");
+                data.append("<c r=\"H4\"><f>LOG10(A4*10)</f><v>1.4771212547196624</v></c>");
+                data.append("<c r=\"I4\" t=\"e\"><f>1/0</f><v>#DIV/0!</v></c>");
+                data.append("<c r=\"J4\" t=\"b\"><f>A4&gt;0</f><v>1</v></c>");
+                data.append("<c r=\"M4\"><f t=\"shared\" ref=\"L4:M5\" si=\"5\">A4+B4</f><v>9</v></c>");
+            } else if (r == 5) {
+                data.append("<c r=\"L5\" t=\"e\"><f t=\"shared\" si=\"5\"/><v>#REF!</v></c>");
+            }
+            data.append("</row>");
+        }
+        data.append("<row r=\"").append(lastRow + 2).append("\"/>");
+        data.append("<row r=\"").append(lastRow + 3).append("\"><c r=\"C").append(lastRow + 3).append("\"><v>1</v></c>")
+                .append("<c r=\"E").append(lastRow + 3).append("\"><v>2</v></c></row>");
+        data.append("</sheetData></worksheet>");
+
+        String[][] commented = {
+                {"Z" + (lastRow + 99), "after the last row"},
+                {"E" + (lastRow + 3), "on a value after an empty cell"},
+                {"A1", "on the header"},
+                {"B2", "on a shared formula"},
+                {"K3", "after the last cell"},
+                {"B" + (lastRow + 1), "on the missing row"},
+                {"C" + (lastRow + 2), "on the row without cells"},
+                {"A" + (lastRow + 3), "before the first cell"},
+                {"D" + (lastRow + 3), "between two cells"},
+                {"H" + (lastRow + 3), "after the last cell of the last row"},
+        };
+        StringBuilder comments = new StringBuilder();
+        comments.append("<comments xmlns=\"").append(main).append("\"><authors><author>tester</author></authors><commentList>");
+        for (String[] comment : commented) {
+            comments.append("<comment ref=\"").append(comment[0]).append("\" authorId=\"0\"><text><t>").append(comment[1])
+                    .append("</t></text></comment>");
+        }
+        comments.append("</commentList></comments>");
+
+        StringBuilder other = new StringBuilder();
+        other.append("<worksheet xmlns=\"").append(main).append("\"><dimension ref=\"A1:A").append(lastRow)
+                .append("\"/><sheetData>");
+        for (int k = 1; k <= lastRow; k++) {
+            other.append("<row r=\"").append(k).append("\"><c r=\"A").append(k).append("\"><v>").append(10 * k)
+                    .append("</v></c></row>");
+        }
+        other.append("</sheetData></worksheet>");
+
+        StringBuilder strings = new StringBuilder();
+        strings.append("<sst xmlns=\"").append(main).append("\" count=\"").append(header.length)
+                .append("\" uniqueCount=\"").append(header.length).append("\">");
+        for (String string : header) {
+            strings.append("<si><t>").append(string).append("</t></si>");
+        }
+        strings.append("</sst>");
+
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+            part(zip, "[Content_Types].xml", "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+                    + "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>"
+                    + "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+                    + "<Override PartName=\"/xl/workbook.xml\" ContentType=\"" + contentTypes + "sheet.main+xml\"/>"
+                    + "<Override PartName=\"/xl/worksheets/sheet1.xml\" ContentType=\"" + contentTypes + "worksheet+xml\"/>"
+                    + "<Override PartName=\"/xl/worksheets/sheet2.xml\" ContentType=\"" + contentTypes + "worksheet+xml\"/>"
+                    + "<Override PartName=\"/xl/sharedStrings.xml\" ContentType=\"" + contentTypes + "sharedStrings+xml\"/>"
+                    + "<Override PartName=\"/xl/styles.xml\" ContentType=\"" + contentTypes + "styles+xml\"/>"
+                    + "<Override PartName=\"/xl/comments1.xml\" ContentType=\"" + contentTypes + "comments+xml\"/>"
+                    + "</Types>");
+            part(zip, "_rels/.rels", "<Relationships xmlns=\"" + packageRelationships + "\">"
+                    + "<Relationship Id=\"rId1\" Type=\"" + relationships + "/officeDocument\" Target=\"xl/workbook.xml\"/>"
+                    + "</Relationships>");
+            part(zip, "xl/workbook.xml", "<workbook xmlns=\"" + main + "\" xmlns:r=\"" + relationships + "\"><sheets>"
+                    + "<sheet name=\"data\" sheetId=\"1\" r:id=\"rId1\"/>"
+                    + "<sheet name=\"other\" sheetId=\"2\" r:id=\"rId2\"/>"
+                    + "</sheets></workbook>");
+            part(zip, "xl/_rels/workbook.xml.rels", "<Relationships xmlns=\"" + packageRelationships + "\">"
+                    + "<Relationship Id=\"rId1\" Type=\"" + relationships + "/worksheet\" Target=\"worksheets/sheet1.xml\"/>"
+                    + "<Relationship Id=\"rId2\" Type=\"" + relationships + "/worksheet\" Target=\"worksheets/sheet2.xml\"/>"
+                    + "<Relationship Id=\"rId3\" Type=\"" + relationships + "/sharedStrings\" Target=\"sharedStrings.xml\"/>"
+                    + "<Relationship Id=\"rId4\" Type=\"" + relationships + "/styles\" Target=\"styles.xml\"/>"
+                    + "</Relationships>");
+            part(zip, "xl/styles.xml", "<styleSheet xmlns=\"" + main + "\">"
+                    + "<fonts count=\"1\"><font/></fonts><fills count=\"1\"><fill/></fills><borders count=\"1\"><border/></borders>"
+                    + "<cellStyleXfs count=\"1\"><xf/></cellStyleXfs><cellXfs count=\"1\"><xf numFmtId=\"0\"/></cellXfs>"
+                    + "</styleSheet>");
+            part(zip, "xl/sharedStrings.xml", strings.toString());
+            part(zip, "xl/worksheets/sheet1.xml", data.toString());
+            part(zip, "xl/worksheets/_rels/sheet1.xml.rels", "<Relationships xmlns=\"" + packageRelationships + "\">"
+                    + "<Relationship Id=\"rId1\" Type=\"" + relationships + "/comments\" Target=\"../comments1.xml\"/>"
+                    + "</Relationships>");
+            part(zip, "xl/comments1.xml", comments.toString());
+            part(zip, "xl/worksheets/sheet2.xml", other.toString());
+        }
+        return file;
+    }
+
+    /**
+     * Appends a cell of a shared formula group of the column, its master in row 2.
+     */
+    private static void sharedFormula(StringBuilder data, String col, int r, int si, String masterFormula, long result) {
+        data.append("<c r=\"").append(col).append(r).append("\"><f t=\"shared\"");
+        if (r == 2) {
+            data.append(" ref=\"").append(col).append("2:").append(col).append(FORMULA_ROWS + 1).append("\" si=\"")
+                    .append(si).append("\">").append(masterFormula.replace("&", "&amp;")).append("</f>");
+        } else {
+            data.append(" si=\"").append(si).append("\"/>");
+        }
+        data.append("<v>").append(result).append("</v></c>");
+    }
+
+    private static void part(ZipOutputStream zip, String name, String xml) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n" + xml).getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+
+    static double amount(int i) {
+        return i * 0.25 - 1000;
+    }
+
+    static String label(int i) {
+        return "label " + (i % LABELS);
+    }
+
+    static long total(int i) {
+        return 1000000000L * i;
+    }
+
+    /**
+     * Converts a workbook as the command line does: columns padded to the
+     * widest first row, {@code ;} separated, in English.
+     */
+    static String convert(File file) throws Exception {
+        return convert(file, new Configurer() {
+            @Override
+            public void configure(XLSX2CSVImproved xlsx2csv) {
+            }
+        });
+    }
+
+    interface Configurer {
+        void configure(XLSX2CSVImproved xlsx2csv) throws Exception;
+    }
+
+    static String convert(File file, Configurer configurer) throws Exception {
+        StringWriter csv = new StringWriter();
+        try (OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ)) {
+            XLSXAnalyser analyser = new XLSXAnalyser(pkg);
+            PrintWriter output = new PrintWriter(csv);
+            XLSX2CSVImproved xlsx2csv = new XLSX2CSVImproved(pkg, output, analyser.getMinimumCols(), ';', "EN");
+            configurer.configure(xlsx2csv);
+            xlsx2csv.process();
+            output.flush();
+        }
+        return csv.toString();
+    }
+
+    /**
+     * A writer that drops everything, for measuring the conversion alone
+     */
+    static final class NullWriter extends Writer {
+        long chars;
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            chars += length;
+        }
+
+        @Override
+        public void write(String string, int offset, int length) {
+            chars += length;
+        }
+
+        @Override
+        public void write(int c) {
+            chars++;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package io.fmreis;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.PrintWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Converts a generated sheet of {@value #ROWS} rows, checks the result
+ * against its known contents, and holds the conversion to the budgets
+ * of the build: a ceiling of bytes allocated per cell, counted by the
+ * JVM for the converting thread, and with the {@code perf} profile a
+ * floor of rows per second.
+ * <p>
+ * The budgets are the {@code perf.*} properties of the pom; each
+ * measurement is the best of a few runs after a warm-up, so that a
+ * single slow run of a busy machine does not fail the build.
+ */
+public class ThroughputBudgetTest {
+
+    private static final int ROWS = 100000;
+    private static final int RUNS = 3;
+    private static final long CELLS = (ROWS + 1L) * TestWorkbooks.COLUMNS;
+
+    @ClassRule
+    public static final TemporaryFolder TEMP = new TemporaryFolder();
+
+    private static File workbook;
+
+    @BeforeClass
+    public static void generate() throws Exception {
+        workbook = TestWorkbooks.generate(TEMP.getRoot(), ROWS);
+    }
+
+    private static long budget(String name, long defaultValue) {
+        return Long.getLong(name, defaultValue);
+    }
+
+    @Test
+    public void convertsTheGeneratedSheet() throws Exception {
+        String csv = TestWorkbooks.convert(workbook, new TestWorkbooks.Configurer() {
+            @Override
+            public void configure(XLSX2CSVImproved xlsx2csv) {
+                xlsx2csv.setHeaderRows(1);
+            }
+        });
+        StringBuilder expected = new StringBuilder();
+        for (int i = 1; i <= ROWS; i++) {
+            expected.append(i).append(';').append(number(TestWorkbooks.amount(i))).append(';')
+                    .append(TestWorkbooks.label(i)).append(';').append(i % 3 == 0 ? "TRUE" : "FALSE").append(';')
+                    // endRow pads with minColumns - currentCol separators, currentCol being
+                    // the index of the last cell, so a full row ends with one
+                    .append(TestWorkbooks.total(i)).append(";\n");
+        }
+        assertEquals(expected.toString(), csv);
+    }
+
+    /**
+     * @return The number as the converter writes it: whole numbers without a fraction
+     */
+    private static String number(double value) {
+        return value == (long) value ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    /**
+     * Converts the sheet to CSV a few times after a warm-up.
+     *
+     * @return The best time in nanoseconds and the fewest bytes allocated of the runs
+     */
+    private static long[] convertToCsv() throws Exception {
+        long bestNanos = Long.MAX_VALUE;
+        long bestBytes = Long.MAX_VALUE;
+        for (int run = 0; run <= RUNS; run++) {
+            try (OPCPackage pkg = OPCPackage.open(workbook, PackageAccess.READ)) {
+                PrintWriter output = new PrintWriter(new TestWorkbooks.NullWriter());
+                XLSX2CSVImproved xlsx2csv = new XLSX2CSVImproved(pkg, output, TestWorkbooks.COLUMNS, ';', "EN");
+                xlsx2csv.setHeaderRows(1);
+                long bytes = ConversionEvents.allocatedBytes();
+                long start = System.nanoTime();
+                xlsx2csv.process();
+                output.flush();
+                long nanos = System.nanoTime() - start;
+                bytes = ConversionEvents.allocatedBytes() - bytes;
+                assertEquals(CELLS, xlsx2csv.getMetrics().getCells());
+                // the first run warms up
+                if (run > 0) {
+                    bestNanos = Math.min(bestNanos, nanos);
+                    bestBytes = Math.min(bestBytes, bytes);
+                }
+            }
+        }
+        return new long[]{bestNanos, bestBytes};
+    }
+
+    /**
+     * Only with a floor set, as by the {@code perf} profile: the time
+     * depends on the machine and on what else it runs.
+     */
+    @Test
+    public void csvThroughput() throws Exception {
+        assumeFalse(Boolean.getBoolean("perf.skip"));
+        Long minRowsPerSecond = Long.getLong("perf.minRowsPerSecond");
+        assumeTrue("No floor of rows per second, set by the perf profile", minRowsPerSecond != null);
+        double rowsPerSecond = ROWS * 1e9 / convertToCsv()[0];
+        assertTrue(String.format("%.0f rows/s, below the budget of %d", rowsPerSecond, minRowsPerSecond),
+                rowsPerSecond >= minRowsPerSecond);
+    }
+
+    @Test
+    public void csvAllocation() throws Exception {
+        assumeFalse(Boolean.getBoolean("perf.skip"));
+        long bestBytes = convertToCsv()[1];
+        assumeTrue("The JVM does not count allocations", bestBytes > 0);
+        long bytesPerCell = bestBytes / CELLS;
+        long maxBytesPerCell = budget("perf.maxBytesPerCell", 2000);
+        assertTrue(bytesPerCell + " bytes allocated per cell, above the budget of " + maxBytesPerCell,
+                bytesPerCell <= maxBytesPerCell);
+    }
+
+    @Test
+    public void rowBatchAllocation() throws Exception {
+        assumeFalse(Boolean.getBoolean("perf.skip"));
+        long bestBytes = Long.MAX_VALUE;
+        final long[] cells = new long[1];
+        for (int run = 0; run <= RUNS; run++) {
+            try (OPCPackage pkg = OPCPackage.open(workbook, PackageAccess.READ)) {
+                XLSX2CSVImproved xlsx2csv = new XLSX2CSVImproved(pkg, new PrintWriter(new TestWorkbooks.NullWriter()),
+                        TestWorkbooks.COLUMNS, ';', "EN");
+                xlsx2csv.setHeaderRows(1);
+                cells[0] = 0;
+                xlsx2csv.setRowBatchConsumer(new RowBatchConsumer() {
+                    @Override
+                    public void accept(RowBatch batch) {
+                        for (int column = 0; column < batch.getColumnCount(); column++) {
+                            RowBatch.Column values = batch.getColumn(column);
+                            for (int row = 0; row < batch.size(); row++) {
+                                if (!values.isNull(row)) {
+                                    cells[0]++;
+                                }
+                            }
+                        }
+                    }
+                }, 1024);
+                long bytes = ConversionEvents.allocatedBytes();
+                xlsx2csv.process();
+                bytes = ConversionEvents.allocatedBytes() - bytes;
+                if (run > 0) {
+                    bestBytes = Math.min(bestBytes, bytes);
+                }
+            }
+        }
+        assertEquals((long) ROWS * TestWorkbooks.COLUMNS, cells[0]);
+        assumeTrue("The JVM does not count allocations", bestBytes > 0);
+        long bytesPerCell = bestBytes / cells[0];
+        long maxBytesPerCell = budget("perf.maxBatchBytesPerCell", 125);
+        assertTrue(bytesPerCell + " bytes allocated per cell in batches, above the budget of " + maxBytesPerCell,
+                bytesPerCell <= maxBytesPerCell);
+    }
+}
@@ -0,0 +1,31 @@
+package io.fmreis;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the preview of the bundled workbooks to the golden files in
+ * {@code src/test/resources/golden}, which do not depend on the output mode.
+ */
+public class WorkbookPreviewTest {
+
+    @Test
+    public void previewIsTheStartOfTheSheets() throws Exception {
+        for (String workbook : TestWorkbooks.BUNDLED) {
+            try (OPCPackage pkg = OPCPackage.open(TestWorkbooks.bundled(workbook), PackageAccess.READ)) {
+                WorkbookPreview preview = new WorkbookPreview(pkg, 4);
+                preview.setSheetThreads(2);
+                preview.process();
+                assertTrue(workbook, preview.getSheets().size() > 0);
+                StringBuilder csv = new StringBuilder();
+                for (String sheetName : preview.getSheets().keySet()) {
+                    csv.append("# ").append(sheetName).append('\n').append(preview.getSheet(sheetName));
+                }
+                GoldenOutputTest.assertGolden(workbook.replace(".xlsx", "") + ".preview.csv", csv.toString());
+            }
+        }
+    }
+}